@@ -0,0 +1,425 @@
+package com.breakingcode.unoptimised.query;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import com.breakingcode.unoptimised.data.FoodSafetyDataset;
+import com.breakingcode.unoptimised.data.IntList;
+import com.breakingcode.unoptimised.data.StringDictionary;
+
+/**
+ * Inverted indexes over the postcode and address lines of every premises.
+ *
+ * Postcodes are normalised (upper case, with a single space between the
+ * outward and inward codes) and sorted, so the postcodes of a district such as
+ * "L1", or of a sector such as "L1 9", are a contiguous range found with a
+ * binary search. Address lines are split into lower case words, and each word
+ * has a posting list of the rows it appears in, in row order; a search for
+ * several words intersects their posting lists, starting from the shortest.
+ *
+ * Both indexes are held as one sorted array of keys, with the rows of every key
+ * one after another in a single int array, so each costs a few arrays however
+ * many keys it has. AddressLine2 to AddressLine4 and PostCode are dictionary
+ * encoded, so each of their distinct values is only split or normalised once.
+ */
+public class AddressIndex {
+
+	private static final int[] NO_ROWS = new int[0];
+
+	private final int size;
+	private final Postings postcodes;
+	private final Postings words;
+
+	/**
+	 * @param dataset  Dataset to be indexed
+	 * @param included Rows to be indexed, or null for every row
+	 */
+	public AddressIndex(FoodSafetyDataset dataset, BitSet included) {
+		this.size = dataset.size();
+
+		// postcodes: normalise each distinct value once, then group the rows by it
+		StringDictionary postcodeValues = dataset.getPostCodeDictionary();
+		PostingsBuilder postcodeRows = new PostingsBuilder();
+		int[] postcodeKeys = new int[postcodeValues.size()];
+		for (int code = 0; code < postcodeKeys.length; code++) {
+			String postcode = normalisePostcode(postcodeValues.decode(code));
+			postcodeKeys[code] = postcode == null ? -1 : postcodeRows.key(postcode);
+		}
+
+		// words: split each distinct value of the dictionary encoded lines once
+		PostingsBuilder wordRows = new PostingsBuilder();
+		StringDictionary[] lines = { dataset.getAddressLine2Dictionary(), dataset.getAddressLine3Dictionary(),
+				dataset.getAddressLine4Dictionary() };
+		int[][][] lineWords = new int[lines.length][][];
+		for (int line = 0; line < lines.length; line++) {
+			lineWords[line] = new int[lines[line].size()][];
+			for (int code = 0; code < lineWords[line].length; code++) {
+				lineWords[line][code] = wordRows.keys(lines[line].decode(code));
+			}
+		}
+
+		for (int row = 0; row < size; row++) {
+			if (included != null && !included.get(row)) {
+				continue;
+			}
+			int postcode = postcodeKeys[dataset.getPostCodeCode(row)];
+			if (postcode >= 0) {
+				postcodeRows.add(postcode, row);
+			}
+			for (int word : wordRows.keys(dataset.getAddressLine1(row))) {
+				wordRows.add(word, row);
+			}
+			addAll(wordRows, lineWords[0][dataset.getAddressLine2Code(row)], row);
+			addAll(wordRows, lineWords[1][dataset.getAddressLine3Code(row)], row);
+			addAll(wordRows, lineWords[2][dataset.getAddressLine4Code(row)], row);
+		}
+
+		this.postcodes = postcodeRows.build();
+		this.words = wordRows.build();
+	}
+
+	private static void addAll(PostingsBuilder builder, int[] keys, int row) {
+		for (int key : keys) {
+			builder.add(key, row);
+		}
+	}
+
+	/**
+	 * Find the premises in a postcode district, sector or unit.
+	 *
+	 * @param postcode Outward code such as "L1" or "M14", sector such as "L1 9", or
+	 *                 full postcode (ignoring case and spaces)
+	 * @return Premises whose postcode starts with it, in row order
+	 */
+	public IntList postcode(String postcode) {
+		String prefix = postcodePrefix(postcode);
+		IntList result = new IntList();
+		if (prefix == null) {
+			return result;
+		}
+		int first = postcodes.lowerBound(prefix);
+		int last = first;
+		while (last < postcodes.keys.length && postcodes.keys[last].startsWith(prefix)) {
+			last++;
+		}
+
+		int[] rows = Arrays.copyOfRange(postcodes.rows, postcodes.offsets[first], postcodes.offsets[last]);
+		Arrays.sort(rows);
+		for (int row : rows) {
+			result.add(row);
+		}
+		return result;
+	}
+
+	/**
+	 * Find the premises with every one of the given words in their address lines.
+	 *
+	 * @param terms Words to search for, such as "high street liverpool" (ignoring
+	 *              case and punctuation)
+	 * @return Premises with every word in their address, in row order; none if
+	 *         there are no words
+	 */
+	public IntList address(String terms) {
+		List<String> tokens = words(terms);
+		IntList result = new IntList();
+		if (tokens.isEmpty()) {
+			return result;
+		}
+
+		// intersect from the shortest list, so every step can only shrink the result
+		int[][] lists = new int[tokens.size()][];
+		for (int i = 0; i < lists.length; i++) {
+			lists[i] = words.rows(tokens.get(i));
+		}
+		Arrays.sort(lists, new Comparator<int[]>() {
+			@Override
+			public int compare(int[] o1, int[] o2) {
+				return Integer.compare(o1.length, o2.length);
+			}
+		});
+		int[] matches = lists[0];
+		int count = matches.length;
+		for (int i = 1; i < lists.length && count > 0; i++) {
+			count = intersect(matches, count, lists[i]);
+		}
+
+		for (int i = 0; i < count; i++) {
+			result.add(matches[i]);
+		}
+		return result;
+	}
+
+	/**
+	 * Find the premises in a postcode district with every one of the given words in
+	 * their address lines.
+	 *
+	 * @param terms    Words to search for, or null for any address
+	 * @param postcode Postcode district, sector or unit, or null for any postcode
+	 * @return Matching premises, in row order
+	 */
+	public IntList find(String terms, String postcode) {
+		if (postcode == null) {
+			return terms == null ? new IntList() : address(terms);
+		} else if (terms == null) {
+			return postcode(postcode);
+		}
+		IntList byPostcode = postcode(postcode);
+		int[] matches = address(terms).toArray();
+		int count = intersect(matches, matches.length, byPostcode.toArray());
+		IntList result = new IntList(count);
+		for (int i = 0; i < count; i++) {
+			result.add(matches[i]);
+		}
+		return result;
+	}
+
+	/**
+	 * Keep the rows of the first list which are also in the second. The rows of
+	 * the (shorter) first list are looked for in the second by galloping forward
+	 * from the last one found, so a short list against a long one costs far less
+	 * than a walk over the long one.
+	 *
+	 * @param rows  Sorted rows, overwritten with the rows kept (copied first if
+	 *              they belong to the index)
+	 * @param count Number of rows in the first list
+	 * @param other Sorted rows to look in
+	 * @return Number of rows kept
+	 */
+	private static int intersect(int[] rows, int count, int[] other) {
+		int kept = 0;
+		int from = 0;
+		for (int i = 0; i < count && from < other.length; i++) {
+			int row = rows[i];
+			int step = 1;
+			int hi = from;
+			while (hi < other.length && other[hi] < row) {
+				from = hi + 1;
+				hi += step;
+				step <<= 1;
+			}
+			int found = Arrays.binarySearch(other, from, Math.min(hi + 1, other.length), row);
+			if (found >= 0) {
+				rows[kept++] = row;
+				from = found + 1;
+			} else {
+				from = -found - 1;
+			}
+		}
+		return kept;
+	}
+
+	/**
+	 * @return Number of distinct postcodes indexed
+	 */
+	public int getPostcodeCount() {
+		return postcodes.keys.length;
+	}
+
+	/**
+	 * @return Number of distinct address words indexed
+	 */
+	public int getWordCount() {
+		return words.keys.length;
+	}
+
+	/**
+	 * Utility function to normalise a postcode to upper case, with a single space
+	 * before the inward code (the last three characters), such as "L1 9AB".
+	 *
+	 * @param postcode Postcode as found in the CSV files
+	 * @return Normalised postcode, or null if it is blank
+	 */
+	public static String normalisePostcode(String postcode) {
+		if (postcode == null) {
+			return null;
+		}
+		StringBuilder compact = new StringBuilder(postcode.length());
+		for (int i = 0; i < postcode.length(); i++) {
+			char c = postcode.charAt(i);
+			if (!Character.isWhitespace(c)) {
+				compact.append(Character.toUpperCase(c));
+			}
+		}
+		if (compact.length() == 0) {
+			return null;
+		}
+		if (compact.length() > 3) {
+			compact.insert(compact.length() - 3, ' ');
+		}
+		return compact.toString();
+	}
+
+	/**
+	 * @return Prefix of the normalised postcodes matching a query, which ends with
+	 *         a space if the query is only an outward code (so "L1" doesn't match
+	 *         "L15"), or null if the query is blank
+	 */
+	private static String postcodePrefix(String postcode) {
+		if (postcode == null) {
+			return null;
+		}
+		String trimmed = postcode.trim().toUpperCase();
+		if (trimmed.isEmpty()) {
+			return null;
+		}
+		int space = trimmed.indexOf(' ');
+		if (space < 0) {
+			// a full postcode without its space is longer than any outward code
+			return trimmed.length() > 4 ? normalisePostcode(trimmed) : trimmed + " ";
+		}
+		return trimmed.substring(0, space) + " " + trimmed.substring(space + 1).replace(" ", "");
+	}
+
+	/**
+	 * Split text into lower case words of letters and digits.
+	 *
+	 * @param text Text to split (may be null)
+	 * @return Words in the text, in order
+	 */
+	public static List<String> words(String text) {
+		List<String> words = new ArrayList<String>();
+		if (text == null) {
+			return words;
+		}
+		int start = -1;
+		for (int i = 0; i <= text.length(); i++) {
+			boolean letter = i < text.length() && Character.isLetterOrDigit(text.charAt(i));
+			if (letter && start < 0) {
+				start = i;
+			} else if (!letter && start >= 0) {
+				words.add(BusinessNameIndex.normalise(text.substring(start, i)));
+				start = -1;
+			}
+		}
+		return words;
+	}
+
+	/**
+	 * Sorted keys, with the rows of each key one after another.
+	 */
+	private static class Postings {
+
+		private final String[] keys;
+		// rows of keys[i] are rows[offsets[i]] to rows[offsets[i + 1]]
+		private final int[] offsets;
+		private final int[] rows;
+
+		private Postings(String[] keys, int[] offsets, int[] rows) {
+			this.keys = keys;
+			this.offsets = offsets;
+			this.rows = rows;
+		}
+
+		private int lowerBound(String key) {
+			int found = Arrays.binarySearch(keys, key);
+			return found >= 0 ? found : -found - 1;
+		}
+
+		/**
+		 * @return Rows of the key, in row order; a copy, as intersecting overwrites it
+		 */
+		private int[] rows(String key) {
+			int found = Arrays.binarySearch(keys, key);
+			return found < 0 ? NO_ROWS : Arrays.copyOfRange(rows, offsets[found], offsets[found + 1]);
+		}
+	}
+
+	/**
+	 * Collects the rows of each key while the index is built. Keys are numbered as
+	 * they are met, and sorted once at the end.
+	 */
+	private static class PostingsBuilder {
+
+		private final Map<String, Integer> ids = new HashMap<String, Integer>();
+		private final List<String> keys = new ArrayList<String>();
+		private final List<IntList> rows = new ArrayList<IntList>();
+
+		private int key(String key) {
+			Integer id = ids.get(key);
+			if (id == null) {
+				id = keys.size();
+				ids.put(key, id);
+				keys.add(key);
+				rows.add(new IntList(4));
+			}
+			return id;
+		}
+
+		/**
+		 * @return Distinct words of the text, numbered as keys
+		 */
+		private int[] keys(String text) {
+			List<String> words = words(text);
+			int[] result = new int[words.size()];
+			int count = 0;
+			for (String word : words) {
+				int id = key(word);
+				boolean seen = false;
+				for (int i = 0; i < count && !seen; i++) {
+					seen = result[i] == id;
+				}
+				if (!seen) {
+					result[count++] = id;
+				}
+			}
+			return count == result.length ? result : Arrays.copyOf(result, count);
+		}
+
+		/**
+		 * Add a row to a key, unless it was the last row added to it; rows are added
+		 * in row order, so each list stays sorted and free of repeats.
+		 */
+		private void add(int key, int row) {
+			IntList list = rows.get(key);
+			if (list.isEmpty() || list.get(list.size() - 1) != row) {
+				list.add(row);
+			}
+		}
+
+		private Postings build() {
+			Integer[] order = new Integer[keys.size()];
+			for (int i = 0; i < order.length; i++) {
+				order[i] = i;
+			}
+			Arrays.sort(order, new Comparator<Integer>() {
+				@Override
+				public int compare(Integer o1, Integer o2) {
+					return keys.get(o1).compareTo(keys.get(o2));
+				}
+			});
+
+			// keys which ended up without a row (only on rows left out) aren't kept
+			int kept = 0;
+			int total = 0;
+			for (Integer id : order) {
+				if (!rows.get(id).isEmpty()) {
+					kept++;
+					total += rows.get(id).size();
+				}
+			}
+			String[] sortedKeys = new String[kept];
+			int[] offsets = new int[kept + 1];
+			int[] allRows = new int[total];
+			int i = 0;
+			for (Integer id : order) {
+				IntList list = rows.get(id);
+				if (list.isEmpty()) {
+					continue;
+				}
+				sortedKeys[i] = keys.get(id);
+				for (int j = 0; j < list.size(); j++) {
+					allRows[offsets[i] + j] = list.get(j);
+				}
+				offsets[i + 1] = offsets[i] + list.size();
+				i++;
+			}
+			return new Postings(sortedKeys, offsets, allRows);
+		}
+	}
+
+}
@@ -0,0 +1,267 @@
+package com.breakingcode.unoptimised.query;
+
+import java.util.BitSet;
+import java.util.Collection;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+
+import com.breakingcode.unoptimised.data.FoodSafetyDataset;
+import com.breakingcode.unoptimised.data.IntList;
+import com.breakingcode.unoptimised.data.StringDictionary;
+
+/**
+ * The rows of a dataset split into partitions by local authority, so a scan
+ * can be pruned to the authorities it is for, and a scan of every authority can
+ * be run over the partitions in parallel.
+ *
+ * The loader appends the rows of each file (one per authority) one after
+ * another, so the rows of an authority are already next to each other in every
+ * column. A partition is one such run of rows with the same LocalAuthorityName,
+ * held as its first and last row rather than copied out of the dataset, so row
+ * ids stay the same as in every other index. An authority whose rows aren't in
+ * one run (such as one spread over two files) just has more than one
+ * partition. As partitions don't own their rows, a reload of one authority
+ * can't swap in just its partition; see FoodSafetyLoader.
+ *
+ * A scan of more rows than a task is worth is split into chunks of a few
+ * partitions, or of part of a large one, which are scanned on a fork-join pool
+ * and joined back together in partition order; as the partitions are in row
+ * order, so are the results.
+ */
+public class AuthorityPartitions {
+
+	/** Fewest rows a task scans without splitting */
+	private static final int MIN_SPLIT = 1 << 14;
+
+	private static final int[] NO_PARTITIONS = new int[0];
+
+	private final StringDictionary authorities;
+	// rows to scan, or null for every row
+	private final BitSet included;
+	private final ForkJoinPool pool;
+
+	// first row, end row (exclusive) and authority code of each partition, in row order
+	private final int[] starts;
+	private final int[] ends;
+	private final int[] authorityCodes;
+	// partitions of each authority code
+	private final int[][] partitionsByAuthority;
+	private final int[] allPartitions;
+
+	/**
+	 * @param dataset  Dataset to be partitioned
+	 * @param included Rows to be scanned, or null for every row
+	 * @param pool     Pool to scan the partitions on
+	 */
+	public AuthorityPartitions(FoodSafetyDataset dataset, BitSet included, ForkJoinPool pool) {
+		this.authorities = dataset.getLocalAuthorityNameDictionary();
+		this.included = included;
+		this.pool = pool;
+
+		IntList runStarts = new IntList();
+		IntList runCodes = new IntList();
+		int[] counts = new int[authorities.size()];
+		for (int row = 0; row < dataset.size(); row++) {
+			int code = dataset.getLocalAuthorityNameCode(row);
+			if (runCodes.isEmpty() || runCodes.get(runCodes.size() - 1) != code) {
+				runStarts.add(row);
+				runCodes.add(code);
+				counts[code]++;
+			}
+		}
+		runStarts.add(dataset.size());
+
+		int partitions = runCodes.size();
+		this.starts = new int[partitions];
+		this.ends = new int[partitions];
+		this.authorityCodes = runCodes.toArray();
+		this.allPartitions = new int[partitions];
+		this.partitionsByAuthority = new int[counts.length][];
+		for (int code = 0; code < counts.length; code++) {
+			partitionsByAuthority[code] = new int[counts[code]];
+			counts[code] = 0;
+		}
+		for (int partition = 0; partition < partitions; partition++) {
+			starts[partition] = runStarts.get(partition);
+			ends[partition] = runStarts.get(partition + 1);
+			allPartitions[partition] = partition;
+			int code = authorityCodes[partition];
+			partitionsByAuthority[code][counts[code]++] = partition;
+		}
+	}
+
+	/**
+	 * @return Number of partitions
+	 */
+	public int size() {
+		return starts.length;
+	}
+
+	/**
+	 * @param authority LocalAuthorityName
+	 * @return Partitions holding the rows of the authority, in row order, or none
+	 *         if there are no rows for it
+	 */
+	public int[] partitionsOf(String authority) {
+		int code = authorities.lookup(authority);
+		return code == StringDictionary.NOT_FOUND ? NO_PARTITIONS : partitionsByAuthority[code];
+	}
+
+	/**
+	 * @param partition Partition number
+	 * @return First row of the partition
+	 */
+	public int getStart(int partition) {
+		return starts[partition];
+	}
+
+	/**
+	 * @param partition Partition number
+	 * @return Row after the last row of the partition
+	 */
+	public int getEnd(int partition) {
+		return ends[partition];
+	}
+
+	/**
+	 * @param partition Partition number
+	 * @return LocalAuthorityName of every row in the partition
+	 */
+	public String getAuthority(int partition) {
+		return authorities.decode(authorityCodes[partition]);
+	}
+
+	/**
+	 * @param authority LocalAuthorityName of the premises
+	 * @param rows      Rows to keep, or null for every row
+	 * @return Premises in that authority which are in the given rows, in row
+	 *         order
+	 */
+	public IntList find(String authority, BitSet rows) {
+		IntList result = new IntList();
+		for (int partition : partitionsOf(authority)) {
+			scan(starts[partition], ends[partition], rows, null, result);
+		}
+		return result;
+	}
+
+	/**
+	 * Scan the partitions of the given authorities, or of every authority, for the
+	 * rows accepted by a filter. Only the partitions of the authorities are read,
+	 * and a scan of many rows is spread over the pool.
+	 *
+	 * @param authorities LocalAuthorityNames to scan, or null for every authority;
+	 *                    names with no rows are ignored
+	 * @param filter      Rows to keep, or null for every row
+	 * @return Rows accepted by the filter, in row order
+	 */
+	public IntList find(Collection<String> authorities, RowFilter filter) {
+		int[] partitions = allPartitions;
+		if (authorities != null) {
+			BitSet selected = new BitSet(starts.length);
+			for (String authority : authorities) {
+				for (int partition : partitionsOf(authority)) {
+					selected.set(partition);
+				}
+			}
+			partitions = selected.stream().toArray();
+		}
+
+		long rows = 0;
+		for (int partition : partitions) {
+			rows += ends[partition] - starts[partition];
+		}
+		int threshold = (int) Math.max(MIN_SPLIT, rows / (4 * pool.getParallelism()) + 1);
+
+		// split large partitions, so one big authority doesn't leave the other threads idle
+		IntList chunks = new IntList(partitions.length * 2);
+		for (int partition : partitions) {
+			for (int start = starts[partition]; start < ends[partition]; start += threshold) {
+				chunks.add(start);
+				chunks.add(Math.min(start + threshold, ends[partition]));
+			}
+		}
+		if (rows <= threshold) {
+			IntList result = new IntList();
+			for (int i = 0; i < chunks.size(); i += 2) {
+				scan(chunks.get(i), chunks.get(i + 1), null, filter, result);
+			}
+			return result;
+		}
+		return pool.invoke(new ScanChunks(chunks.toArray(), 0, chunks.size() / 2, threshold, filter));
+	}
+
+	private void scan(int start, int end, BitSet rows, RowFilter filter, IntList result) {
+		for (int row = start; row < end; row++) {
+			if (rows != null) {
+				row = rows.nextSetBit(row);
+				if (row < 0 || row >= end) {
+					return;
+				}
+			}
+			if ((included == null || included.get(row)) && (filter == null || filter.accept(row))) {
+				result.add(row);
+			}
+		}
+	}
+
+	/**
+	 * Test of a single row, such as on its rating, run over the rows of a scan.
+	 * Filters may be called from many threads at once.
+	 */
+	public interface RowFilter {
+
+		/**
+		 * @param row Row id
+		 * @return Whether the row is kept
+		 */
+		boolean accept(int row);
+	}
+
+	/**
+	 * Scans a range of chunks, splitting it in two while it holds more rows than
+	 * the threshold, and joins the results of the halves in order.
+	 */
+	private class ScanChunks extends RecursiveTask<IntList> {
+
+		private static final long serialVersionUID = 1L;
+
+		// start and end row of each chunk, one after another
+		private final int[] chunks;
+		private final int lo;
+		private final int hi;
+		private final int threshold;
+		private final RowFilter filter;
+
+		private ScanChunks(int[] chunks, int lo, int hi, int threshold, RowFilter filter) {
+			this.chunks = chunks;
+			this.lo = lo;
+			this.hi = hi;
+			this.threshold = threshold;
+			this.filter = filter;
+		}
+
+		@Override
+		protected IntList compute() {
+			long rows = 0;
+			for (int chunk = lo; chunk < hi; chunk++) {
+				rows += chunks[chunk * 2 + 1] - chunks[chunk * 2];
+			}
+			if (hi - lo > 1 && rows > threshold) {
+				int mid = (lo + hi) >>> 1;
+				ScanChunks left = new ScanChunks(chunks, lo, mid, threshold, filter);
+				left.fork();
+				IntList right = new ScanChunks(chunks, mid, hi, threshold, filter).compute();
+				IntList result = left.join();
+				result.addAll(right);
+				return result;
+			}
+			IntList result = new IntList();
+			for (int chunk = lo; chunk < hi; chunk++) {
+				scan(chunks[chunk * 2], chunks[chunk * 2 + 1], null, filter, result);
+			}
+			return result;
+		}
+	}
+
+}
@@ -0,0 +1,374 @@
+package com.breakingcode.unoptimised;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileDescriptor;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.commons.csv.CSVFormat;
+import org.apache.commons.csv.CSVPrinter;
+
+import com.breakingcode.unoptimised.data.FoodSafetyDataset;
+import com.breakingcode.unoptimised.data.FoodSafetyLoader;
+import com.breakingcode.unoptimised.data.FoodSafetyLoader.LoadResult;
+import com.breakingcode.unoptimised.data.IntList;
+import com.breakingcode.unoptimised.query.AuthorityPartitions;
+import com.breakingcode.unoptimised.query.FoodSafetyQueries;
+
+/**
+ * Non-interactive query mode, used when Main is given command line arguments.
+ *
+ * The dataset is loaded once, and then each query is run against it in turn,
+ * with every result written through one large buffered writer rather than a
+ * printf per row. Queries come from the arguments, or one per line from a file:
+ *
+ * <pre>
+ * --query name=Greggs --rating-above 3 --query authority=Wirral --rating-equal Exempt --format json
+ * --queries queries.txt --format csv --output results.csv
+ * </pre>
+ *
+ * Each query starts with {@code name=} (a business name, ignoring case) or
+ * {@code authority=} (a LocalAuthorityName), followed by any number of rating
+ * filters, all of which must match.
+ */
+class BatchMode {
+
+	private static final String USAGE = "Usage: Main [--directory DIR] [--format csv|json] [--output FILE]\n"
+			+ "            [--queries FILE] [--query name=NAME|authority=NAME [FILTER]...]...\n"
+			+ "Filters: --rating-above N, --rating-below N, --rating-between MIN MAX (exclusive),\n"
+			+ "         --rating-equal N|Exempt|AwaitingInspection";
+
+	private static final int BUFFER_SIZE = 1 << 16;
+
+	private enum Format {
+		CSV, JSON
+	}
+
+	private final FoodSafetyQueries queries;
+	private final FoodSafetyDataset dataset;
+	private final Format format;
+
+	private BatchMode(FoodSafetyQueries queries, Format format) {
+		this.queries = queries;
+		this.dataset = queries.getDataset();
+		this.format = format;
+	}
+
+	/**
+	 * Run the queries given on the command line.
+	 *
+	 * @param args Command line arguments
+	 * @return Exit status: 0 on success, 1 if the queries couldn't be run, and 2 if
+	 *         the arguments are invalid
+	 */
+	static int run(String[] args) {
+		String directory = Main.DIRECTORY;
+		Format format = Format.CSV;
+		String output = null;
+		List<Query> queryList = new ArrayList<Query>();
+		try {
+			for (int i = 0; i < args.length; i++) {
+				String arg = args[i];
+				if (arg.equals("--directory")) {
+					directory = value(args, ++i, arg);
+				} else if (arg.equals("--format")) {
+					format = parseFormat(value(args, ++i, arg));
+				} else if (arg.equals("--output")) {
+					output = value(args, ++i, arg);
+				} else if (arg.equals("--queries")) {
+					queryList.addAll(readQueries(new File(value(args, ++i, arg))));
+				} else if (arg.equals("--query")) {
+					queryList.add(new Query(value(args, ++i, arg)));
+				} else if (arg.startsWith("--rating-")) {
+					if (queryList.isEmpty()) {
+						throw new IllegalArgumentException(arg + " must follow a --query");
+					}
+					i = queryList.get(queryList.size() - 1).addFilter(args, i);
+				} else {
+					throw new IllegalArgumentException("Unknown argument: " + arg);
+				}
+			}
+		} catch (IOException e) {
+			System.err.println("Unable to read queries: " + e.getMessage());
+			return 1;
+		} catch (IllegalArgumentException e) {
+			System.err.println(e.getMessage());
+			System.err.println(USAGE);
+			return 2;
+		}
+
+		LoadResult result;
+		try {
+			result = new FoodSafetyLoader(Runtime.getRuntime().availableProcessors(), new File(Main.SNAPSHOT))
+					.load(new File(directory));
+		} catch (IOException e) {
+			System.err.println("Unable to load directory \'" + directory + "\': " + e.getMessage());
+			return 1;
+		}
+		for (Map.Entry<String, Throwable> failure : result.getFailures().entrySet()) {
+			System.err.println("Failed to load " + failure.getKey() + ": " + failure.getValue());
+		}
+
+		BatchMode batch = new BatchMode(new FoodSafetyQueries(result.getDataset()), format);
+		// write straight to the file descriptor, as System.out flushes on every line
+		try (Writer out = new BufferedWriter(new OutputStreamWriter(
+				output == null ? new FileOutputStream(FileDescriptor.out) : new FileOutputStream(output),
+				StandardCharsets.UTF_8), BUFFER_SIZE)) {
+			batch.write(queryList, out);
+		} catch (IOException e) {
+			System.err.println("Unable to write results: " + e.getMessage());
+			return 1;
+		}
+		return 0;
+	}
+
+	private static String value(String[] args, int i, String option) {
+		if (i >= args.length) {
+			throw new IllegalArgumentException(option + " needs a value");
+		}
+		return args[i];
+	}
+
+	private static Format parseFormat(String value) {
+		try {
+			return Format.valueOf(value.toUpperCase());
+		} catch (IllegalArgumentException e) {
+			throw new IllegalArgumentException("Unknown format: " + value);
+		}
+	}
+
+	/**
+	 * Read a file of queries, one per line, each written as it would be after a
+	 * --query argument. Blank lines and lines starting with # are ignored.
+	 */
+	private static List<Query> readQueries(File file) throws IOException {
+		List<Query> result = new ArrayList<Query>();
+		try (BufferedReader in = new BufferedReader(
+				new InputStreamReader(new FileInputStream(file), StandardCharsets.UTF_8))) {
+			String line;
+			while ((line = in.readLine()) != null) {
+				line = line.trim();
+				if (line.isEmpty() || line.startsWith("#")) {
+					continue;
+				}
+				String[] tokens = tokenise(line);
+				Query query = new Query(tokens[0]);
+				for (int i = 1; i < tokens.length; i++) {
+					if (!tokens[i].startsWith("--rating-")) {
+						throw new IllegalArgumentException("Unknown filter in " + file + ": " + tokens[i]);
+					}
+					i = query.addFilter(tokens, i);
+				}
+				result.add(query);
+			}
+		}
+		return result;
+	}
+
+	/**
+	 * Split a line on whitespace, keeping anything in double quotes together.
+	 */
+	private static String[] tokenise(String line) {
+		List<String> tokens = new ArrayList<String>();
+		StringBuilder token = new StringBuilder();
+		boolean quoted = false;
+		boolean inToken = false;
+		for (int i = 0; i < line.length(); i++) {
+			char c = line.charAt(i);
+			if (c == '"') {
+				quoted = !quoted;
+				inToken = true;
+			} else if (Character.isWhitespace(c) && !quoted) {
+				if (inToken) {
+					tokens.add(token.toString());
+					token.setLength(0);
+					inToken = false;
+				}
+			} else {
+				token.append(c);
+				inToken = true;
+			}
+		}
+		if (inToken) {
+			tokens.add(token.toString());
+		}
+		return tokens.toArray(new String[tokens.size()]);
+	}
+
+	private void write(List<Query> queryList, Writer out) throws IOException {
+		if (format == Format.CSV) {
+			CSVPrinter printer = new CSVPrinter(out, CSVFormat.DEFAULT.withHeader("Query", "FHRSID", "BusinessName",
+					"BusinessType", "AddressLine1", "PostCode", "LocalAuthorityName", "RatingValue", "RatingDate",
+					"Scores/Hygiene", "Scores/Structural", "Scores/ConfidenceInManagement"));
+			for (Query query : queryList) {
+				IntList rows = query.run(queries);
+				for (int i = 0; i < rows.size(); i++) {
+					int row = rows.get(i);
+					printer.printRecord(query.text.toString(), dataset.getFhrsid(row), dataset.getBusinessName(row),
+							dataset.getBusinessType(row), dataset.getAddressLine1(row), dataset.getPostCode(row),
+							dataset.getLocalAuthorityName(row), dataset.getRatingValue(row), Json.formatDate(dataset, row),
+							dataset.getHygieneScore(row), dataset.getStructuralScore(row),
+							dataset.getConfidenceInManagementScore(row));
+				}
+			}
+			printer.flush();
+		} else {
+			// one JSON object per line, per query
+			for (Query query : queryList) {
+				IntList rows = query.run(queries);
+				out.write("{\"query\":");
+				Json.writeString(out, query.text.toString());
+				out.write(",\"count\":");
+				out.write(Integer.toString(rows.size()));
+				out.write(",\"results\":");
+				Json.writeRows(out, dataset, rows);
+				out.write("}\n");
+			}
+		}
+	}
+
+	/**
+	 * A single query: the premises with a business name or in an authority,
+	 * narrowed down by rating filters.
+	 */
+	private static class Query {
+
+		private final StringBuilder text;
+		private final String name;
+		private final String authority;
+		private final List<String[]> filters = new ArrayList<String[]>();
+
+		private Query(String query) {
+			this.text = new StringBuilder(query);
+			if (query.startsWith("name=")) {
+				name = query.substring("name=".length());
+				authority = null;
+			} else if (query.startsWith("authority=")) {
+				name = null;
+				authority = query.substring("authority=".length());
+			} else {
+				throw new IllegalArgumentException("Query must start with name= or authority=: " + query);
+			}
+		}
+
+		/**
+		 * Add the rating filter at args[i], checking its values.
+		 *
+		 * @return Index of the filter's last value
+		 */
+		private int addFilter(String[] args, int i) {
+			String option = args[i];
+			int values;
+			if (option.equals("--rating-above") || option.equals("--rating-below")) {
+				values = 1;
+			} else if (option.equals("--rating-between")) {
+				values = 2;
+			} else if (option.equals("--rating-equal")) {
+				values = 1;
+			} else {
+				throw new IllegalArgumentException("Unknown filter: " + option);
+			}
+			String[] filter = new String[values + 1];
+			filter[0] = option;
+			text.append(' ').append(option);
+			for (int v = 1; v <= values; v++) {
+				filter[v] = value(args, i + v, option);
+				if (option.equals("--rating-equal")) {
+					rating(filter[v]);
+				} else {
+					number(filter[v], option);
+				}
+				text.append(' ').append(filter[v]);
+			}
+			filters.add(filter);
+			return i + values;
+		}
+
+		private IntList run(FoodSafetyQueries queries) {
+			AuthorityPartitions.RowFilter filter = ratingFilter(queries);
+			if (authority != null) {
+				// only the authority's own rows are read
+				return queries.filterPremises(Collections.singletonList(authority), filter);
+			}
+			IntList premises = queries.findPremises(name);
+			if (filter == null) {
+				return premises;
+			}
+			IntList result = new IntList();
+			for (int i = 0; i < premises.size(); i++) {
+				if (filter.accept(premises.get(i))) {
+					result.add(premises.get(i));
+				}
+			}
+			return result;
+		}
+
+		/**
+		 * Make one test of the rating of a row out of every filter, so only the rows
+		 * a query selects are tested rather than a bitmap of every row built for each
+		 * filter.
+		 *
+		 * @return Filter matching every filter of this query, or null if it has none
+		 */
+		private AuthorityPartitions.RowFilter ratingFilter(final FoodSafetyQueries queries) {
+			if (filters.isEmpty()) {
+				return null;
+			}
+			// every filter is a range of ratings, so together they are one range (both exclusive)
+			long lower = Long.MIN_VALUE;
+			long upper = Long.MAX_VALUE;
+			for (String[] filter : filters) {
+				if (filter[0].equals("--rating-above")) {
+					lower = Math.max(lower, Integer.parseInt(filter[1]));
+				} else if (filter[0].equals("--rating-below")) {
+					upper = Math.min(upper, Integer.parseInt(filter[1]));
+				} else if (filter[0].equals("--rating-between")) {
+					lower = Math.max(lower, Integer.parseInt(filter[1]));
+					upper = Math.min(upper, Integer.parseInt(filter[2]));
+				} else {
+					int rating = rating(filter[1]);
+					lower = Math.max(lower, rating - 1L);
+					upper = Math.min(upper, rating + 1L);
+				}
+			}
+			final long above = lower;
+			final long below = upper;
+			return new AuthorityPartitions.RowFilter() {
+				@Override
+				public boolean accept(int row) {
+					// as with the rating index, no filter matches a rating which can't be read
+					int rating = queries.getRating(row);
+					return rating != FoodSafetyQueries.NO_RATING && rating > above && rating < below;
+				}
+			};
+		}
+
+		private static int number(String value, String option) {
+			try {
+				return Integer.parseInt(value);
+			} catch (NumberFormatException e) {
+				throw new IllegalArgumentException(option + " needs a number, not " + value);
+			}
+		}
+
+		private static int rating(String value) {
+			int rating = FoodSafetyQueries.ratingValueOf(value.replace(" ", ""));
+			if (rating == FoodSafetyQueries.NO_RATING) {
+				throw new IllegalArgumentException("Unknown rating: " + value);
+			}
+			return rating;
+		}
+	}
+
+}
@@ -0,0 +1,149 @@
+package com.breakingcode.unoptimised.query;
+
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Set;
+
+import com.breakingcode.unoptimised.data.FoodSafetyDataset;
+import com.breakingcode.unoptimised.data.IntList;
+import com.breakingcode.unoptimised.data.StringDictionary;
+
+/**
+ * Case insensitive index from business name to the rows of every premises with
+ * that name.
+ *
+ * Built once after the dataset is loaded, so a lookup is a single hash map get
+ * rather than a scan over every row.
+ */
+public class BusinessNameIndex {
+
+	private static final int[] NO_ROWS = new int[0];
+
+	private final Map<String, int[]> rowsByName;
+	// first spelling seen of each normalised name
+	private final Map<String, String> namesByKey = new HashMap<String, String>();
+
+	/**
+	 * @param dataset Dataset to be indexed
+	 */
+	public BusinessNameIndex(FoodSafetyDataset dataset) {
+		this(dataset, null);
+	}
+
+	/**
+	 * @param dataset  Dataset to be indexed
+	 * @param included Rows to be indexed, or null for every row; names without
+	 *                 any of these rows aren't indexed
+	 */
+	public BusinessNameIndex(FoodSafetyDataset dataset, BitSet included) {
+		// normalise each distinct name once, sharing a key between names which only
+		// differ by case
+		StringDictionary names = dataset.getBusinessNameDictionary();
+		Map<String, IntList> lists = new HashMap<String, IntList>();
+		String[] keyByCode = new String[names.size()];
+		IntList[] listByCode = new IntList[names.size()];
+		for (int code = 0; code < listByCode.length; code++) {
+			String key = normalise(names.decode(code));
+			IntList rows = lists.get(key);
+			if (rows == null) {
+				rows = new IntList(4);
+				lists.put(key, rows);
+			}
+			keyByCode[code] = key;
+			listByCode[code] = rows;
+		}
+
+		BitSet used = new BitSet(names.size());
+		for (int row = 0; row < dataset.size(); row++) {
+			if (included == null || included.get(row)) {
+				int code = dataset.getBusinessNameCode(row);
+				listByCode[code].add(row);
+				used.set(code);
+			}
+		}
+		// spell each name as its first spelling which is still in use
+		for (int code = used.nextSetBit(0); code >= 0; code = used.nextSetBit(code + 1)) {
+			if (!namesByKey.containsKey(keyByCode[code])) {
+				namesByKey.put(keyByCode[code], names.decode(code));
+			}
+		}
+
+		rowsByName = new HashMap<String, int[]>((int) (lists.size() / 0.75f) + 1);
+		for (Map.Entry<String, IntList> entry : lists.entrySet()) {
+			// such as a name whose every premises has a newer rating under another name
+			if (!entry.getValue().isEmpty()) {
+				rowsByName.put(entry.getKey(), entry.getValue().toArray());
+			}
+		}
+	}
+
+	/**
+	 * Utility function to normalise a name so that two names have the same
+	 * normalised form exactly when String.equalsIgnoreCase considers them equal.
+	 *
+	 * @param name Name to be normalised
+	 * @return Normalised name
+	 */
+	public static String normalise(String name) {
+		if (name == null) {
+			return null;
+		}
+		char[] chars = name.toCharArray();
+		for (int i = 0; i < chars.length; i++) {
+			chars[i] = Character.toLowerCase(Character.toUpperCase(chars[i]));
+		}
+		return new String(chars);
+	}
+
+	/**
+	 * @param name Business name to look up (ignoring case)
+	 * @return Row ids of the premises with that name, in row order
+	 */
+	public int[] get(String name) {
+		int[] rows = rows(name);
+		return Arrays.copyOf(rows, rows.length);
+	}
+
+	/**
+	 * Same as {@link #get(String)}, but returns the array held by the index, which
+	 * must not be modified.
+	 */
+	int[] rows(String name) {
+		int[] rows = rowsByName.get(normalise(name));
+		return rows == null ? NO_ROWS : rows;
+	}
+
+	/**
+	 * @return Every normalised name in this index
+	 */
+	Set<String> keys() {
+		return rowsByName.keySet();
+	}
+
+	/**
+	 * @param key Normalised name
+	 * @return Spelling of the name as it appears in the dataset
+	 */
+	String nameOf(String key) {
+		return namesByKey.get(key);
+	}
+
+	/**
+	 * @param key Normalised name
+	 * @return Number of premises with that name
+	 */
+	int countOf(String key) {
+		int[] rows = rowsByName.get(key);
+		return rows == null ? 0 : rows.length;
+	}
+
+	/**
+	 * @return Number of distinct (case insensitive) names in this index
+	 */
+	public int size() {
+		return rowsByName.size();
+	}
+
+}
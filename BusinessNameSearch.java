@@ -0,0 +1,304 @@
+package com.breakingcode.unoptimised.query;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.PriorityQueue;
+
+/**
+ * Prefix and typo tolerant search over the distinct business names of a
+ * dataset.
+ *
+ * Names are held normalised and sorted, which makes the array an implicit trie:
+ * every prefix is a contiguous range of it. Prefix searches find that range with
+ * two binary searches and pick the names with the most premises from it using a
+ * segment tree. Fuzzy searches walk the implicit trie one character at a time,
+ * carrying a row of the Levenshtein distance table, and skip any branch which
+ * can no longer come within the allowed distance.
+ */
+public class BusinessNameSearch {
+
+	private final String[] keys;
+	private final String[] names;
+	private final int[] premises;
+	// segment tree holding, for each node, the index of the name with the most premises
+	private final int[] tree;
+
+	/**
+	 * @param index Index holding the names to be searched
+	 */
+	public BusinessNameSearch(BusinessNameIndex index) {
+		List<String> sorted = new ArrayList<String>(index.keys().size());
+		for (String key : index.keys()) {
+			if (key != null) {
+				sorted.add(key);
+			}
+		}
+		Collections.sort(sorted);
+
+		keys = sorted.toArray(new String[sorted.size()]);
+		names = new String[keys.length];
+		premises = new int[keys.length];
+		for (int i = 0; i < keys.length; i++) {
+			names[i] = index.nameOf(keys[i]);
+			premises[i] = index.countOf(keys[i]);
+		}
+
+		tree = new int[Math.max(2 * keys.length, 1)];
+		for (int i = 0; i < keys.length; i++) {
+			tree[keys.length + i] = i;
+		}
+		for (int node = keys.length - 1; node > 0; node--) {
+			tree[node] = better(tree[2 * node], tree[2 * node + 1]);
+		}
+	}
+
+	/**
+	 * Find the names starting with the given prefix (ignoring case), with the
+	 * names that have the most premises first.
+	 *
+	 * @param prefix Start of a business name
+	 * @param limit  Maximum number of names to return
+	 * @return Matching names
+	 */
+	public List<NameMatch> complete(String prefix, int limit) {
+		if (limit <= 0) {
+			return new ArrayList<NameMatch>();
+		}
+		String key = BusinessNameIndex.normalise(prefix);
+		int lo = lowerBound(key);
+		int hi = prefixEnd(key, lo);
+
+		List<NameMatch> matches = new ArrayList<NameMatch>(Math.max(Math.min(limit, hi - lo), 0));
+		if (lo >= hi) {
+			return matches;
+		}
+
+		// best first search over the range, splitting it either side of each result
+		PriorityQueue<int[]> ranges = new PriorityQueue<int[]>(new Comparator<int[]>() {
+			@Override
+			public int compare(int[] o1, int[] o2) {
+				return o1[2] == o2[2] ? 0 : better(o1[2], o2[2]) == o1[2] ? -1 : 1;
+			}
+		});
+		ranges.add(new int[] { lo, hi, maxIn(lo, hi) });
+		while (!ranges.isEmpty() && matches.size() < limit) {
+			int[] range = ranges.poll();
+			int best = range[2];
+			matches.add(new NameMatch(names[best], 0, premises[best]));
+			if (range[0] < best) {
+				ranges.add(new int[] { range[0], best, maxIn(range[0], best) });
+			}
+			if (best + 1 < range[1]) {
+				ranges.add(new int[] { best + 1, range[1], maxIn(best + 1, range[1]) });
+			}
+		}
+		return matches;
+	}
+
+	/**
+	 * Find the names within the given edit distance of the query (ignoring case),
+	 * closest first, and then those with the most premises first.
+	 *
+	 * @param query       Business name, possibly misspelt
+	 * @param maxDistance Maximum number of single character insertions, deletions
+	 *                    or substitutions
+	 * @param limit       Maximum number of names to return
+	 * @return Matching names
+	 */
+	public List<NameMatch> search(String query, int maxDistance, int limit) {
+		if (limit <= 0 || keys.length == 0) {
+			return new ArrayList<NameMatch>();
+		}
+		String key = BusinessNameIndex.normalise(query);
+		int[] firstRow = new int[key.length() + 1];
+		for (int i = 0; i < firstRow.length; i++) {
+			firstRow[i] = i;
+		}
+
+		// keeps the worst of the best matches so far at its head
+		PriorityQueue<NameMatch> best = new PriorityQueue<NameMatch>(Math.min(limit, keys.length),
+				Collections.reverseOrder(NameMatch.RANKING));
+		search(key, 0, keys.length, 0, firstRow, maxDistance, limit, best);
+
+		NameMatch[] matches = best.toArray(new NameMatch[best.size()]);
+		Arrays.sort(matches, NameMatch.RANKING);
+		return Arrays.asList(matches);
+	}
+
+	/**
+	 * Search the names in [lo, hi), which all share their first depth characters,
+	 * given the row of the distance table for that shared prefix.
+	 */
+	private void search(String query, int lo, int hi, int depth, int[] previous, int maxDistance, int limit,
+			PriorityQueue<NameMatch> best) {
+		int i = lo;
+		// a name equal to the shared prefix sorts first
+		if (keys[i].length() == depth) {
+			offer(best, new NameMatch(names[i], previous[query.length()], premises[i]), maxDistance, limit);
+			i++;
+		}
+
+		while (i < hi) {
+			char c = keys[i].charAt(depth);
+			int end = charEnd(c, depth, i, hi);
+
+			int[] row = new int[previous.length];
+			row[0] = previous[0] + 1;
+			int min = row[0];
+			for (int j = 1; j < row.length; j++) {
+				int substitution = previous[j - 1] + (query.charAt(j - 1) == c ? 0 : 1);
+				row[j] = Math.min(substitution, Math.min(row[j - 1], previous[j]) + 1);
+				min = Math.min(min, row[j]);
+			}
+			if (min <= maxDistance) {
+				search(query, i, end, depth + 1, row, maxDistance, limit, best);
+			}
+			i = end;
+		}
+	}
+
+	private void offer(PriorityQueue<NameMatch> best, NameMatch match, int maxDistance, int limit) {
+		if (match.distance > maxDistance) {
+			return;
+		}
+		if (best.size() < limit) {
+			best.add(match);
+		} else if (NameMatch.RANKING.compare(match, best.peek()) < 0) {
+			best.poll();
+			best.add(match);
+		}
+	}
+
+	/**
+	 * @return Index of the first key in [lo, hi) whose character at depth is after c
+	 */
+	private int charEnd(char c, int depth, int lo, int hi) {
+		while (lo < hi) {
+			int mid = (lo + hi) >>> 1;
+			if (keys[mid].charAt(depth) <= c) {
+				lo = mid + 1;
+			} else {
+				hi = mid;
+			}
+		}
+		return lo;
+	}
+
+	/**
+	 * @return Index of the first key which isn't less than the given key
+	 */
+	private int lowerBound(String key) {
+		int lo = 0;
+		int hi = keys.length;
+		while (lo < hi) {
+			int mid = (lo + hi) >>> 1;
+			if (keys[mid].compareTo(key) < 0) {
+				lo = mid + 1;
+			} else {
+				hi = mid;
+			}
+		}
+		return lo;
+	}
+
+	/**
+	 * @return Index of the first key from lo onwards which doesn't start with prefix
+	 */
+	private int prefixEnd(String prefix, int lo) {
+		int hi = keys.length;
+		while (lo < hi) {
+			int mid = (lo + hi) >>> 1;
+			if (keys[mid].startsWith(prefix)) {
+				lo = mid + 1;
+			} else {
+				hi = mid;
+			}
+		}
+		return lo;
+	}
+
+	/**
+	 * @return Index of the name with the most premises in [lo, hi)
+	 */
+	private int maxIn(int lo, int hi) {
+		int result = lo;
+		for (lo += keys.length, hi += keys.length; lo < hi; lo >>= 1, hi >>= 1) {
+			if ((lo & 1) == 1) {
+				result = better(result, tree[lo++]);
+			}
+			if ((hi & 1) == 1) {
+				result = better(result, tree[--hi]);
+			}
+		}
+		return result;
+	}
+
+	/**
+	 * @return Whichever name has more premises, or the first name on a tie
+	 */
+	private int better(int a, int b) {
+		if (premises[a] != premises[b]) {
+			return premises[a] > premises[b] ? a : b;
+		}
+		return Math.min(a, b);
+	}
+
+	/**
+	 * @return Number of distinct names which can be searched
+	 */
+	public int size() {
+		return keys.length;
+	}
+
+	/**
+	 * A business name found by a search.
+	 */
+	public static class NameMatch {
+
+		/** Closest first, then most premises first, then by name */
+		static final Comparator<NameMatch> RANKING = new Comparator<NameMatch>() {
+			@Override
+			public int compare(NameMatch o1, NameMatch o2) {
+				if (o1.distance != o2.distance) {
+					return Integer.compare(o1.distance, o2.distance);
+				}
+				if (o1.premises != o2.premises) {
+					return Integer.compare(o2.premises, o1.premises);
+				}
+				return o1.name.compareTo(o2.name);
+			}
+		};
+
+		private final String name;
+		private final int distance;
+		private final int premises;
+
+		NameMatch(String name, int distance, int premises) {
+			this.name = name;
+			this.distance = distance;
+			this.premises = premises;
+		}
+
+		public String getName() {
+			return name;
+		}
+
+		/**
+		 * @return Edit distance between the name and the query (0 for prefix matches)
+		 */
+		public int getDistance() {
+			return distance;
+		}
+
+		/**
+		 * @return Number of premises with this name
+		 */
+		public int getPremises() {
+			return premises;
+		}
+	}
+
+}
@@ -0,0 +1,33 @@
+package com.breakingcode.unoptimised.metrics;
+
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Count of events, such as rows parsed, which can be added to from any number
+ * of threads at once.
+ */
+public class Counter implements CounterMBean {
+
+	private final LongAdder count = new LongAdder();
+
+	Counter() {
+	}
+
+	public void increment() {
+		if (Metrics.ENABLED) {
+			count.increment();
+		}
+	}
+
+	public void add(long amount) {
+		if (Metrics.ENABLED) {
+			count.add(amount);
+		}
+	}
+
+	@Override
+	public long getCount() {
+		return count.sum();
+	}
+
+}
@@ -0,0 +1,10 @@
+package com.breakingcode.unoptimised.metrics;
+
+/**
+ * JMX view of a {@link Counter}.
+ */
+public interface CounterMBean {
+
+	long getCount();
+
+}
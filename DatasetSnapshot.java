@@ -0,0 +1,387 @@
+package com.breakingcode.unoptimised.data;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.CRC32;
+import java.util.zip.CheckedOutputStream;
+
+/**
+ * Binary snapshot of the dataset loaded from a directory of CSV files, so it
+ * doesn't need parsing again on the next start.
+ *
+ * The snapshot holds the merged dataset of every file, along with an entry per
+ * CSV file recording the file's name, size, modification time and the range of
+ * rows it was loaded into. While every file still matches its entry the whole
+ * dataset is used as it is; otherwise the rows of the files which still match
+ * are copied out of it, and only the changed files are parsed again.
+ *
+ * Layout (big endian): magic, version and entry count, followed by each entry
+ * as name, size, modification time, first row and row count, and then the data
+ * length, CRC32 of the data and the data written by
+ * {@link FoodSafetyDataset#writeTo(DataOutputStream)}.
+ */
+class DatasetSnapshot {
+
+	private static final int MAGIC = 0x46485253; // "FHRS"
+	private static final int VERSION = 4;
+
+	private static final int CHUNK_SIZE = 8192;
+
+	private final Map<String, Entry> entries;
+	private final ByteBuffer data;
+	private final long checksum;
+	private FoodSafetyDataset dataset;
+
+	private DatasetSnapshot(Map<String, Entry> entries, ByteBuffer data, long checksum) {
+		this.entries = entries;
+		this.data = data;
+		this.checksum = checksum;
+	}
+
+	/**
+	 * The rows loaded from a single CSV file.
+	 */
+	static class Entry {
+
+		private final String name;
+		private final long size;
+		private final long modified;
+		private final int firstRow;
+		private final int rowCount;
+
+		/**
+		 * Create an entry for a CSV file as it is now, before it is parsed, so a
+		 * change made while parsing invalidates the entry.
+		 *
+		 * @param file CSV file the rows will be parsed from
+		 */
+		Entry(File file) {
+			this(file.getName(), file.length(), file.lastModified(), 0, 0);
+		}
+
+		private Entry(String name, long size, long modified, int firstRow, int rowCount) {
+			this.name = name;
+			this.size = size;
+			this.modified = modified;
+			this.firstRow = firstRow;
+			this.rowCount = rowCount;
+		}
+
+		/**
+		 * @return Copy of this entry for the file's rows at the given position
+		 */
+		Entry withRows(int firstRow, int rowCount) {
+			return new Entry(name, size, modified, firstRow, rowCount);
+		}
+
+		/**
+		 * @return Whether this entry was taken from the given file as it is now
+		 */
+		boolean matches(File file) {
+			return name.equals(file.getName()) && size == file.length() && modified == file.lastModified();
+		}
+
+		int getFirstRow() {
+			return firstRow;
+		}
+
+		int getRowCount() {
+			return rowCount;
+		}
+	}
+
+	/**
+	 * @return Entry for each CSV file in the snapshot, by file name
+	 */
+	Map<String, Entry> getEntries() {
+		return Collections.unmodifiableMap(entries);
+	}
+
+	/**
+	 * @return Whether the entries cover exactly the given files, all unchanged
+	 */
+	static boolean matches(Map<String, Entry> entries, List<File> files) {
+		if (entries.size() != files.size()) {
+			return false;
+		}
+		for (File file : files) {
+			Entry entry = entries.get(file.getName());
+			if (entry == null || !entry.matches(file)) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * @return Dataset held by the snapshot, decoding it on first use
+	 * @throws IOException if the data is corrupt
+	 */
+	FoodSafetyDataset getDataset() throws IOException {
+		if (dataset == null) {
+			CRC32 crc = new CRC32();
+			crc.update(data.duplicate());
+			if (crc.getValue() != checksum) {
+				throw new IOException("Checksum mismatch in snapshot");
+			}
+			FoodSafetyDataset decoded;
+			try {
+				decoded = FoodSafetyDataset.readFrom(data.duplicate());
+			} catch (BufferUnderflowException | IllegalArgumentException | IndexOutOfBoundsException
+					| NegativeArraySizeException e) {
+				throw new IOException("Corrupt snapshot", e);
+			}
+			for (Entry entry : entries.values()) {
+				if (entry.firstRow < 0 || entry.rowCount < 0 || entry.firstRow > decoded.size() - entry.rowCount) {
+					throw new IOException("Corrupt snapshot entry for " + entry.name);
+				}
+			}
+			dataset = decoded;
+		}
+		return dataset;
+	}
+
+	/**
+	 * Map a snapshot file and read its entries. The dataset itself is only decoded
+	 * when it is used.
+	 *
+	 * @param file Snapshot file
+	 * @return Snapshot, or null if there is no snapshot for this version
+	 * @throws IOException if the snapshot can't be read or is corrupt
+	 */
+	static DatasetSnapshot read(File file) throws IOException {
+		if (!file.isFile()) {
+			return null;
+		}
+
+		MappedByteBuffer buffer;
+		try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+			buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+		}
+
+		try {
+			if (buffer.getInt() != MAGIC || buffer.getInt() != VERSION) {
+				// written by another version, so it will just be replaced
+				return null;
+			}
+			int count = buffer.getInt();
+			checkRemaining(buffer, count, 1);
+			Map<String, Entry> entries = new HashMap<String, Entry>(count * 4 / 3 + 1);
+			for (int i = 0; i < count; i++) {
+				Entry entry = new Entry(readString(buffer), buffer.getLong(), buffer.getLong(), buffer.getInt(),
+						buffer.getInt());
+				entries.put(entry.name, entry);
+			}
+			long length = buffer.getLong();
+			long checksum = buffer.getLong();
+			if (length < 0 || length > buffer.remaining()) {
+				throw new BufferUnderflowException();
+			}
+			ByteBuffer data = buffer.slice();
+			data.limit((int) length);
+			return new DatasetSnapshot(entries, data, checksum);
+		} catch (BufferUnderflowException | IllegalArgumentException | IndexOutOfBoundsException
+				| NegativeArraySizeException e) {
+			throw new IOException("Corrupt snapshot: " + file, e);
+		}
+	}
+
+	/**
+	 * Write a snapshot file, replacing any existing snapshot once it has been
+	 * written in full.
+	 *
+	 * The snapshot is written to a temporary file next to it, which is forced to
+	 * disk and then renamed over the old snapshot in one atomic move, where the
+	 * file system supports it, so a crash leaves either the old snapshot or the
+	 * new one. The temporary file is deleted if anything fails.
+	 *
+	 * @param file    Snapshot file
+	 * @param entries Entry for each CSV file whose rows are in the dataset
+	 * @param dataset Merged dataset of every CSV file
+	 * @throws IOException if the snapshot can't be written
+	 */
+	static void write(File file, Collection<Entry> entries, FoodSafetyDataset dataset) throws IOException {
+		File temp = new File(file.getPath() + ".tmp");
+		boolean moved = false;
+		try {
+			writeTemp(temp, entries, dataset);
+			try {
+				Files.move(temp.toPath(), file.toPath(), StandardCopyOption.ATOMIC_MOVE,
+						StandardCopyOption.REPLACE_EXISTING);
+			} catch (AtomicMoveNotSupportedException e) {
+				Files.move(temp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING);
+			}
+			moved = true;
+		} finally {
+			if (!moved) {
+				temp.delete();
+			}
+		}
+	}
+
+	private static void writeTemp(File temp, Collection<Entry> entries, FoodSafetyDataset dataset)
+			throws IOException {
+		try (FileOutputStream fileOut = new FileOutputStream(temp)) {
+			BufferedOutputStream buffered = new BufferedOutputStream(fileOut, 1 << 16);
+			DataOutputStream out = new DataOutputStream(buffered);
+			out.writeInt(MAGIC);
+			out.writeInt(VERSION);
+			out.writeInt(entries.size());
+			for (Entry entry : entries) {
+				writeString(out, entry.name);
+				out.writeLong(entry.size);
+				out.writeLong(entry.modified);
+				out.writeInt(entry.firstRow);
+				out.writeInt(entry.rowCount);
+			}
+			// data length and checksum aren't known until the data is written, so are filled in after
+			long lengthPosition = out.size();
+			out.writeLong(0);
+			out.writeLong(0);
+
+			// the data is streamed straight to the file, rather than held in memory to be checksummed
+			CRC32 checksum = new CRC32();
+			DataOutputStream dataOut = new DataOutputStream(new CheckedOutputStream(buffered, checksum));
+			dataset.writeTo(dataOut);
+			dataOut.flush();
+
+			FileChannel channel = fileOut.getChannel();
+			long length = channel.position() - lengthPosition - 16;
+			ByteBuffer header = ByteBuffer.allocate(16);
+			header.putLong(length).putLong(checksum.getValue());
+			header.flip();
+			while (header.hasRemaining()) {
+				channel.write(header, lengthPosition + header.position());
+			}
+			channel.force(true);
+		}
+	}
+
+	// Encoding helpers shared with FoodSafetyDataset
+
+	static void writeString(DataOutputStream out, String value) throws IOException {
+		if (value == null) {
+			out.writeInt(-1);
+			return;
+		}
+		byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+		out.writeInt(bytes.length);
+		out.write(bytes);
+	}
+
+	static String readString(ByteBuffer in) {
+		int length = in.getInt();
+		if (length < 0) {
+			return null;
+		}
+		checkRemaining(in, length, 1);
+		byte[] bytes = new byte[length];
+		in.get(bytes);
+		return new String(bytes, StandardCharsets.UTF_8);
+	}
+
+	static byte[] readBytes(ByteBuffer in, int count) {
+		checkRemaining(in, count, 1);
+		byte[] values = new byte[count];
+		in.get(values);
+		return values;
+	}
+
+	static void writeShorts(DataOutputStream out, short[] values, int count) throws IOException {
+		ByteBuffer chunk = ByteBuffer.allocate(CHUNK_SIZE);
+		for (int i = 0; i < count; i += CHUNK_SIZE / 2) {
+			int length = Math.min(CHUNK_SIZE / 2, count - i);
+			chunk.clear();
+			chunk.asShortBuffer().put(values, i, length);
+			out.write(chunk.array(), 0, length * 2);
+		}
+	}
+
+	static short[] readShorts(ByteBuffer in, int count) {
+		checkRemaining(in, count, 2);
+		short[] values = new short[count];
+		in.asShortBuffer().get(values);
+		in.position(in.position() + count * 2);
+		return values;
+	}
+
+	static void writeInts(DataOutputStream out, int[] values, int count) throws IOException {
+		ByteBuffer chunk = ByteBuffer.allocate(CHUNK_SIZE);
+		for (int i = 0; i < count; i += CHUNK_SIZE / 4) {
+			int length = Math.min(CHUNK_SIZE / 4, count - i);
+			chunk.clear();
+			chunk.asIntBuffer().put(values, i, length);
+			out.write(chunk.array(), 0, length * 4);
+		}
+	}
+
+	static int[] readInts(ByteBuffer in, int count) {
+		checkRemaining(in, count, 4);
+		int[] values = new int[count];
+		in.asIntBuffer().get(values);
+		in.position(in.position() + count * 4);
+		return values;
+	}
+
+	static void writeDoubles(DataOutputStream out, double[] values, int count) throws IOException {
+		ByteBuffer chunk = ByteBuffer.allocate(CHUNK_SIZE);
+		for (int i = 0; i < count; i += CHUNK_SIZE / 8) {
+			int length = Math.min(CHUNK_SIZE / 8, count - i);
+			chunk.clear();
+			chunk.asDoubleBuffer().put(values, i, length);
+			out.write(chunk.array(), 0, length * 8);
+		}
+	}
+
+	static double[] readDoubles(ByteBuffer in, int count) {
+		checkRemaining(in, count, 8);
+		double[] values = new double[count];
+		in.asDoubleBuffer().get(values);
+		in.position(in.position() + count * 8);
+		return values;
+	}
+
+	/**
+	 * Checks a count read from the snapshot before allocating anything for it, so
+	 * a corrupt count fails rather than trying to allocate a huge array.
+	 */
+	private static void checkRemaining(ByteBuffer in, int count, int width) {
+		if (count < 0 || count > in.remaining() / width) {
+			throw new BufferUnderflowException();
+		}
+	}
+
+	static void writeLongs(DataOutputStream out, long[] values) throws IOException {
+		out.writeInt(values.length);
+		for (long value : values) {
+			out.writeLong(value);
+		}
+	}
+
+	static long[] readLongs(ByteBuffer in) {
+		int count = in.getInt();
+		checkRemaining(in, count, 8);
+		long[] values = new long[count];
+		in.asLongBuffer().get(values);
+		in.position(in.position() + values.length * 8);
+		return values;
+	}
+
+}
@@ -0,0 +1,157 @@
+package com.breakingcode.unoptimised.data;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.FileSystems;
+import java.nio.file.Path;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.util.concurrent.TimeUnit;
+
+import com.breakingcode.unoptimised.data.FoodSafetyLoader.LoadResult;
+
+/**
+ * Watches a directory of FHRS CSV files, and reloads it in the background
+ * whenever a file is added, modified or removed.
+ *
+ * Reloads go through {@link FoodSafetyLoader#reload(File, LoadResult)}, so only
+ * the changed files are parsed. Each reload builds a new result rather than
+ * changing the current one, and hands it to the listener once it is complete;
+ * anything still using the old result carries on undisturbed.
+ */
+public class DatasetWatcher implements Closeable {
+
+	/** How long the directory must be quiet before reloading, so a file is reloaded once it's written */
+	private static final long QUIET_MILLIS = 500;
+
+	private final FoodSafetyLoader loader;
+	private final File directory;
+	private final Listener listener;
+	private final WatchService watchService;
+	private final Thread thread;
+	private LoadResult current;
+
+	/**
+	 * Receives the results of reloading the directory, on the watcher's thread.
+	 */
+	public interface Listener {
+
+		/**
+		 * @param result Result of a reload which found changed files
+		 */
+		void reloaded(LoadResult result);
+
+		/**
+		 * @param e Why the directory couldn't be reloaded, wrapping any unchecked
+		 *          exception thrown while reloading it
+		 */
+		void failed(IOException e);
+	}
+
+	/**
+	 * @param loader    Loader to reload the directory with
+	 * @param directory Directory holding one FHRS CSV file per authority
+	 * @param current   Result of the last load of the directory
+	 * @param listener  Listener for each reload
+	 * @throws IOException if the directory can't be watched
+	 */
+	public DatasetWatcher(FoodSafetyLoader loader, File directory, LoadResult current, Listener listener)
+			throws IOException {
+		this.loader = loader;
+		this.directory = directory;
+		this.current = current;
+		this.listener = listener;
+
+		watchService = FileSystems.getDefault().newWatchService();
+		directory.toPath().register(watchService, StandardWatchEventKinds.ENTRY_CREATE,
+				StandardWatchEventKinds.ENTRY_MODIFY, StandardWatchEventKinds.ENTRY_DELETE);
+
+		thread = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				watch();
+			}
+		}, "dataset-watcher");
+		thread.setDaemon(true);
+	}
+
+	/**
+	 * Start watching the directory.
+	 */
+	public void start() {
+		thread.start();
+	}
+
+	/**
+	 * Stop watching the directory. A reload already in progress is abandoned.
+	 */
+	@Override
+	public void close() throws IOException {
+		thread.interrupt();
+		watchService.close();
+	}
+
+	private void watch() {
+		try {
+			while (true) {
+				WatchKey key = watchService.take();
+				boolean relevant = drain(key);
+
+				// wait for the directory to settle, as files are written in several steps
+				while ((key = watchService.poll(QUIET_MILLIS, TimeUnit.MILLISECONDS)) != null) {
+					relevant |= drain(key);
+				}
+
+				if (relevant) {
+					reload();
+				}
+			}
+		} catch (InterruptedException | ClosedWatchServiceException e) {
+			// closed
+		}
+	}
+
+	/**
+	 * Take the events from a key and reset it.
+	 *
+	 * @return Whether any event could have changed a CSV file
+	 */
+	private boolean drain(WatchKey key) {
+		boolean relevant = false;
+		for (WatchEvent<?> event : key.pollEvents()) {
+			if (event.kind() == StandardWatchEventKinds.OVERFLOW) {
+				relevant = true;
+			} else if (((Path) event.context()).getFileName().toString().contains(".csv")) {
+				relevant = true;
+			}
+		}
+		key.reset();
+		return relevant;
+	}
+
+	/**
+	 * Reload the directory, reporting any failure to the listener rather than
+	 * letting it stop the watcher. The result is only kept as the current one once
+	 * the listener has taken it, so after a failure the next change reloads every
+	 * file changed since the last good reload.
+	 */
+	private void reload() {
+		try {
+			LoadResult result = loader.reload(directory, current);
+			if (result != current) {
+				listener.reloaded(result);
+				current = result;
+			}
+		} catch (IOException e) {
+			listener.failed(e);
+		} catch (RuntimeException e) {
+			// such as a file caught half written, or the listener failing to index the result
+			listener.failed(new IOException("Unable to reload " + directory + ": " + e, e));
+		}
+	}
+
+}
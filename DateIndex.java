@@ -0,0 +1,380 @@
+package com.breakingcode.unoptimised.query;
+
+import java.time.LocalDate;
+import java.time.YearMonth;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import com.breakingcode.unoptimised.data.FoodSafetyDataset;
+import com.breakingcode.unoptimised.data.IntList;
+import com.breakingcode.unoptimised.data.StringDictionary;
+
+/**
+ * Secondary index over the rating date of every row.
+ *
+ * Row ids are held sorted by rating date (and by row id within a day), for the
+ * whole dataset as well as for each local authority and each business type, so
+ * the rows rated within a range of dates are found with two binary searches and
+ * come out already in date order. Rows without a rating date come after every
+ * dated row, and are never within a range.
+ *
+ * While the index is built, the rows of each month are counted into rating
+ * statistics for the whole dataset, each authority and each business type, so
+ * a trend over any range of months is rolled up from those counters without
+ * looking at a row. Only a trend for one business type within one authority
+ * walks rows, and then only the authority's rows within the range. Months are
+ * only held for a group if it has rows rated in them.
+ */
+public class DateIndex {
+
+	/** Earliest year of a date or month to query, so every day fits in an int */
+	public static final int MIN_YEAR = 1;
+	/** Latest year of a date or month to query */
+	public static final int MAX_YEAR = 9999;
+	/** Most buckets a trend may have, such as 100 years month by month */
+	public static final int MAX_BUCKETS = 1200;
+
+	// code of a group which wasn't asked for, distinct from StringDictionary.NOT_FOUND
+	private static final int ANY = -2;
+
+	private final FoodSafetyDataset dataset;
+	private final int[] ratingsByCode;
+	private final StringDictionary authorities;
+	private final StringDictionary businessTypes;
+
+	private final Slice all;
+	private final Slice[] byAuthority;
+	private final Slice[] byBusinessType;
+	// position of each row in all.rows, so any set of rows can be put in date order
+	private final int[] rank;
+
+	/**
+	 * @param dataset       Dataset to be indexed
+	 * @param ratingsByCode Rating of each code in the dataset's rating value
+	 *                      dictionary
+	 */
+	public DateIndex(FoodSafetyDataset dataset, int[] ratingsByCode) {
+		this.dataset = dataset;
+		this.ratingsByCode = ratingsByCode;
+		this.authorities = dataset.getLocalAuthorityNameDictionary();
+		this.businessTypes = dataset.getBusinessTypeDictionary();
+
+		// sort the dated rows by (date, row) packed into a long, so the sort is on primitives
+		int size = dataset.size();
+		long[] keys = new long[size];
+		int dated = 0;
+		for (int row = 0; row < size; row++) {
+			int date = dataset.getRatingDate(row);
+			if (date != FoodSafetyDataset.NO_DATE) {
+				keys[dated++] = ((long) date << 32) + row;
+			}
+		}
+		Arrays.sort(keys, 0, dated);
+
+		int[] rows = new int[size];
+		for (int i = 0; i < dated; i++) {
+			rows[i] = (int) keys[i];
+		}
+		int undated = dated;
+		for (int row = 0; row < size; row++) {
+			if (dataset.getRatingDate(row) == FoodSafetyDataset.NO_DATE) {
+				rows[undated++] = row;
+			}
+		}
+
+		this.rank = new int[size];
+		for (int i = 0; i < size; i++) {
+			rank[rows[i]] = i;
+		}
+		this.all = new Slice(rows);
+
+		// split into the rows of each authority and type, keeping the date order
+		int[] authorityCodes = new int[size];
+		int[] typeCodes = new int[size];
+		for (int row = 0; row < size; row++) {
+			authorityCodes[row] = dataset.getLocalAuthorityNameCode(row);
+			typeCodes[row] = dataset.getBusinessTypeCode(row);
+		}
+		this.byAuthority = split(rows, authorityCodes, authorities.size());
+		this.byBusinessType = split(rows, typeCodes, businessTypes.size());
+	}
+
+	private Slice[] split(int[] rows, int[] codes, int groups) {
+		int[] counts = new int[groups];
+		for (int row : rows) {
+			counts[codes[row]]++;
+		}
+		int[][] groupRows = new int[groups][];
+		for (int group = 0; group < groups; group++) {
+			groupRows[group] = new int[counts[group]];
+		}
+		Arrays.fill(counts, 0);
+		for (int row : rows) {
+			int group = codes[row];
+			groupRows[group][counts[group]++] = row;
+		}
+
+		Slice[] slices = new Slice[groups];
+		for (int group = 0; group < groups; group++) {
+			slices[group] = new Slice(groupRows[group]);
+		}
+		return slices;
+	}
+
+	/**
+	 * Find the premises rated within a range of dates, optionally only those of
+	 * one authority and one business type.
+	 *
+	 * @param authority    LocalAuthorityName, or null for every authority
+	 * @param businessType BusinessType, or null for every business type
+	 * @param from         First rating date
+	 * @param to           Last rating date (inclusive)
+	 * @return Rows rated from the first date to the last, in date order
+	 * @throws IllegalArgumentException if either date is outside MIN_YEAR to
+	 *                                  MAX_YEAR
+	 */
+	public IntList between(String authority, String businessType, LocalDate from, LocalDate to) {
+		checkYear("from", from.getYear());
+		checkYear("to", to.getYear());
+		int authorityCode = code(authorities, authority);
+		int typeCode = code(businessTypes, businessType);
+		if (authorityCode == StringDictionary.NOT_FOUND || typeCode == StringDictionary.NOT_FOUND) {
+			return new IntList();
+		}
+
+		// walk the smaller of the two slices, checking the other code as it goes
+		Slice slice = all;
+		if (authority != null && businessType != null) {
+			if (byAuthority[authorityCode].dates.length <= byBusinessType[typeCode].dates.length) {
+				slice = byAuthority[authorityCode];
+				authorityCode = ANY;
+			} else {
+				slice = byBusinessType[typeCode];
+				typeCode = ANY;
+			}
+		} else if (authority != null) {
+			slice = byAuthority[authorityCode];
+			authorityCode = ANY;
+		} else if (businessType != null) {
+			slice = byBusinessType[typeCode];
+			typeCode = ANY;
+		}
+
+		int start = slice.first((int) from.toEpochDay());
+		int end = slice.first((int) to.toEpochDay() + 1);
+		IntList result = new IntList(Math.max(end - start, 1));
+		for (int i = start; i < end; i++) {
+			int row = slice.rows[i];
+			if ((authorityCode == ANY || dataset.getLocalAuthorityNameCode(row) == authorityCode)
+					&& (typeCode == ANY || dataset.getBusinessTypeCode(row) == typeCode)) {
+				result.add(row);
+			}
+		}
+		return result;
+	}
+
+	/**
+	 * Roll the rating statistics of a range of months up into buckets of a number
+	 * of months each, such as the average hygiene score month by month.
+	 *
+	 * @param authority       LocalAuthorityName, or null for every authority
+	 * @param businessType    BusinessType, or null for every business type
+	 * @param from            First month
+	 * @param to              Last month (inclusive)
+	 * @param monthsPerBucket Months in each bucket: 1 for monthly, 3 for
+	 *                        quarterly, 12 for yearly
+	 * @return Statistics of each bucket in order, named by its first month
+	 *         (yyyy-MM), including those without any premises
+	 * @throws IllegalArgumentException if monthsPerBucket is less than 1, either
+	 *                                  month is outside MIN_YEAR to MAX_YEAR, or
+	 *                                  there would be more than MAX_BUCKETS
+	 *                                  buckets
+	 */
+	public List<RatingStatistics> trend(String authority, String businessType, YearMonth from, YearMonth to,
+			int monthsPerBucket) {
+		if (monthsPerBucket < 1) {
+			throw new IllegalArgumentException("monthsPerBucket must be at least 1, was " + monthsPerBucket);
+		}
+		checkYear("from", from.getYear());
+		checkYear("to", to.getYear());
+		if (from.isAfter(to)) {
+			throw new IllegalArgumentException("from " + from + " is after to " + to);
+		}
+		int firstMonth = monthKey(from);
+		int buckets = (monthKey(to) - firstMonth) / monthsPerBucket + 1;
+		if (buckets > MAX_BUCKETS) {
+			throw new IllegalArgumentException("A trend can have at most " + MAX_BUCKETS + " buckets, from " + from
+					+ " to " + to + " has " + buckets);
+		}
+		long[] counters = new long[buckets * RatingStatistics.COUNTERS];
+
+		int authorityCode = code(authorities, authority);
+		int typeCode = code(businessTypes, businessType);
+		if (authorityCode != StringDictionary.NOT_FOUND && typeCode != StringDictionary.NOT_FOUND) {
+			if (authority != null && businessType != null) {
+				// the one combination without monthly counters, so count the authority's rows
+				Slice slice = byAuthority[authorityCode];
+				int end = slice.first((int) to.plusMonths(1).atDay(1).toEpochDay());
+				int bucket = 0;
+				int bucketEnd = (int) from.plusMonths(monthsPerBucket).atDay(1).toEpochDay();
+				for (int i = slice.first((int) from.atDay(1).toEpochDay()); i < end; i++) {
+					while (slice.dates[i] >= bucketEnd) {
+						bucket++;
+						bucketEnd = (int) from.plusMonths((long) (bucket + 1) * monthsPerBucket).atDay(1).toEpochDay();
+					}
+					int row = slice.rows[i];
+					if (dataset.getBusinessTypeCode(row) == typeCode) {
+						RatingStatistics.count(dataset, ratingsByCode, row, counters,
+								bucket * RatingStatistics.COUNTERS);
+					}
+				}
+			} else {
+				Slice slice = authority != null ? byAuthority[authorityCode]
+						: businessType != null ? byBusinessType[typeCode] : all;
+				slice.monthly.rollUp(firstMonth, monthKey(to), monthsPerBucket, counters);
+			}
+		}
+
+		List<RatingStatistics> result = new ArrayList<RatingStatistics>(buckets);
+		for (int bucket = 0; bucket < buckets; bucket++) {
+			int offset = bucket * RatingStatistics.COUNTERS;
+			result.add(new RatingStatistics(from.plusMonths((long) bucket * monthsPerBucket).toString(),
+					Arrays.copyOfRange(counters, offset, offset + RatingStatistics.COUNTERS)));
+		}
+		return result;
+	}
+
+	/**
+	 * Put a set of rows in order of rating date, newest first, followed by any
+	 * rows without a rating date in row order.
+	 *
+	 * @param rows Row ids, in any order
+	 * @return The same rows, newest first
+	 */
+	public IntList newestFirst(IntList rows) {
+		// each row's position in date order is unique, so sorting those is enough
+		int[] positions = new int[rows.size()];
+		for (int i = 0; i < positions.length; i++) {
+			positions[i] = rank[rows.get(i)];
+		}
+		Arrays.sort(positions);
+
+		int dated = 0;
+		while (dated < positions.length && positions[dated] < all.dates.length) {
+			dated++;
+		}
+		IntList result = new IntList(positions.length);
+		for (int i = dated - 1; i >= 0; i--) {
+			result.add(all.rows[positions[i]]);
+		}
+		for (int i = dated; i < positions.length; i++) {
+			result.add(all.rows[positions[i]]);
+		}
+		return result;
+	}
+
+	private static void checkYear(String name, int year) {
+		if (year < MIN_YEAR || year > MAX_YEAR) {
+			throw new IllegalArgumentException(
+					name + " must be in a year from " + MIN_YEAR + " to " + MAX_YEAR + ", was " + year);
+		}
+	}
+
+	private static int code(StringDictionary dictionary, String value) {
+		return value == null ? ANY : dictionary.lookup(value);
+	}
+
+	private static int monthKey(YearMonth month) {
+		return month.getYear() * 12 + month.getMonthValue() - 1;
+	}
+
+	/**
+	 * Rows of one group (or the whole dataset) in date order, with the date of each
+	 * dated row alongside for searching.
+	 */
+	private class Slice {
+
+		private final int[] rows;
+		private final int[] dates;
+		private final Monthly monthly;
+
+		/**
+		 * @param rows Rows of the group in date order, undated rows last
+		 */
+		private Slice(int[] rows) {
+			this.rows = rows;
+			int dated = 0;
+			while (dated < rows.length && dataset.getRatingDate(rows[dated]) != FoodSafetyDataset.NO_DATE) {
+				dated++;
+			}
+			this.dates = new int[dated];
+			for (int i = 0; i < dated; i++) {
+				dates[i] = dataset.getRatingDate(rows[i]);
+			}
+			this.monthly = new Monthly(this);
+		}
+
+		/**
+		 * @return Position of the first row rated on or after the given day
+		 */
+		private int first(int day) {
+			int lo = 0;
+			int hi = dates.length;
+			while (lo < hi) {
+				int mid = (lo + hi) >>> 1;
+				if (dates[mid] < day) {
+					lo = mid + 1;
+				} else {
+					hi = mid;
+				}
+			}
+			return lo;
+		}
+	}
+
+	/**
+	 * Rating statistics of a group for each month it has rows rated in.
+	 */
+	private class Monthly {
+
+		// months as year * 12 + (month - 1), in order
+		private final int[] months;
+		// counters of each month, at index * COUNTERS
+		private final long[] counters;
+
+		private Monthly(Slice slice) {
+			IntList keys = new IntList();
+			long[] counts = new long[16 * RatingStatistics.COUNTERS];
+			int nextMonthDay = Integer.MIN_VALUE;
+			for (int i = 0; i < slice.dates.length; i++) {
+				if (slice.dates[i] >= nextMonthDay) {
+					// only works out the month when the rows move into a new one
+					LocalDate date = LocalDate.ofEpochDay(slice.dates[i]);
+					keys.add(date.getYear() * 12 + date.getMonthValue() - 1);
+					nextMonthDay = (int) date.withDayOfMonth(1).plusMonths(1).toEpochDay();
+					if (keys.size() * RatingStatistics.COUNTERS > counts.length) {
+						counts = Arrays.copyOf(counts, counts.length * 2);
+					}
+				}
+				RatingStatistics.count(dataset, ratingsByCode, slice.rows[i], counts,
+						(keys.size() - 1) * RatingStatistics.COUNTERS);
+			}
+			this.months = keys.toArray();
+			this.counters = Arrays.copyOf(counts, months.length * RatingStatistics.COUNTERS);
+		}
+
+		/**
+		 * Add the counters of each month from first to last into the bucket it falls
+		 * in.
+		 */
+		private void rollUp(int first, int last, int monthsPerBucket, long[] buckets) {
+			int i = Arrays.binarySearch(months, first);
+			for (i = i < 0 ? -i - 1 : i; i < months.length && months[i] <= last; i++) {
+				int bucket = (months[i] - first) / monthsPerBucket;
+				SummaryCube.add(counters, i * RatingStatistics.COUNTERS, buckets, bucket * RatingStatistics.COUNTERS);
+			}
+		}
+	}
+
+}
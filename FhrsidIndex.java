@@ -0,0 +1,185 @@
+package com.breakingcode.unoptimised.query;
+
+import java.util.Arrays;
+import java.util.BitSet;
+
+import com.breakingcode.unoptimised.data.FoodSafetyDataset;
+import com.breakingcode.unoptimised.data.IntList;
+
+/**
+ * Primary index from FHRSID to the row holding the current rating of that
+ * establishment, with the rows of its earlier ratings chained behind it.
+ *
+ * An establishment can be in the dataset more than once, such as when it is in
+ * two overlapping extracts, or in a newer download of a file alongside the old
+ * one. Of the rows with the same FHRSID, the one with the latest rating date is
+ * current; rows without a rating date are older than any with one, and of two
+ * rows with the same date the later row (from the later file) is current. The
+ * other rows are superseded, and are kept as the establishment's history,
+ * newest first.
+ *
+ * FHRSIDs are held in an open addressed table of primitive ints, so a lookup is
+ * a hash and a probe or two, without boxing. Rows whose FHRSID couldn't be
+ * read (zero or negative) aren't indexed, and are always current.
+ */
+public class FhrsidIndex {
+
+	/** Row returned when no row has the FHRSID */
+	public static final int NOT_FOUND = -1;
+
+	private final FoodSafetyDataset dataset;
+	// open addressed, with linear probing; a row of 0 is an empty slot
+	private final int[] keys;
+	// current row + 1 of each key
+	private final int[] rows;
+	// next older row with the same FHRSID, or NOT_FOUND; only made once a duplicate is found
+	private int[] older;
+	private final BitSet superseded = new BitSet();
+	private int size;
+
+	/**
+	 * @param dataset Dataset to be indexed
+	 */
+	public FhrsidIndex(FoodSafetyDataset dataset) {
+		this.dataset = dataset;
+		int capacity = Integer.highestOneBit(Math.max(dataset.size(), 1) * 2) * 2;
+		this.keys = new int[capacity];
+		this.rows = new int[capacity];
+
+		int mask = capacity - 1;
+		for (int row = 0; row < dataset.size(); row++) {
+			int fhrsid = dataset.getFhrsid(row);
+			if (fhrsid <= 0) {
+				continue;
+			}
+			int slot = hash(fhrsid) & mask;
+			while (rows[slot] != 0 && keys[slot] != fhrsid) {
+				slot = (slot + 1) & mask;
+			}
+			if (rows[slot] == 0) {
+				keys[slot] = fhrsid;
+				rows[slot] = row + 1;
+				size++;
+			} else {
+				rows[slot] = addToHistory(rows[slot] - 1, row) + 1;
+			}
+		}
+	}
+
+	/**
+	 * Put a row into the history of the establishment whose newest row is given,
+	 * keeping the chain newest first.
+	 *
+	 * @return Newest row of the establishment afterwards
+	 */
+	private int addToHistory(int newest, int row) {
+		if (older == null) {
+			older = new int[dataset.size()];
+			Arrays.fill(older, NOT_FOUND);
+		}
+		if (isNewer(row, newest)) {
+			older[row] = newest;
+			superseded.set(newest);
+			return row;
+		}
+		superseded.set(row);
+		int previous = newest;
+		while (older[previous] != NOT_FOUND && !isNewer(row, older[previous])) {
+			previous = older[previous];
+		}
+		older[row] = older[previous];
+		older[previous] = row;
+		return newest;
+	}
+
+	/**
+	 * @return Whether the first row's rating is newer than the second's
+	 */
+	private boolean isNewer(int row, int other) {
+		// NO_DATE is the smallest int, so undated rows are older than any dated row
+		int date = dataset.getRatingDate(row);
+		int otherDate = dataset.getRatingDate(other);
+		return date != otherDate ? date > otherDate : row > other;
+	}
+
+	private static int hash(int key) {
+		int hash = key * 0x9E3779B9;
+		return hash ^ (hash >>> 16);
+	}
+
+	/**
+	 * @param fhrsid FHRSID of an establishment
+	 * @return Row holding its current rating, or NOT_FOUND
+	 */
+	public int current(int fhrsid) {
+		if (fhrsid <= 0) {
+			return NOT_FOUND;
+		}
+		int mask = keys.length - 1;
+		for (int slot = hash(fhrsid) & mask; rows[slot] != 0; slot = (slot + 1) & mask) {
+			if (keys[slot] == fhrsid) {
+				return rows[slot] - 1;
+			}
+		}
+		return NOT_FOUND;
+	}
+
+	/**
+	 * @param fhrsid FHRSID of an establishment
+	 * @return Rows of every rating of the establishment, newest (current) first,
+	 *         or none if no row has the FHRSID
+	 */
+	public IntList history(int fhrsid) {
+		IntList result = new IntList(4);
+		for (int row = current(fhrsid); row != NOT_FOUND; row = older(row)) {
+			result.add(row);
+		}
+		return result;
+	}
+
+	/**
+	 * @param row Row id
+	 * @return Row of the next older rating of the same establishment, or
+	 *         NOT_FOUND
+	 */
+	public int older(int row) {
+		return older == null ? NOT_FOUND : older[row];
+	}
+
+	/**
+	 * @param row Row id
+	 * @return Whether the row holds the current rating of its establishment
+	 */
+	public boolean isCurrent(int row) {
+		return !superseded.get(row);
+	}
+
+	/**
+	 * @return Rows holding the current rating of their establishment, or null if
+	 *         every row does
+	 */
+	public BitSet currentRows() {
+		if (superseded.isEmpty()) {
+			return null;
+		}
+		BitSet current = new BitSet(dataset.size());
+		current.set(0, dataset.size());
+		current.andNot(superseded);
+		return current;
+	}
+
+	/**
+	 * @return Number of distinct FHRSIDs
+	 */
+	public int size() {
+		return size;
+	}
+
+	/**
+	 * @return Number of rows superseded by a newer row with the same FHRSID
+	 */
+	public int getSupersededCount() {
+		return superseded.cardinality();
+	}
+
+}
@@ -0,0 +1,351 @@
+package com.breakingcode.unoptimised.bench;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Random;
+import java.util.function.Function;
+
+import com.breakingcode.unoptimised.data.FoodSafetyData;
+import com.breakingcode.unoptimised.data.FoodSafetyDataset;
+import com.breakingcode.unoptimised.data.FoodSafetyLoader;
+import com.breakingcode.unoptimised.data.FoodSafetyStream;
+import com.breakingcode.unoptimised.data.StringDictionary;
+import com.breakingcode.unoptimised.query.FoodSafetyQueries;
+
+/**
+ * Measures the load and query paths against a synthetic dataset, so changes can
+ * be checked for regressions and alternative engines compared.
+ *
+ * Usage: {@code FoodSafetyBenchmark [authorities] [rows per authority] [filter]}
+ * where filter only runs the benchmarks whose names contain it. The dataset is
+ * written to a temporary directory and removed afterwards.
+ *
+ * Each benchmark is warmed up and then timed over several iterations, and the
+ * result of every iteration is consumed so the JIT can't discard the work.
+ */
+public class FoodSafetyBenchmark {
+
+	private static final int WARMUP_ITERATIONS = 5;
+	private static final int MEASURED_ITERATIONS = 10;
+	private static final int LOOKUPS = 10000;
+
+	// consumes benchmark results so their work can't be optimised away
+	private static volatile long sink;
+
+	private final File directory;
+	private final String filter;
+	private FoodSafetyDataset dataset;
+	private FoodSafetyQueries queries;
+	private String[] names;
+
+	/**
+	 * A single operation to be measured.
+	 */
+	private interface Operation {
+
+		/**
+		 * @return Any value depending on the work done, to be consumed
+		 */
+		long run() throws Exception;
+	}
+
+	public static void main(String[] args) throws Exception {
+		int authorities = args.length > 0 ? Integer.parseInt(args[0]) : 20;
+		int rows = args.length > 1 ? Integer.parseInt(args[1]) : 5000;
+		String filter = args.length > 2 ? args[2] : "";
+
+		File directory = Files.createTempDirectory("fhrs-bench").toFile();
+		try {
+			System.out.printf("Writing %d authorities of %d rows to %s%n", authorities, rows, directory);
+			new SyntheticDataset(42).write(directory, authorities, rows);
+			new FoodSafetyBenchmark(directory, filter).run();
+		} finally {
+			File[] files = directory.listFiles();
+			if (files != null) {
+				for (File file : files) {
+					file.delete();
+				}
+			}
+			directory.delete();
+		}
+	}
+
+	private FoodSafetyBenchmark(File directory, String filter) {
+		this.directory = directory;
+		this.filter = filter;
+	}
+
+	private void run() throws Exception {
+		final File[] files = directory.listFiles();
+		Arrays.sort(files);
+
+		dataset = new FoodSafetyLoader().load(directory).getDataset();
+		queries = new FoodSafetyQueries(dataset);
+		final int size = dataset.size();
+		names = sampleNames(new Random(7), LOOKUPS);
+
+		System.out.printf("%-32s %12s %12s %16s%n", "Benchmark", "Mean ms/op", "Min ms/op", "Throughput");
+
+		// parse throughput
+		measure("parse.commonsCsv", size, "rows/s", new Operation() {
+			@Override
+			public long run() throws IOException {
+				long rows = 0;
+				for (File file : files) {
+					rows += FoodSafetyLoader.parseFileWithCommonsCsv(file).size();
+				}
+				return rows;
+			}
+		});
+		measure("parse.mapped", size, "rows/s", new Operation() {
+			@Override
+			public long run() throws IOException {
+				long rows = 0;
+				for (File file : files) {
+					rows += FoodSafetyLoader.parseFile(file).size();
+				}
+				return rows;
+			}
+		});
+		measure("stream.histogram", size, "rows/s", new Operation() {
+			@Override
+			public long run() throws IOException {
+				return FoodSafetyStream.of(directory).countBy(new Function<FoodSafetyData, String>() {
+					@Override
+					public String apply(FoodSafetyData row) {
+						return row.getRatingValue();
+					}
+				}).size();
+			}
+		});
+		measure("load.parallel", size, "rows/s", new Operation() {
+			@Override
+			public long run() throws IOException {
+				return new FoodSafetyLoader().load(directory).getDataset().size();
+			}
+		});
+		final File snapshot = new File(directory.getParentFile(), directory.getName() + ".snapshot");
+		try {
+			new FoodSafetyLoader(1, snapshot).load(directory);
+			measure("load.snapshot", size, "rows/s", new Operation() {
+				@Override
+				public long run() throws IOException {
+					return new FoodSafetyLoader(1, snapshot).load(directory).getDataset().size();
+				}
+			});
+		} finally {
+			snapshot.delete();
+		}
+		measure("index.build", size, "rows/s", new Operation() {
+			@Override
+			public long run() {
+				return new FoodSafetyQueries(dataset).getDataset().size();
+			}
+		});
+
+		// name lookup
+		measure("lookup.exact", LOOKUPS, "lookups/s", new Operation() {
+			@Override
+			public long run() {
+				long found = 0;
+				for (String name : names) {
+					found += queries.findPremises(name).size();
+				}
+				return found;
+			}
+		});
+		measure("lookup.prefix", LOOKUPS, "lookups/s", new Operation() {
+			@Override
+			public long run() {
+				long found = 0;
+				for (String name : names) {
+					found += queries.completeBusinessNames(name.substring(0, Math.min(3, name.length())), 10).size();
+				}
+				return found;
+			}
+		});
+		measure("lookup.typo", LOOKUPS / 10, "lookups/s", new Operation() {
+			@Override
+			public long run() {
+				long found = 0;
+				for (int i = 0; i < LOOKUPS / 10; i++) {
+					found += queries.searchBusinessNames(misspell(names[i]), 2, 5).size();
+				}
+				return found;
+			}
+		});
+
+		// rating range filtering
+		measure("filter.ratingsBetween", 1, "filters/s", new Operation() {
+			@Override
+			public long run() {
+				BitSet rows = queries.ratingsBetween(1, 4);
+				return rows.cardinality();
+			}
+		});
+		measure("filter.nameAndRating", LOOKUPS, "lookups/s", new Operation() {
+			@Override
+			public long run() {
+				long found = 0;
+				for (String name : names) {
+					found += queries.findRatingsBetween(name, 1, 4).size();
+				}
+				return found;
+			}
+		});
+		measure("filter.scan", 1, "filters/s", new Operation() {
+			@Override
+			public long run() {
+				long found = 0;
+				for (int row = 0; row < size; row++) {
+					int rating = queries.getRating(row);
+					if (rating > 1 && rating < 4) {
+						found++;
+					}
+				}
+				return found;
+			}
+		});
+
+		// sorting the business names, as listAllBusinesses does
+		measure("sort.rowsDedupe", 1, "sorts/s", new Operation() {
+			@Override
+			public long run() {
+				// sort every row's name and drop adjacent duplicates, as the original loop did
+				String[] sorted = new String[size];
+				for (int row = 0; row < size; row++) {
+					sorted[row] = dataset.getBusinessName(row);
+				}
+				Arrays.sort(sorted);
+				List<String> unique = new ArrayList<String>();
+				for (int i = 0; i < sorted.length; i++) {
+					if (i == 0 || !sorted[i].equals(sorted[i - 1])) {
+						unique.add(sorted[i]);
+					}
+				}
+				return unique.size();
+			}
+		});
+		measure("sort.dictionary", 1, "sorts/s", new Operation() {
+			@Override
+			public long run() {
+				StringDictionary dictionary = dataset.getBusinessNameDictionary();
+				String[] sorted = new String[dictionary.size()];
+				for (int code = 0; code < sorted.length; code++) {
+					sorted[code] = dictionary.decode(code);
+				}
+				Arrays.sort(sorted);
+				return sorted.length;
+			}
+		});
+
+		measureFootprint(files);
+	}
+
+	/**
+	 * Time an operation and print its mean and best time, along with its
+	 * throughput in the given unit.
+	 */
+	private void measure(String name, int operationsPerRun, String unit, Operation operation) throws Exception {
+		if (!name.contains(filter)) {
+			return;
+		}
+		for (int i = 0; i < WARMUP_ITERATIONS; i++) {
+			sink += operation.run();
+		}
+		long total = 0;
+		long best = Long.MAX_VALUE;
+		for (int i = 0; i < MEASURED_ITERATIONS; i++) {
+			long start = System.nanoTime();
+			sink += operation.run();
+			long elapsed = System.nanoTime() - start;
+			total += elapsed;
+			best = Math.min(best, elapsed);
+		}
+		double mean = total / (double) MEASURED_ITERATIONS;
+		System.out.printf(Locale.ROOT, "%-32s %12.3f %12.3f %12.0f %s%n", name, mean / 1e6, best / 1e6,
+				operationsPerRun / (mean / 1e9), unit);
+	}
+
+	/**
+	 * Print the heap used per row, both by a dataset and by a list of row objects
+	 * as the original loader kept.
+	 */
+	private void measureFootprint(File[] files) throws IOException {
+		if (!"memory.dataset".contains(filter) && !"memory.rowObjects".contains(filter)) {
+			return;
+		}
+		dataset = null;
+		queries = null;
+
+		long before = usedHeap();
+		FoodSafetyDataset loaded = new FoodSafetyLoader().load(directory).getDataset();
+		long columnar = usedHeap() - before;
+		int size = loaded.size();
+		sink += size;
+		loaded = null;
+
+		before = usedHeap();
+		List<FoodSafetyData> rows = new ArrayList<FoodSafetyData>();
+		for (File file : files) {
+			FoodSafetyDataset parsed = FoodSafetyLoader.parseFile(file);
+			for (int row = 0; row < parsed.size(); row++) {
+				rows.add(parsed.get(row));
+			}
+		}
+		long objects = usedHeap() - before;
+		sink += rows.size();
+		rows = null;
+
+		System.out.printf(Locale.ROOT, "%-32s %12d bytes/row%n", "memory.dataset", columnar / size);
+		System.out.printf(Locale.ROOT, "%-32s %12d bytes/row%n", "memory.rowObjects", objects / size);
+	}
+
+	private static long usedHeap() {
+		Runtime runtime = Runtime.getRuntime();
+		long used = Long.MAX_VALUE;
+		// repeat until collecting no longer frees anything
+		for (int i = 0; i < 10; i++) {
+			System.gc();
+			long now = runtime.totalMemory() - runtime.freeMemory();
+			if (now >= used) {
+				break;
+			}
+			used = now;
+		}
+		return used;
+	}
+
+	/**
+	 * @return Business names picked at random from the rows, so common names are
+	 *         picked more often
+	 */
+	private String[] sampleNames(Random random, int count) {
+		String[] sample = new String[count];
+		for (int i = 0; i < count; i++) {
+			String name = null;
+			while (name == null) {
+				name = dataset.getBusinessName(random.nextInt(dataset.size()));
+			}
+			sample[i] = name;
+		}
+		return sample;
+	}
+
+	/**
+	 * @return The name with one character changed
+	 */
+	private static String misspell(String name) {
+		char[] chars = name.toCharArray();
+		int i = chars.length / 2;
+		chars[i] = chars[i] == 'x' ? 'y' : 'x';
+		return new String(chars);
+	}
+
+}
@@ -1,60 +1,87 @@
 package com.breakingcode.unoptimised.data;
 
-import java.text.ParseException;
-import java.text.SimpleDateFormat;
-import java.util.Date;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.time.LocalDate;
 
 import org.apache.commons.csv.CSVRecord;
 
 import com.breakingcode.unoptimised.data.enums.Headers;
+import com.breakingcode.unoptimised.metrics.Counter;
+import com.breakingcode.unoptimised.metrics.Metrics;
 
 public class FoodSafetyData {
 
+  private static final Counter ROWS_PARSED = Metrics.counter("Parser", "rowsParsed");
+  private static final Counter ROWS_DEFAULTED = Metrics.counter("Parser", "rowsDefaulted");
+  private static final Counter FIELDS_DEFAULTED = Metrics.counter("Parser", "fieldsDefaulted");
+
   /**
    * Data for each recorded row in FoodSafetyData CSV files.
    */
 
   // food hygiene rating scheme (FHRS) id
-  private int fhrsid;
+  int fhrsid;
 
   // business headers
-  private String localAuthorityBusinessID;
-  private String businessName;
-  private String businessType;
-  private int businessTypeID;
+  String localAuthorityBusinessID;
+  String businessName;
+  String businessType;
+  int businessTypeID;
 
   // address headers
-  private String addressLine1;
-  private String addressLine2;
-  private String addressLine3;
-  private String addressLine4;
-  private String postCode;
+  String addressLine1;
+  String addressLine2;
+  String addressLine3;
+  String addressLine4;
+  String postCode;
 
   // rating headers
   public String ratingValue;
   public String ratingKey;
-  private boolean ratingDateNil;
+  boolean ratingDateNil;
 
   // local authority headers
-  private int localAuthorityCode;
-  private String localAuthorityName;
-  private String localAuthorityWebSite;
-  private String localAuthorityEmailAddress;
+  int localAuthorityCode;
+  String localAuthorityName;
+  String localAuthorityWebSite;
+  String localAuthorityEmailAddress;
 
   // utility headers
-  private String schemeType;
-  private boolean newRatingPending;
+  String schemeType;
+  boolean newRatingPending;
 
   // location headers (precise)
-  private double longitude;
-  private double latitude;
+  double longitude;
+  double latitude;
 
   // rating information headers
-  public Date ratingDate;
+  public int ratingDate;
   public int hygieneScore;
   public int structuralScore;
   public int confidenceInManagementScore;
 
+  // numeric fields of a CSVRecord which couldn't be parsed, for the parser metrics
+  private int defaultedFields;
+
+  /*
+   * LocalAuthorityBusinessID and AddressLine1 are different on nearly every row
+   * and are rarely read, so rows filled in by the mapped parser or read out of a
+   * dataset only decode them when their getter is first called. Until then they
+   * are held as a range of the file's bytes, or as a row of the dataset.
+   */
+  static final int LOCAL_AUTHORITY_BUSINESS_ID = 0;
+  static final int ADDRESS_LINE_1 = 1;
+
+  // bit for each lazy field which hasn't been decoded yet
+  private int pending;
+  private ByteBuffer rawBuffer;
+  private Charset rawCharset;
+  private final int[] rawStart = new int[2];
+  private final int[] rawEnd = new int[2];
+  private FoodSafetyDataset sourceDataset;
+  private int sourceRow;
+
   /**
    * Constructor for FoodSafetyData row
    * 
@@ -98,10 +125,141 @@ public class FoodSafetyData {
     this.latitude = tryParseDouble(record.get(Headers.Latitude.header));
 
     // rating information (detailed)
-    this.ratingDate = tryParseDate(record.get(Headers.RatingDate));
+    this.ratingDate = RatingDates.parse(record.get(Headers.RatingDate));
     this.hygieneScore = tryParseInt(record.get(Headers.Hygiene.header));
     this.structuralScore = tryParseInt(record.get(Headers.Structural.header));
     this.confidenceInManagementScore = tryParseInt(record.get(Headers.ConfidenceInManagement.header));
+
+    ROWS_PARSED.increment();
+    if (defaultedFields > 0) {
+      ROWS_DEFAULTED.increment();
+      FIELDS_DEFAULTED.add(defaultedFields);
+    }
+  }
+
+  /**
+   * Constructor for an empty FoodSafetyData row, for parsers in this package
+   * which fill in the fields themselves.
+   */
+  FoodSafetyData() {
+  }
+
+  /**
+   * Constructor for a FoodSafetyData row read back out of a columnar dataset.
+   *
+   * @param dataset Dataset holding the row
+   * @param row     Row id within the dataset
+   */
+  FoodSafetyData(FoodSafetyDataset dataset, int row) {
+
+    // food hygiene rating scheme (FHRS) id
+    this.fhrsid = dataset.getFhrsid(row);
+
+    // business information (LocalAuthorityBusinessID is read when needed)
+    this.sourceDataset = dataset;
+    this.sourceRow = row;
+    this.pending = (1 << LOCAL_AUTHORITY_BUSINESS_ID) | (1 << ADDRESS_LINE_1);
+    this.businessName = dataset.getBusinessName(row);
+    this.businessType = dataset.getBusinessType(row);
+    this.businessTypeID = dataset.getBusinessTypeID(row);
+
+    // address information (AddressLine1 is read when needed)
+    this.addressLine2 = dataset.getAddressLine2(row);
+    this.addressLine3 = dataset.getAddressLine3(row);
+    this.addressLine4 = dataset.getAddressLine4(row);
+    this.postCode = dataset.getPostCode(row);
+
+    // rating information
+    this.ratingValue = dataset.getRatingValue(row);
+    this.ratingKey = dataset.getRatingKey(row);
+    this.ratingDateNil = dataset.isRatingDateNil(row);
+
+    // local authority information
+    this.localAuthorityCode = dataset.getLocalAuthorityCode(row);
+    this.localAuthorityName = dataset.getLocalAuthorityName(row);
+    this.localAuthorityWebSite = dataset.getLocalAuthorityWebSite(row);
+    this.localAuthorityEmailAddress = dataset.getLocalAuthorityEmailAddress(row);
+
+    // utility information
+    this.schemeType = dataset.getSchemeType(row);
+    this.newRatingPending = dataset.isNewRatingPending(row);
+
+    // precise location information
+    this.longitude = dataset.getLongitude(row);
+    this.latitude = dataset.getLatitude(row);
+
+    // rating information (detailed)
+    this.ratingDate = dataset.getRatingDate(row);
+    this.hygieneScore = dataset.getHygieneScore(row);
+    this.structuralScore = dataset.getStructuralScore(row);
+    this.confidenceInManagementScore = dataset.getConfidenceInManagementScore(row);
+  }
+
+  /**
+   * Set the file the mapped parser is filling this row from.
+   */
+  void setRawBuffer(ByteBuffer buffer, Charset charset) {
+    this.rawBuffer = buffer;
+    this.rawCharset = charset;
+  }
+
+  /**
+   * Set a lazy field to the given bytes of the raw buffer, to be decoded only if
+   * it is read.
+   *
+   * @param field LOCAL_AUTHORITY_BUSINESS_ID or ADDRESS_LINE_1
+   */
+  void setRawField(int field, int start, int end) {
+    rawStart[field] = start;
+    rawEnd[field] = end;
+    pending |= 1 << field;
+  }
+
+  /**
+   * @return Whether the lazy field is still held as bytes of the raw buffer
+   */
+  boolean isRaw(int field) {
+    return (pending & (1 << field)) != 0 && sourceDataset == null;
+  }
+
+  ByteBuffer getRawBuffer() {
+    return rawBuffer;
+  }
+
+  Charset getRawCharset() {
+    return rawCharset;
+  }
+
+  int getRawStart(int field) {
+    return rawStart[field];
+  }
+
+  int getRawEnd(int field) {
+    return rawEnd[field];
+  }
+
+  /**
+   * Decode a lazy field, if it hasn't been already.
+   */
+  private void decode(int field) {
+    if ((pending & (1 << field)) == 0) {
+      return;
+    }
+    String value;
+    if (sourceDataset != null) {
+      value = field == ADDRESS_LINE_1 ? sourceDataset.getAddressLine1(sourceRow)
+          : sourceDataset.getLocalAuthorityBusinessID(sourceRow);
+    } else {
+      byte[] bytes = new byte[rawEnd[field] - rawStart[field]];
+      rawBuffer.get(rawStart[field], bytes);
+      value = new String(bytes, rawCharset);
+    }
+    if (field == ADDRESS_LINE_1) {
+      this.addressLine1 = value;
+    } else {
+      this.localAuthorityBusinessID = value;
+    }
+    pending &= ~(1 << field);
   }
 
   /**
@@ -116,6 +274,7 @@ public class FoodSafetyData {
     try {
       return Integer.parseInt(value);
     } catch (NumberFormatException e) {
+      defaultedFields++;
       return -1;
     }
   }
@@ -132,28 +291,11 @@ public class FoodSafetyData {
     try {
       return Double.parseDouble(value);
     } catch (NumberFormatException e) {
+      defaultedFields++;
       return -1;
     }
   }
 
-  /**
-   * Utility function to parse a Date from a String. Expects a date in the format
-   * of yyyy-DD-MM (as provided by the FHRS CSV files).
-   * 
-   * Return a ParseException upon failure to do so.
-   * 
-   * @param value String to be parsed
-   * @return Parsed Date, upon success. null value if method fails.
-   */
-  private Date tryParseDate(String value) {
-    try {
-      SimpleDateFormat format = new SimpleDateFormat("yyyy-DD-MM");
-      return format.parse(value);
-    } catch (ParseException e) {
-      return null;
-    }
-  }
-
   /**
    * Utility function to convert this FoodSafetyData object into a human-readable
    * string (for testing purposes).
@@ -161,19 +303,128 @@ public class FoodSafetyData {
    * @return Complete string
    */
   public String toCSVString() {
-    return this.fhrsid + "," + this.localAuthorityBusinessID + "," + this.businessName + "," + this.businessType + ","
-        + this.businessTypeID + "," + this.addressLine1 + "," + this.addressLine2 + "," + this.addressLine3 + ","
+    return this.fhrsid + "," + getLocalAuthorityBusinessID() + "," + this.businessName + "," + this.businessType + ","
+        + this.businessTypeID + "," + getAddressLine1() + "," + this.addressLine2 + "," + this.addressLine3 + ","
         + this.addressLine4 + "," + this.postCode + "," + this.ratingValue + "," + this.ratingKey + ","
         + this.ratingDateNil + "," + this.localAuthorityCode + "," + this.localAuthorityName + ","
         + this.localAuthorityWebSite + "," + this.localAuthorityEmailAddress + "," + this.schemeType + ","
-        + this.newRatingPending + "," + this.longitude + "," + this.latitude + "," + this.ratingDate + ","
+        + this.newRatingPending + "," + this.longitude + "," + this.latitude + "," + formatRatingDate() + ","
         + this.hygieneScore + "," + this.structuralScore + "," + this.confidenceInManagementScore;
   }
 
+  /**
+   * @return Rating date in the format yyyy-MM-dd, or null if there isn't one
+   */
+  private String formatRatingDate() {
+    return this.ratingDate == RatingDates.NO_DATE ? null : LocalDate.ofEpochDay(this.ratingDate).toString();
+  }
+
   // Getters
 
+  public int getFhrsid() {
+    return this.fhrsid;
+  }
+
+  public String getLocalAuthorityBusinessID() {
+    decode(LOCAL_AUTHORITY_BUSINESS_ID);
+    return this.localAuthorityBusinessID;
+  }
+
   public String getBusinessName() {
     return this.businessName;
   }
 
+  public String getBusinessType() {
+    return this.businessType;
+  }
+
+  public int getBusinessTypeID() {
+    return this.businessTypeID;
+  }
+
+  public String getAddressLine1() {
+    decode(ADDRESS_LINE_1);
+    return this.addressLine1;
+  }
+
+  public String getAddressLine2() {
+    return this.addressLine2;
+  }
+
+  public String getAddressLine3() {
+    return this.addressLine3;
+  }
+
+  public String getAddressLine4() {
+    return this.addressLine4;
+  }
+
+  public String getPostCode() {
+    return this.postCode;
+  }
+
+  public String getRatingValue() {
+    return this.ratingValue;
+  }
+
+  public String getRatingKey() {
+    return this.ratingKey;
+  }
+
+  public boolean isRatingDateNil() {
+    return this.ratingDateNil;
+  }
+
+  public int getLocalAuthorityCode() {
+    return this.localAuthorityCode;
+  }
+
+  public String getLocalAuthorityName() {
+    return this.localAuthorityName;
+  }
+
+  public String getLocalAuthorityWebSite() {
+    return this.localAuthorityWebSite;
+  }
+
+  public String getLocalAuthorityEmailAddress() {
+    return this.localAuthorityEmailAddress;
+  }
+
+  public String getSchemeType() {
+    return this.schemeType;
+  }
+
+  public boolean isNewRatingPending() {
+    return this.newRatingPending;
+  }
+
+  public double getLongitude() {
+    return this.longitude;
+  }
+
+  public double getLatitude() {
+    return this.latitude;
+  }
+
+  /**
+   * @return Rating date as days since the epoch, or RatingDates.NO_DATE if there
+   *         isn't one
+   */
+  public int getRatingDate() {
+    return this.ratingDate;
+  }
+
+  public int getHygieneScore() {
+    return this.hygieneScore;
+  }
+
+  public int getStructuralScore() {
+    return this.structuralScore;
+  }
+
+  public int getConfidenceInManagementScore() {
+    return this.confidenceInManagementScore;
+  }
+
 }
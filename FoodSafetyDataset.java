@@ -0,0 +1,987 @@
+package com.breakingcode.unoptimised.data;
+
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.DoubleBuffer;
+import java.nio.IntBuffer;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.BitSet;
+
+/**
+ * Column oriented store for FoodSafetyData rows.
+ *
+ * Rather than keeping one object per row, every header is stored in its own
+ * array, indexed by row id. Numeric headers are kept as primitives, the rating
+ * date is kept as a number of days since the epoch, and String headers are
+ * dictionary encoded so each distinct value is only held once. Each row keeps
+ * its code in the narrowest array which fits the column's dictionary, so the
+ * low cardinality headers (such as RatingValue, BusinessType and the local
+ * authority headers) take a single byte per row. LocalAuthorityBusinessID and
+ * AddressLine1 are different on nearly every row, so rather than being
+ * dictionary encoded they are kept as UTF-8 bytes, which are copied straight
+ * from the file and only decoded when read.
+ *
+ * Rows are appended with {@link #add(FoodSafetyData)}, and can be read back
+ * either column by column or as a {@link FoodSafetyData} row with
+ * {@link #get(int)}.
+ *
+ * Once complete, a dataset can be moved off the Java heap with
+ * {@link #moveOffHeap()}, for a long running process holding a large dataset.
+ * The numeric columns, the codes of the String columns and the UTF-8 columns
+ * are then held in direct buffers, as are the values of the dictionaries with
+ * many values (BusinessName, the address lines and PostCode), so the heap only
+ * holds the small dictionaries and a few bitsets, and the garbage collector has
+ * next to nothing of the dataset's to trace or copy. The getters read from
+ * either in the same way, but no more rows can be added.
+ */
+public class FoodSafetyDataset {
+
+	/** Value stored in the rating date column for rows without a rating date */
+	public static final int NO_DATE = RatingDates.NO_DATE;
+
+	private int size;
+	private boolean offHeap;
+
+	// food hygiene rating scheme (FHRS) id
+	private final IntColumn fhrsid;
+
+	// business columns
+	private final Utf8Column localAuthorityBusinessID = new Utf8Column();
+	private final StringColumn businessName = new StringColumn(true);
+	private final StringColumn businessType = new StringColumn(false);
+	private final IntColumn businessTypeID;
+
+	// address columns
+	private final Utf8Column addressLine1 = new Utf8Column();
+	private final StringColumn addressLine2 = new StringColumn(true);
+	private final StringColumn addressLine3 = new StringColumn(true);
+	private final StringColumn addressLine4 = new StringColumn(true);
+	private final StringColumn postCode = new StringColumn(true);
+
+	// rating columns
+	private final StringColumn ratingValue = new StringColumn(false);
+	private final StringColumn ratingKey = new StringColumn(false);
+	private final BitSet ratingDateNil = new BitSet();
+
+	// local authority columns
+	private final IntColumn localAuthorityCode;
+	private final StringColumn localAuthorityName = new StringColumn(false);
+	private final StringColumn localAuthorityWebSite = new StringColumn(false);
+	private final StringColumn localAuthorityEmailAddress = new StringColumn(false);
+
+	// utility columns
+	private final StringColumn schemeType = new StringColumn(false);
+	private final BitSet newRatingPending = new BitSet();
+
+	// location columns (precise)
+	private final DoubleColumn longitude;
+	private final DoubleColumn latitude;
+
+	// rating information columns
+	private final IntColumn ratingDate;
+	private final IntColumn hygieneScore;
+	private final IntColumn structuralScore;
+	private final IntColumn confidenceInManagementScore;
+
+	public FoodSafetyDataset() {
+		this(1024);
+	}
+
+	/**
+	 * @param capacity Number of rows to allocate space for up front
+	 */
+	public FoodSafetyDataset(int capacity) {
+		capacity = Math.max(capacity, 1);
+		this.fhrsid = new IntColumn(capacity);
+		this.businessTypeID = new IntColumn(capacity);
+		this.localAuthorityCode = new IntColumn(capacity);
+		this.longitude = new DoubleColumn(capacity);
+		this.latitude = new DoubleColumn(capacity);
+		this.ratingDate = new IntColumn(capacity);
+		this.hygieneScore = new IntColumn(capacity);
+		this.structuralScore = new IntColumn(capacity);
+		this.confidenceInManagementScore = new IntColumn(capacity);
+	}
+
+	/**
+	 * Append a parsed row to the end of this dataset.
+	 *
+	 * @param data Row to be added
+	 * @return Row id of the added row
+	 */
+	public int add(FoodSafetyData data) {
+		checkOnHeap();
+		if (size == fhrsid.capacity()) {
+			grow();
+		}
+		int row = size++;
+
+		fhrsid.set(row, data.getFhrsid());
+
+		add(localAuthorityBusinessID, row, data, FoodSafetyData.LOCAL_AUTHORITY_BUSINESS_ID);
+		businessName.add(row, data.getBusinessName());
+		businessType.add(row, data.getBusinessType());
+		businessTypeID.set(row, data.getBusinessTypeID());
+
+		add(addressLine1, row, data, FoodSafetyData.ADDRESS_LINE_1);
+		addressLine2.add(row, data.getAddressLine2());
+		addressLine3.add(row, data.getAddressLine3());
+		addressLine4.add(row, data.getAddressLine4());
+		postCode.add(row, data.getPostCode());
+
+		ratingValue.add(row, data.getRatingValue());
+		ratingKey.add(row, data.getRatingKey());
+		ratingDateNil.set(row, data.isRatingDateNil());
+
+		localAuthorityCode.set(row, data.getLocalAuthorityCode());
+		localAuthorityName.add(row, data.getLocalAuthorityName());
+		localAuthorityWebSite.add(row, data.getLocalAuthorityWebSite());
+		localAuthorityEmailAddress.add(row, data.getLocalAuthorityEmailAddress());
+
+		schemeType.add(row, data.getSchemeType());
+		newRatingPending.set(row, data.isNewRatingPending());
+
+		longitude.set(row, data.getLongitude());
+		latitude.set(row, data.getLatitude());
+
+		ratingDate.set(row, data.getRatingDate());
+		hygieneScore.set(row, data.getHygieneScore());
+		structuralScore.set(row, data.getStructuralScore());
+		confidenceInManagementScore.set(row, data.getConfidenceInManagementScore());
+
+		return row;
+	}
+
+	/**
+	 * Add a lazy field of a row, copying its bytes across if it hasn't been
+	 * decoded yet.
+	 */
+	private static void add(Utf8Column column, int row, FoodSafetyData data, int field) {
+		if (data.isRaw(field)) {
+			column.add(row, data.getRawBuffer(), data.getRawStart(field), data.getRawEnd(field), data.getRawCharset());
+		} else {
+			column.add(row, field == FoodSafetyData.ADDRESS_LINE_1 ? data.getAddressLine1()
+					: data.getLocalAuthorityBusinessID());
+		}
+	}
+
+	/**
+	 * Append every row of another dataset to the end of this dataset.
+	 *
+	 * @param other Dataset whose rows are to be added
+	 */
+	public void addAll(FoodSafetyDataset other) {
+		addAll(other, 0, other.size);
+	}
+
+	/**
+	 * Append a range of rows of another dataset to the end of this dataset. String
+	 * columns are re-encoded against this dataset's dictionaries once per distinct
+	 * value, while the primitive columns are copied across in bulk.
+	 *
+	 * @param other Dataset whose rows are to be added
+	 * @param from  Row id of the first row to be added
+	 * @param count Number of rows to be added
+	 */
+	public void addAll(FoodSafetyDataset other, int from, int count) {
+		if (from < 0 || count < 0 || from + count > other.size) {
+			throw new IndexOutOfBoundsException("Rows " + from + " to " + (from + count) + ", Size: " + other.size);
+		}
+		checkOnHeap();
+		int offset = size;
+		while (fhrsid.capacity() < offset + count) {
+			grow();
+		}
+
+		fhrsid.addAll(offset, other.fhrsid, from, count);
+
+		localAuthorityBusinessID.addAll(offset, other.localAuthorityBusinessID, from, count);
+		businessName.addAll(offset, other.businessName, from, count);
+		businessType.addAll(offset, other.businessType, from, count);
+		businessTypeID.addAll(offset, other.businessTypeID, from, count);
+
+		addressLine1.addAll(offset, other.addressLine1, from, count);
+		addressLine2.addAll(offset, other.addressLine2, from, count);
+		addressLine3.addAll(offset, other.addressLine3, from, count);
+		addressLine4.addAll(offset, other.addressLine4, from, count);
+		postCode.addAll(offset, other.postCode, from, count);
+
+		ratingValue.addAll(offset, other.ratingValue, from, count);
+		ratingKey.addAll(offset, other.ratingKey, from, count);
+
+		localAuthorityCode.addAll(offset, other.localAuthorityCode, from, count);
+		localAuthorityName.addAll(offset, other.localAuthorityName, from, count);
+		localAuthorityWebSite.addAll(offset, other.localAuthorityWebSite, from, count);
+		localAuthorityEmailAddress.addAll(offset, other.localAuthorityEmailAddress, from, count);
+
+		schemeType.addAll(offset, other.schemeType, from, count);
+
+		for (int row = other.ratingDateNil.nextSetBit(from); row >= 0 && row < from + count; row = other.ratingDateNil
+				.nextSetBit(row + 1)) {
+			ratingDateNil.set(offset + row - from);
+		}
+		for (int row = other.newRatingPending.nextSetBit(from); row >= 0 && row < from + count; row = other.newRatingPending
+				.nextSetBit(row + 1)) {
+			newRatingPending.set(offset + row - from);
+		}
+
+		longitude.addAll(offset, other.longitude, from, count);
+		latitude.addAll(offset, other.latitude, from, count);
+
+		ratingDate.addAll(offset, other.ratingDate, from, count);
+		hygieneScore.addAll(offset, other.hygieneScore, from, count);
+		structuralScore.addAll(offset, other.structuralScore, from, count);
+		confidenceInManagementScore.addAll(offset, other.confidenceInManagementScore, from, count);
+
+		size += count;
+	}
+
+	private void grow() {
+		int capacity = Math.max(fhrsid.capacity() * 2, 16);
+		for (IntColumn column : intColumns()) {
+			column.ensureCapacity(capacity);
+		}
+		for (DoubleColumn column : doubleColumns()) {
+			column.ensureCapacity(capacity);
+		}
+	}
+
+	private void checkOnHeap() {
+		if (offHeap) {
+			throw new IllegalStateException("A dataset can't be changed or written once it is off the heap");
+		}
+	}
+
+	/**
+	 * Move every column of this dataset into direct buffers, off the Java heap. No
+	 * more rows can be added to it afterwards, though it can still be read from
+	 * by any number of threads, and copied from with
+	 * {@link #addAll(FoodSafetyDataset, int, int)}.
+	 */
+	public void moveOffHeap() {
+		if (offHeap) {
+			return;
+		}
+		for (IntColumn column : intColumns()) {
+			column.moveOffHeap(size);
+		}
+		for (DoubleColumn column : doubleColumns()) {
+			column.moveOffHeap(size);
+		}
+		for (StringColumn column : stringColumns()) {
+			column.moveOffHeap(size);
+		}
+		localAuthorityBusinessID.moveOffHeap(size);
+		addressLine1.moveOffHeap(size);
+		offHeap = true;
+	}
+
+	/**
+	 * @return Whether this dataset has been moved off the heap
+	 */
+	public boolean isOffHeap() {
+		return offHeap;
+	}
+
+	/**
+	 * Write every row of this dataset in the binary format read by
+	 * {@link #readFrom(ByteBuffer)}.
+	 *
+	 * @param out Stream to write to
+	 * @throws IOException if the stream can't be written to
+	 */
+	void writeTo(DataOutputStream out) throws IOException {
+		checkOnHeap();
+		out.writeInt(size);
+
+		for (IntColumn column : intColumns()) {
+			DatasetSnapshot.writeInts(out, column.values, size);
+		}
+		for (DoubleColumn column : doubleColumns()) {
+			DatasetSnapshot.writeDoubles(out, column.values, size);
+		}
+		DatasetSnapshot.writeLongs(out, ratingDateNil.toLongArray());
+		DatasetSnapshot.writeLongs(out, newRatingPending.toLongArray());
+
+		for (StringColumn column : stringColumns()) {
+			column.writeTo(out, size);
+		}
+		localAuthorityBusinessID.writeTo(out, size);
+		addressLine1.writeTo(out, size);
+	}
+
+	/**
+	 * Read a dataset written by {@link #writeTo(DataOutputStream)}.
+	 *
+	 * @param in Buffer positioned at the start of the dataset
+	 * @return Dataset read from the buffer
+	 */
+	static FoodSafetyDataset readFrom(ByteBuffer in) {
+		int size = in.getInt();
+		FoodSafetyDataset dataset = new FoodSafetyDataset(0);
+		dataset.size = size;
+
+		for (IntColumn column : dataset.intColumns()) {
+			column.values = DatasetSnapshot.readInts(in, size);
+		}
+		for (DoubleColumn column : dataset.doubleColumns()) {
+			column.values = DatasetSnapshot.readDoubles(in, size);
+		}
+		dataset.ratingDateNil.or(BitSet.valueOf(DatasetSnapshot.readLongs(in)));
+		dataset.newRatingPending.or(BitSet.valueOf(DatasetSnapshot.readLongs(in)));
+
+		for (StringColumn column : dataset.stringColumns()) {
+			column.readFrom(in, size);
+		}
+		dataset.localAuthorityBusinessID.readFrom(in, size);
+		dataset.addressLine1.readFrom(in, size);
+		return dataset;
+	}
+
+	/**
+	 * @return Every int column, in the order they are written by writeTo
+	 */
+	private IntColumn[] intColumns() {
+		return new IntColumn[] { fhrsid, businessTypeID, localAuthorityCode, ratingDate, hygieneScore, structuralScore,
+				confidenceInManagementScore };
+	}
+
+	/**
+	 * @return Every double column, in the order they are written by writeTo
+	 */
+	private DoubleColumn[] doubleColumns() {
+		return new DoubleColumn[] { longitude, latitude };
+	}
+
+	/**
+	 * @return Every dictionary encoded column, in the order they are written by
+	 *         writeTo
+	 */
+	private StringColumn[] stringColumns() {
+		return new StringColumn[] { businessName, businessType, addressLine2, addressLine3, addressLine4, postCode,
+				ratingValue, ratingKey, localAuthorityName, localAuthorityWebSite, localAuthorityEmailAddress,
+				schemeType };
+	}
+
+	/**
+	 * @return Number of rows held in this dataset
+	 */
+	public int size() {
+		return size;
+	}
+
+	/**
+	 * Materialise a single row of this dataset.
+	 *
+	 * @param row Row id
+	 * @return FoodSafetyData holding the values of that row
+	 */
+	public FoodSafetyData get(int row) {
+		checkRow(row);
+		return new FoodSafetyData(this, row);
+	}
+
+	private void checkRow(int row) {
+		if (row < 0 || row >= size) {
+			throw new IndexOutOfBoundsException("Row: " + row + ", Size: " + size);
+		}
+	}
+
+	// Column getters
+
+	public int getFhrsid(int row) {
+		return fhrsid.get(row);
+	}
+
+	public String getLocalAuthorityBusinessID(int row) {
+		return localAuthorityBusinessID.get(row);
+	}
+
+	public String getBusinessName(int row) {
+		return businessName.get(row);
+	}
+
+	public String getBusinessType(int row) {
+		return businessType.get(row);
+	}
+
+	public int getBusinessTypeID(int row) {
+		return businessTypeID.get(row);
+	}
+
+	public String getAddressLine1(int row) {
+		return addressLine1.get(row);
+	}
+
+	public String getAddressLine2(int row) {
+		return addressLine2.get(row);
+	}
+
+	public String getAddressLine3(int row) {
+		return addressLine3.get(row);
+	}
+
+	public String getAddressLine4(int row) {
+		return addressLine4.get(row);
+	}
+
+	public String getPostCode(int row) {
+		return postCode.get(row);
+	}
+
+	public String getRatingValue(int row) {
+		return ratingValue.get(row);
+	}
+
+	public String getRatingKey(int row) {
+		return ratingKey.get(row);
+	}
+
+	public boolean isRatingDateNil(int row) {
+		return ratingDateNil.get(row);
+	}
+
+	public int getLocalAuthorityCode(int row) {
+		return localAuthorityCode.get(row);
+	}
+
+	public String getLocalAuthorityName(int row) {
+		return localAuthorityName.get(row);
+	}
+
+	public String getLocalAuthorityWebSite(int row) {
+		return localAuthorityWebSite.get(row);
+	}
+
+	public String getLocalAuthorityEmailAddress(int row) {
+		return localAuthorityEmailAddress.get(row);
+	}
+
+	public String getSchemeType(int row) {
+		return schemeType.get(row);
+	}
+
+	public boolean isNewRatingPending(int row) {
+		return newRatingPending.get(row);
+	}
+
+	public double getLongitude(int row) {
+		return longitude.get(row);
+	}
+
+	public double getLatitude(int row) {
+		return latitude.get(row);
+	}
+
+	/**
+	 * @param row Row id
+	 * @return Rating date as days since the epoch, or NO_DATE if not available
+	 */
+	public int getRatingDate(int row) {
+		return ratingDate.get(row);
+	}
+
+	public int getHygieneScore(int row) {
+		return hygieneScore.get(row);
+	}
+
+	public int getStructuralScore(int row) {
+		return structuralScore.get(row);
+	}
+
+	public int getConfidenceInManagementScore(int row) {
+		return confidenceInManagementScore.get(row);
+	}
+
+	// Dictionary encoded column access
+
+	public int getBusinessNameCode(int row) {
+		return businessName.code(row);
+	}
+
+	public StringDictionary getBusinessNameDictionary() {
+		return businessName.dictionary;
+	}
+
+	public int getBusinessTypeCode(int row) {
+		return businessType.code(row);
+	}
+
+	public StringDictionary getBusinessTypeDictionary() {
+		return businessType.dictionary;
+	}
+
+	public int getLocalAuthorityNameCode(int row) {
+		return localAuthorityName.code(row);
+	}
+
+	public StringDictionary getLocalAuthorityNameDictionary() {
+		return localAuthorityName.dictionary;
+	}
+
+	public int getRatingValueCode(int row) {
+		return ratingValue.code(row);
+	}
+
+	public StringDictionary getRatingValueDictionary() {
+		return ratingValue.dictionary;
+	}
+
+	public int getRatingKeyCode(int row) {
+		return ratingKey.code(row);
+	}
+
+	public StringDictionary getRatingKeyDictionary() {
+		return ratingKey.dictionary;
+	}
+
+	public int getSchemeTypeCode(int row) {
+		return schemeType.code(row);
+	}
+
+	public StringDictionary getSchemeTypeDictionary() {
+		return schemeType.dictionary;
+	}
+
+	public int getAddressLine2Code(int row) {
+		return addressLine2.code(row);
+	}
+
+	public StringDictionary getAddressLine2Dictionary() {
+		return addressLine2.dictionary;
+	}
+
+	public int getAddressLine3Code(int row) {
+		return addressLine3.code(row);
+	}
+
+	public StringDictionary getAddressLine3Dictionary() {
+		return addressLine3.dictionary;
+	}
+
+	public int getAddressLine4Code(int row) {
+		return addressLine4.code(row);
+	}
+
+	public StringDictionary getAddressLine4Dictionary() {
+		return addressLine4.dictionary;
+	}
+
+	public int getPostCodeCode(int row) {
+		return postCode.code(row);
+	}
+
+	public StringDictionary getPostCodeDictionary() {
+		return postCode.dictionary;
+	}
+
+	/**
+	 * A single int column, held in an array until it is moved off the heap.
+	 */
+	private static class IntColumn {
+
+		private int[] values;
+		private IntBuffer offHeap;
+
+		private IntColumn(int capacity) {
+			this.values = new int[capacity];
+		}
+
+		private int get(int row) {
+			return values != null ? values[row] : offHeap.get(row);
+		}
+
+		private void set(int row, int value) {
+			values[row] = value;
+		}
+
+		private int capacity() {
+			return values.length;
+		}
+
+		private void ensureCapacity(int capacity) {
+			values = Arrays.copyOf(values, Math.max(values.length, capacity));
+		}
+
+		private void addAll(int offset, IntColumn other, int from, int count) {
+			if (other.values != null) {
+				System.arraycopy(other.values, from, values, offset, count);
+			} else {
+				other.offHeap.get(from, values, offset, count);
+			}
+		}
+
+		private void moveOffHeap(int size) {
+			offHeap = OffHeap.allocate(size * 4).asIntBuffer();
+			offHeap.put(values, 0, size);
+			values = null;
+		}
+	}
+
+	/**
+	 * A single double column, held in an array until it is moved off the heap.
+	 */
+	private static class DoubleColumn {
+
+		private double[] values;
+		private DoubleBuffer offHeap;
+
+		private DoubleColumn(int capacity) {
+			this.values = new double[capacity];
+		}
+
+		private double get(int row) {
+			return values != null ? values[row] : offHeap.get(row);
+		}
+
+		private void set(int row, double value) {
+			values[row] = value;
+		}
+
+		private void ensureCapacity(int capacity) {
+			values = Arrays.copyOf(values, Math.max(values.length, capacity));
+		}
+
+		private void addAll(int offset, DoubleColumn other, int from, int count) {
+			if (other.values != null) {
+				System.arraycopy(other.values, from, values, offset, count);
+			} else {
+				other.offHeap.get(from, values, offset, count);
+			}
+		}
+
+		private void moveOffHeap(int size) {
+			offHeap = OffHeap.allocate(size * 8).asDoubleBuffer();
+			offHeap.put(values, 0, size);
+			values = null;
+		}
+	}
+
+	/**
+	 * A single dictionary encoded String column.
+	 *
+	 * Codes are held in bytes while the dictionary has up to 256 values, in shorts
+	 * up to 65536, and in ints beyond that; the array is widened the first time a
+	 * code doesn't fit. Exactly one of the three arrays is in use at a time, until
+	 * the column is moved off the heap, when the codes are copied into a direct
+	 * buffer at the same width.
+	 */
+	private static class StringColumn {
+
+		private static final int BYTE_CODES = 1 << 8;
+		private static final int SHORT_CODES = 1 << 16;
+
+		private final StringDictionary dictionary = new StringDictionary();
+		private final boolean manyValues;
+		private byte[] byteCodes = new byte[16];
+		private short[] shortCodes;
+		private int[] intCodes;
+		// only once off the heap: the codes, at codeWidth bytes each
+		private ByteBuffer offHeapCodes;
+		private int codeWidth;
+
+		/**
+		 * @param manyValues Whether the dictionary has enough values for them to be
+		 *                   moved off the heap along with the codes
+		 */
+		private StringColumn(boolean manyValues) {
+			this.manyValues = manyValues;
+		}
+
+		private int code(int row) {
+			if (byteCodes != null) {
+				return byteCodes[row] & 0xFF;
+			} else if (shortCodes != null) {
+				return shortCodes[row] & 0xFFFF;
+			} else if (intCodes != null) {
+				return intCodes[row];
+			} else if (codeWidth == 1) {
+				return offHeapCodes.get(row) & 0xFF;
+			} else if (codeWidth == 2) {
+				return offHeapCodes.getShort(row << 1) & 0xFFFF;
+			}
+			return offHeapCodes.getInt(row << 2);
+		}
+
+		private void set(int row, int code) {
+			if (byteCodes != null) {
+				if (code < BYTE_CODES) {
+					byteCodes[row] = (byte) code;
+					return;
+				}
+				widen();
+			}
+			if (shortCodes != null) {
+				if (code < SHORT_CODES) {
+					shortCodes[row] = (short) code;
+					return;
+				}
+				widen();
+			}
+			intCodes[row] = code;
+		}
+
+		/**
+		 * Move the codes into the next wider array.
+		 */
+		private void widen() {
+			if (byteCodes != null) {
+				shortCodes = new short[byteCodes.length];
+				for (int row = 0; row < byteCodes.length; row++) {
+					shortCodes[row] = (short) (byteCodes[row] & 0xFF);
+				}
+				byteCodes = null;
+			} else {
+				intCodes = new int[shortCodes.length];
+				for (int row = 0; row < shortCodes.length; row++) {
+					intCodes[row] = shortCodes[row] & 0xFFFF;
+				}
+				shortCodes = null;
+			}
+		}
+
+		private int capacity() {
+			return byteCodes != null ? byteCodes.length : shortCodes != null ? shortCodes.length : intCodes.length;
+		}
+
+		private void ensureCapacity(int capacity) {
+			if (capacity <= capacity()) {
+				return;
+			}
+			capacity = Math.max(capacity(), capacity);
+			if (byteCodes != null) {
+				byteCodes = Arrays.copyOf(byteCodes, capacity);
+			} else if (shortCodes != null) {
+				shortCodes = Arrays.copyOf(shortCodes, capacity);
+			} else {
+				intCodes = Arrays.copyOf(intCodes, capacity);
+			}
+		}
+
+		private void add(int row, String value) {
+			if (row == capacity()) {
+				ensureCapacity(Math.max(row * 2, 16));
+			}
+			set(row, dictionary.encode(value));
+		}
+
+		private void addAll(int offset, StringColumn other, int from, int count) {
+			if (capacity() < offset + count) {
+				ensureCapacity(Math.max(capacity() * 2, offset + count));
+			}
+
+			// map the other column's codes onto codes in this dictionary, as they are met
+			int[] remap = new int[other.dictionary.size()];
+			Arrays.fill(remap, StringDictionary.NOT_FOUND);
+			for (int row = 0; row < count; row++) {
+				int code = other.code(from + row);
+				if (remap[code] == StringDictionary.NOT_FOUND) {
+					remap[code] = dictionary.encode(other.dictionary.decode(code));
+				}
+				set(offset + row, remap[code]);
+			}
+		}
+
+		private String get(int row) {
+			return dictionary.decode(code(row));
+		}
+
+		private void moveOffHeap(int size) {
+			codeWidth = byteCodes != null ? 1 : shortCodes != null ? 2 : 4;
+			offHeapCodes = OffHeap.allocate(size * codeWidth);
+			if (byteCodes != null) {
+				offHeapCodes.put(byteCodes, 0, size);
+			} else if (shortCodes != null) {
+				offHeapCodes.asShortBuffer().put(shortCodes, 0, size);
+			} else {
+				offHeapCodes.asIntBuffer().put(intCodes, 0, size);
+			}
+			byteCodes = null;
+			shortCodes = null;
+			intCodes = null;
+			if (manyValues) {
+				dictionary.moveOffHeap();
+			}
+		}
+
+		/**
+		 * Write the dictionary and then the codes. Codes are dense, so the size of the
+		 * dictionary decides which width they are held (and written) at.
+		 */
+		private void writeTo(DataOutputStream out, int size) throws IOException {
+			out.writeInt(dictionary.size());
+			for (int code = 0; code < dictionary.size(); code++) {
+				DatasetSnapshot.writeString(out, dictionary.decode(code));
+			}
+			if (byteCodes != null) {
+				out.write(byteCodes, 0, size);
+			} else if (shortCodes != null) {
+				DatasetSnapshot.writeShorts(out, shortCodes, size);
+			} else {
+				DatasetSnapshot.writeInts(out, intCodes, size);
+			}
+		}
+
+		private void readFrom(ByteBuffer in, int size) {
+			int count = in.getInt();
+			for (int code = 0; code < count; code++) {
+				dictionary.append(DatasetSnapshot.readString(in));
+			}
+			byteCodes = null;
+			if (count <= BYTE_CODES) {
+				byteCodes = DatasetSnapshot.readBytes(in, size);
+			} else if (count <= SHORT_CODES) {
+				shortCodes = DatasetSnapshot.readShorts(in, size);
+			} else {
+				intCodes = DatasetSnapshot.readInts(in, size);
+			}
+			for (int row = 0; row < size; row++) {
+				int code = code(row);
+				if (code < 0 || code >= count) {
+					throw new IllegalArgumentException("Invalid dictionary code " + code + " in row " + row);
+				}
+			}
+		}
+	}
+
+	/**
+	 * A String column whose values are different on nearly every row, held as the
+	 * UTF-8 bytes of each value one after another. A dictionary would cost a
+	 * String and a map entry for every row without sharing anything, whereas here
+	 * a row costs its bytes and one offset, and is only decoded when read. Moving
+	 * the column off the heap copies both into direct buffers.
+	 */
+	private static class Utf8Column {
+
+		private byte[] bytes = new byte[1024];
+		private int length;
+		// offset just past the bytes of each row's value
+		private int[] ends = new int[16];
+		private final BitSet nulls = new BitSet();
+		// only once off the heap
+		private ByteBuffer offHeapBytes;
+		private IntBuffer offHeapEnds;
+
+		private int start(int row) {
+			return row == 0 ? 0 : end(row - 1);
+		}
+
+		private int end(int row) {
+			return ends != null ? ends[row] : offHeapEnds.get(row);
+		}
+
+		private void ensureCapacity(int rows, int extraBytes) {
+			if (ends.length < rows) {
+				ends = Arrays.copyOf(ends, Math.max(ends.length * 2, rows));
+			}
+			if (bytes.length - length < extraBytes) {
+				bytes = Arrays.copyOf(bytes, Math.max(bytes.length * 2, length + extraBytes));
+			}
+		}
+
+		private void add(int row, String value) {
+			if (value == null) {
+				ensureCapacity(row + 1, 0);
+				nulls.set(row);
+			} else {
+				byte[] encoded = value.getBytes(StandardCharsets.UTF_8);
+				ensureCapacity(row + 1, encoded.length);
+				System.arraycopy(encoded, 0, bytes, length, encoded.length);
+				length += encoded.length;
+			}
+			ends[row] = length;
+		}
+
+		/**
+		 * Add a value straight from the bytes of a file. The parser already relies on
+		 * the file's charset encoding ASCII as ASCII, which is the same as UTF-8, so
+		 * the bytes are copied as they are unless they hold something else (and the
+		 * charset isn't UTF-8), in which case they are decoded and encoded again.
+		 */
+		private void add(int row, ByteBuffer buffer, int start, int end, Charset charset) {
+			int count = end - start;
+			ensureCapacity(row + 1, count);
+			boolean utf8 = StandardCharsets.UTF_8.equals(charset);
+			for (int i = 0; i < count; i++) {
+				byte b = buffer.get(start + i);
+				if (b < 0 && !utf8) {
+					byte[] raw = new byte[count];
+					buffer.get(start, raw);
+					add(row, new String(raw, charset));
+					return;
+				}
+				bytes[length + i] = b;
+			}
+			length += count;
+			ends[row] = length;
+		}
+
+		private void addAll(int offset, Utf8Column other, int from, int count) {
+			if (count == 0) {
+				return;
+			}
+			int first = other.start(from);
+			int last = other.end(from + count - 1);
+			ensureCapacity(offset + count, last - first);
+			if (other.bytes != null) {
+				System.arraycopy(other.bytes, first, bytes, length, last - first);
+			} else {
+				other.offHeapBytes.get(first, bytes, length, last - first);
+			}
+			int shift = length - first;
+			for (int row = 0; row < count; row++) {
+				ends[offset + row] = other.end(from + row) + shift;
+			}
+			for (int row = other.nulls.nextSetBit(from); row >= 0 && row < from + count; row = other.nulls
+					.nextSetBit(row + 1)) {
+				nulls.set(offset + row - from);
+			}
+			length += last - first;
+		}
+
+		private String get(int row) {
+			if (nulls.get(row)) {
+				return null;
+			}
+			int start = start(row);
+			int end = end(row);
+			if (bytes != null) {
+				return new String(bytes, start, end - start, StandardCharsets.UTF_8);
+			}
+			byte[] value = new byte[end - start];
+			offHeapBytes.get(start, value);
+			return new String(value, StandardCharsets.UTF_8);
+		}
+
+		private void moveOffHeap(int size) {
+			offHeapBytes = OffHeap.allocate(length);
+			offHeapBytes.put(bytes, 0, length);
+			offHeapEnds = OffHeap.allocate(size * 4).asIntBuffer();
+			offHeapEnds.put(ends, 0, size);
+			bytes = null;
+			ends = null;
+		}
+
+		private void writeTo(DataOutputStream out, int size) throws IOException {
+			DatasetSnapshot.writeInts(out, ends, size);
+			out.write(bytes, 0, size == 0 ? 0 : ends[size - 1]);
+			DatasetSnapshot.writeLongs(out, nulls.toLongArray());
+		}
+
+		private void readFrom(ByteBuffer in, int size) {
+			ends = DatasetSnapshot.readInts(in, size);
+			for (int row = 0; row < size; row++) {
+				if (ends[row] < start(row)) {
+					throw new IllegalArgumentException("Invalid value offset " + ends[row] + " in row " + row);
+				}
+			}
+			length = size == 0 ? 0 : ends[size - 1];
+			bytes = DatasetSnapshot.readBytes(in, length);
+			nulls.or(BitSet.valueOf(DatasetSnapshot.readLongs(in)));
+		}
+	}
+
+}
@@ -0,0 +1,430 @@
+package com.breakingcode.unoptimised.data;
+
+import java.io.File;
+import java.io.FileReader;
+import java.io.IOException;
+import java.io.Reader;
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.function.LongSupplier;
+
+import org.apache.commons.csv.CSVFormat;
+import org.apache.commons.csv.CSVRecord;
+
+import com.breakingcode.unoptimised.data.DatasetSnapshot.Entry;
+import com.breakingcode.unoptimised.data.enums.Headers;
+import com.breakingcode.unoptimised.metrics.Counter;
+import com.breakingcode.unoptimised.metrics.Metrics;
+import com.breakingcode.unoptimised.metrics.Timer;
+
+/**
+ * Loads a directory of FHRS CSV files into a single {@link FoodSafetyDataset}.
+ *
+ * Files are parsed concurrently on a fixed size pool of worker threads. Each
+ * worker fills its own dataset for the file it is parsing, so workers never
+ * share any state; the per file datasets are then appended to the result one
+ * at a time, in file name order, so the row order and the list of authorities
+ * are the same on every run.
+ *
+ * If given a snapshot file, the loader keeps a binary snapshot of the loaded
+ * dataset there. When no file has changed since the snapshot was written the
+ * dataset is read straight back from it; otherwise the rows of the unchanged
+ * files are copied from it, only the changed files are parsed, and the snapshot
+ * is rewritten. {@link #reload(File, LoadResult)} does the same with the result
+ * of an earlier load in place of the snapshot.
+ *
+ * A reload still builds a whole new merged dataset, and rewrites the whole
+ * snapshot, even when only one authority has changed. Each authority is a
+ * partition of the rows (see AuthorityPartitions), but only a range of one
+ * shared set of columns: a changed file can have a different number of rows,
+ * moving the row ids of every later authority, and every index over the
+ * dataset, the result cache and the snapshot are keyed by those row ids. So
+ * the rows of the unchanged files are copied across by range, which is a bulk
+ * copy of each column, and the indexes are built again over the new dataset.
+ *
+ * With {@code -Dfoodsafety.offheap=true} the dataset of each load is moved off
+ * the Java heap once it is complete (see {@link FoodSafetyDataset#moveOffHeap()}),
+ * after the snapshot has been written.
+ *
+ * Each phase of a load is timed in the Load group of {@link Metrics}.
+ */
+public class FoodSafetyLoader {
+
+	/** CSV format shared by every file, as all FHRS files use the same headers */
+	private static final CSVFormat FORMAT = CSVFormat.DEFAULT.withHeader(Headers.class).withFirstRecordAsHeader();
+
+	/** Whether loaded datasets are moved off the heap */
+	public static final boolean OFF_HEAP = Boolean.getBoolean("foodsafety.offheap");
+
+	private static final Timer LOAD = Metrics.timer("Load", "load");
+	private static final Timer SNAPSHOT_READ = Metrics.timer("Load", "snapshotRead");
+	private static final Timer PARSE_FILE = Metrics.timer("Load", "parseFile");
+	private static final Timer MERGE_FILE = Metrics.timer("Load", "mergeFile");
+	private static final Timer SNAPSHOT_WRITE = Metrics.timer("Load", "snapshotWrite");
+	private static final Timer MOVE_OFF_HEAP = Metrics.timer("Load", "moveOffHeap");
+	private static final Counter FILES_PARSED = Metrics.counter("Load", "filesParsed");
+	private static final Counter FILES_CACHED = Metrics.counter("Load", "filesCached");
+	private static final Counter FILES_FAILED = Metrics.counter("Load", "filesFailed");
+
+	// rows in the dataset of the most recent load, by any loader
+	private static volatile int loadedRows;
+
+	static {
+		Metrics.gauge("Load", "rowsLoaded", new LongSupplier() {
+			@Override
+			public long getAsLong() {
+				return loadedRows;
+			}
+		});
+		// only a rough guide, as the heap in use includes garbage and everything else held
+		Metrics.gauge("Load", "heapBytesPerRow", new LongSupplier() {
+			@Override
+			public long getAsLong() {
+				int rows = loadedRows;
+				return rows == 0 ? 0 : ManagementFactory.getMemoryMXBean().getHeapMemoryUsage().getUsed() / rows;
+			}
+		});
+		// includes the direct buffers of earlier loads until they are collected
+		Metrics.gauge("Load", "directBytes", new LongSupplier() {
+			@Override
+			public long getAsLong() {
+				return OffHeap.used();
+			}
+		});
+	}
+
+	private final int threads;
+	private final File snapshot;
+
+	/**
+	 * Creates a loader using one worker thread per available processor, without a
+	 * snapshot.
+	 */
+	public FoodSafetyLoader() {
+		this(Runtime.getRuntime().availableProcessors());
+	}
+
+	/**
+	 * @param threads Maximum number of files to parse at once
+	 */
+	public FoodSafetyLoader(int threads) {
+		this(threads, null);
+	}
+
+	/**
+	 * @param threads  Maximum number of files to parse at once
+	 * @param snapshot File to keep a snapshot of the parsed files in, or null for
+	 *                 no snapshot
+	 */
+	public FoodSafetyLoader(int threads, File snapshot) {
+		if (threads < 1) {
+			throw new IllegalArgumentException("threads must be at least 1, was " + threads);
+		}
+		this.threads = threads;
+		this.snapshot = snapshot;
+	}
+
+	/**
+	 * Parse every CSV file in the given directory.
+	 *
+	 * Files which fail to parse don't stop the rest of the directory from being
+	 * loaded; they are reported in the returned result instead.
+	 *
+	 * @param directory Directory holding one FHRS CSV file per authority
+	 * @return Result of the load
+	 * @throws IOException if the directory can't be listed
+	 */
+	public LoadResult load(File directory) throws IOException {
+		return load(directory, null);
+	}
+
+	/**
+	 * Load the given directory again after some of its files have changed. Rows of
+	 * the files which haven't changed since the previous load are copied from its
+	 * dataset, so only added or modified files are parsed. The previous result
+	 * isn't changed, so it can still be used while the directory is reloaded.
+	 *
+	 * @param directory Directory holding one FHRS CSV file per authority
+	 * @param previous  Result of the last load of the directory
+	 * @return Result of the load, or the previous result if no file has changed
+	 * @throws IOException if the directory can't be listed
+	 */
+	public LoadResult reload(File directory, LoadResult previous) throws IOException {
+		if (previous == null) {
+			throw new IllegalArgumentException("previous must not be null");
+		}
+		return load(directory, previous);
+	}
+
+	private LoadResult load(File directory, LoadResult previous) throws IOException {
+		long start = LOAD.start();
+		LoadResult result = loadFiles(directory, previous);
+		if (OFF_HEAP && result != previous) {
+			long moveStart = MOVE_OFF_HEAP.start();
+			result.dataset.moveOffHeap();
+			MOVE_OFF_HEAP.stop(moveStart);
+		}
+		LOAD.stop(start);
+		if (result != previous) {
+			loadedRows = result.dataset.size();
+			FILES_CACHED.add(result.cached.size());
+			FILES_FAILED.add(result.failures.size());
+		}
+		return result;
+	}
+
+	private LoadResult loadFiles(File directory, LoadResult previous) throws IOException {
+		File[] files = directory.listFiles();
+		if (files == null) {
+			throw new IOException("Unable to list directory: " + directory);
+		}
+		Arrays.sort(files);
+
+		LoadResult result = new LoadResult();
+		List<File> csvFiles = new ArrayList<File>(files.length);
+		for (File file : files) {
+			if (file.getName().contains(".csv")) {
+				csvFiles.add(file);
+			} else {
+				result.skipped.add(file.getName());
+			}
+		}
+		if (csvFiles.isEmpty()) {
+			return result;
+		}
+
+		// rows of the unchanged files, which are copied across rather than parsed
+		Map<String, Entry> cachedEntries = Collections.emptyMap();
+		FoodSafetyDataset cachedDataset = null;
+		if (previous != null) {
+			if (DatasetSnapshot.matches(previous.entries, csvFiles)) {
+				return previous;
+			}
+			cachedEntries = previous.entries;
+			cachedDataset = previous.dataset;
+		} else {
+			long start = SNAPSHOT_READ.start();
+			DatasetSnapshot cached = readSnapshot(result);
+			if (cached != null) {
+				try {
+					cachedDataset = cached.getDataset();
+					cachedEntries = cached.getEntries();
+				} catch (IOException e) {
+					result.snapshotFailure = e;
+				}
+			}
+			if (snapshot != null) {
+				SNAPSHOT_READ.stop(start);
+			}
+			if (cachedDataset != null && DatasetSnapshot.matches(cachedEntries, csvFiles)) {
+				result.dataset = cachedDataset;
+				for (File file : csvFiles) {
+					result.entries.put(file.getName(), cachedEntries.get(file.getName()));
+					result.authorities.add(file.getName());
+					result.cached.add(file.getName());
+				}
+				return result;
+			}
+		}
+
+		List<Entry> entries = new ArrayList<Entry>(csvFiles.size());
+		ExecutorService executor = Executors.newFixedThreadPool(Math.min(threads, csvFiles.size()));
+		try {
+			List<Future<FoodSafetyDataset>> futures = new ArrayList<Future<FoodSafetyDataset>>(csvFiles.size());
+			for (final File file : csvFiles) {
+				Entry entry = cachedEntries.get(file.getName());
+				if (entry != null && entry.matches(file)) {
+					entries.add(entry);
+					futures.add(null);
+					continue;
+				}
+				entries.add(new Entry(file));
+				futures.add(executor.submit(new Callable<FoodSafetyDataset>() {
+					@Override
+					public FoodSafetyDataset call() throws IOException {
+						long start = PARSE_FILE.start();
+						FoodSafetyDataset dataset = parseFile(file);
+						PARSE_FILE.stop(start);
+						FILES_PARSED.increment();
+						return dataset;
+					}
+				}));
+			}
+
+			// merge in submission (file name) order, while later files are still parsing
+			for (int i = 0; i < csvFiles.size(); i++) {
+				String name = csvFiles.get(i).getName();
+				Entry entry = entries.get(i);
+				int firstRow = result.dataset.size();
+				if (futures.get(i) == null) {
+					long start = MERGE_FILE.start();
+					result.dataset.addAll(cachedDataset, entry.getFirstRow(), entry.getRowCount());
+					MERGE_FILE.stop(start);
+					result.cached.add(name);
+				} else {
+					try {
+						FoodSafetyDataset parsed = futures.get(i).get();
+						long start = MERGE_FILE.start();
+						result.dataset.addAll(parsed);
+						MERGE_FILE.stop(start);
+					} catch (ExecutionException e) {
+						result.failures.put(name, e.getCause());
+						continue;
+					}
+				}
+				result.entries.put(name, entry.withRows(firstRow, result.dataset.size() - firstRow));
+				result.authorities.add(name);
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IOException("Interrupted while loading " + directory, e);
+		} finally {
+			executor.shutdownNow();
+		}
+
+		if (snapshot != null) {
+			long start = SNAPSHOT_WRITE.start();
+			try {
+				DatasetSnapshot.write(snapshot, result.entries.values(), result.dataset);
+			} catch (IOException e) {
+				result.snapshotFailure = e;
+			}
+			SNAPSHOT_WRITE.stop(start);
+		}
+
+		return result;
+	}
+
+	/**
+	 * Read the snapshot file, if this loader has one. A snapshot which can't be
+	 * read is reported in the result, and treated as missing.
+	 */
+	private DatasetSnapshot readSnapshot(LoadResult result) {
+		if (snapshot != null) {
+			try {
+				return DatasetSnapshot.read(snapshot);
+			} catch (IOException e) {
+				result.snapshotFailure = e;
+			}
+		}
+		return null;
+	}
+
+	/**
+	 * Parse a single CSV file into its own dataset.
+	 *
+	 * @param file FHRS CSV file
+	 * @return Dataset holding every row of the file
+	 * @throws IOException if the file can't be read
+	 */
+	public static FoodSafetyDataset parseFile(File file) throws IOException {
+		return MappedFoodSafetyParser.parse(file);
+	}
+
+	/**
+	 * Parse a single CSV file into its own dataset, using commons-csv for every
+	 * row.
+	 *
+	 * @param file FHRS CSV file
+	 * @return Dataset holding every row of the file
+	 * @throws IOException if the file can't be read
+	 */
+	public static FoodSafetyDataset parseFileWithCommonsCsv(File file) throws IOException {
+		final FoodSafetyDataset dataset = new FoodSafetyDataset();
+		streamWithCommonsCsv(file, new Sink<FoodSafetyData>() {
+			@Override
+			public boolean accept(FoodSafetyData row) {
+				dataset.add(row);
+				return true;
+			}
+		});
+		return dataset;
+	}
+
+	/**
+	 * Parse a single CSV file with commons-csv, passing each row to the sink as it
+	 * is read.
+	 *
+	 * @return False if the sink stopped the parse early, otherwise true
+	 */
+	static boolean streamWithCommonsCsv(File file, Sink<? super FoodSafetyData> sink) throws IOException {
+		try (Reader in = new FileReader(file)) {
+			for (CSVRecord record : FORMAT.parse(in)) {
+				if (!sink.accept(new FoodSafetyData(record))) {
+					return false;
+				}
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * Everything produced by a call to {@link FoodSafetyLoader#load(File)}.
+	 */
+	public static class LoadResult {
+
+		private FoodSafetyDataset dataset = new FoodSafetyDataset();
+		private final List<String> authorities = new ArrayList<String>();
+		private final List<String> skipped = new ArrayList<String>();
+		private final Map<String, Throwable> failures = new LinkedHashMap<String, Throwable>();
+		private final List<String> cached = new ArrayList<String>();
+		private IOException snapshotFailure;
+		// where the rows of each loaded file are, for reloading the directory
+		private final Map<String, Entry> entries = new LinkedHashMap<String, Entry>();
+
+		/**
+		 * @return Rows of every file which was loaded successfully
+		 */
+		public FoodSafetyDataset getDataset() {
+			return dataset;
+		}
+
+		/**
+		 * @return File names of the authorities loaded, in file name order
+		 */
+		public List<String> getAuthorities() {
+			return Collections.unmodifiableList(authorities);
+		}
+
+		/**
+		 * @return File names in the directory which aren't CSV files
+		 */
+		public List<String> getSkipped() {
+			return Collections.unmodifiableList(skipped);
+		}
+
+		/**
+		 * @return Cause of failure for each file which couldn't be loaded
+		 */
+		public Map<String, Throwable> getFailures() {
+			return Collections.unmodifiableMap(failures);
+		}
+
+		/**
+		 * @return File names of the authorities read from the snapshot rather than
+		 *         parsed
+		 */
+		public List<String> getCached() {
+			return Collections.unmodifiableList(cached);
+		}
+
+		/**
+		 * @return Why the snapshot couldn't be read or written, or null if there was
+		 *         no problem with it
+		 */
+		public IOException getSnapshotFailure() {
+			return snapshotFailure;
+		}
+	}
+
+}
@@ -0,0 +1,630 @@
+package com.breakingcode.unoptimised.query;
+
+import java.time.LocalDate;
+import java.time.YearMonth;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ForkJoinPool;
+
+import com.breakingcode.unoptimised.data.FoodSafetyDataset;
+import com.breakingcode.unoptimised.data.IntList;
+import com.breakingcode.unoptimised.data.StringDictionary;
+import com.breakingcode.unoptimised.metrics.Metrics;
+import com.breakingcode.unoptimised.metrics.Timer;
+import com.breakingcode.unoptimised.query.BusinessNameSearch.NameMatch;
+
+/**
+ * Queries over a loaded FoodSafetyDataset.
+ *
+ * The indexes these queries use are built once, when this object is created,
+ * and every query returns the row ids of its results in row order (apart from
+ * nearest premises queries, which return the nearest first, and rating date
+ * queries, which return them in date order).
+ *
+ * An establishment in more than one row (by FHRSID) is only counted once, by
+ * the row of its latest rating (see {@link FhrsidIndex}); the older rows are its
+ * rating history. Every lookup and summary only sees current rows, apart from
+ * the rating date queries and trends, which are over every inspection.
+ *
+ * Rows are partitioned by local authority (see {@link AuthorityPartitions}), so
+ * lookups by authority only read that authority's rows, and scans of every
+ * authority run over the partitions in parallel.
+ *
+ * Results of the business name and rating lookups are kept in a
+ * {@link ResultCache}, so the same lookup run again is answered from there. The
+ * lists returned may therefore be shared between callers, so they are made
+ * read only (see {@link IntList#makeReadOnly()}). The cache belongs to this
+ * object, so a reload, which builds new queries, starts with an empty one.
+ *
+ * Building the indexes is timed in the Load group of {@link Metrics}, and
+ * each kind of lookup is timed in the Query group.
+ */
+public class FoodSafetyQueries {
+
+	/** Rating value of rows whose rating can't be read */
+	public static final int NO_RATING = -999;
+	/** Rating value of rows awaiting inspection */
+	public static final int AWAITING_INSPECTION = -666;
+	/** Rating value of rows which are exempt */
+	public static final int EXEMPT = -111;
+
+	/** Largest edit distance allowed when suggesting business names */
+	public static final int MAX_SUGGESTION_DISTANCE = 2;
+
+	private static final Timer BUILD_INDEXES = Metrics.timer("Load", "buildIndexes");
+	private static final Timer FIND_PREMISES = Metrics.timer("Query", "findPremises");
+	private static final Timer SUGGEST_NAMES = Metrics.timer("Query", "suggestBusinessNames");
+	private static final Timer FIND_FILTERED = Metrics.timer("Query", "findPremisesFiltered");
+	private static final Timer FIND_AUTHORITY = Metrics.timer("Query", "findAuthorityPremises");
+	private static final Timer FIND_RATINGS_ABOVE = Metrics.timer("Query", "findRatingsAbove");
+	private static final Timer FIND_RATINGS_BELOW = Metrics.timer("Query", "findRatingsBelow");
+	private static final Timer FIND_RATINGS_BETWEEN = Metrics.timer("Query", "findRatingsBetween");
+	private static final Timer FIND_RATINGS_EQUAL = Metrics.timer("Query", "findRatingsEqualTo");
+	private static final Timer FIND_NEAREST = Metrics.timer("Query", "findNearest");
+	private static final Timer FIND_IN_BOX = Metrics.timer("Query", "findInBox");
+	private static final Timer FIND_WITHIN_RADIUS = Metrics.timer("Query", "findWithinRadius");
+	private static final Timer FIND_RATED_BETWEEN = Metrics.timer("Query", "findRatedBetween");
+	private static final Timer GET_TREND = Metrics.timer("Query", "getTrend");
+	private static final Timer FIND_BY_FHRSID = Metrics.timer("Query", "findByFhrsid");
+	private static final Timer FIND_BY_POSTCODE = Metrics.timer("Query", "findByPostcode");
+	private static final Timer FIND_BY_ADDRESS = Metrics.timer("Query", "findByAddress");
+	private static final Timer FILTER_PREMISES = Metrics.timer("Query", "filterPremises");
+
+	private final FoodSafetyDataset dataset;
+	private final FhrsidIndex establishments;
+	private final BusinessNameIndex names;
+	private final BusinessNameSearch nameSearch;
+	private final SortedNames sortedNames;
+	// rating value of each code in the rating value dictionary
+	private final int[] ratingsByCode;
+	private final RatingIndex ratings;
+	// runs of rows with the same local authority name
+	private final AuthorityPartitions partitions;
+	private final SpatialIndex locations;
+	private final AddressIndex addresses;
+	private final SummaryCube summary;
+	private final DateIndex dates;
+	private final ResultCache cache;
+
+	/**
+	 * @param dataset Dataset to be queried
+	 */
+	public FoodSafetyQueries(FoodSafetyDataset dataset) {
+		long start = BUILD_INDEXES.start();
+		this.dataset = dataset;
+		this.establishments = new FhrsidIndex(dataset);
+		// rows superseded by a newer rating of the same establishment are left out
+		BitSet current = establishments.currentRows();
+		this.names = new BusinessNameIndex(dataset, current);
+		this.nameSearch = new BusinessNameSearch(names);
+		this.sortedNames = new SortedNames(dataset.getBusinessNameDictionary(), namesIn(dataset, current));
+
+		StringDictionary ratingValues = dataset.getRatingValueDictionary();
+		this.ratingsByCode = new int[ratingValues.size()];
+		for (int code = 0; code < ratingsByCode.length; code++) {
+			ratingsByCode[code] = ratingValueOf(ratingValues.decode(code));
+		}
+		this.ratings = new RatingIndex(dataset, ratingsByCode, current);
+
+		this.partitions = new AuthorityPartitions(dataset, current, ForkJoinPool.commonPool());
+		this.locations = new SpatialIndex(dataset, current);
+		this.addresses = new AddressIndex(dataset, current);
+		this.summary = new SummaryCube(dataset, ratingsByCode, current, ForkJoinPool.commonPool());
+		this.dates = new DateIndex(dataset, ratingsByCode);
+		this.cache = ResultCache.fromSystemProperties();
+		BUILD_INDEXES.stop(start);
+	}
+
+	/**
+	 * @return Business name codes of the given rows, or null for every row
+	 */
+	private static BitSet namesIn(FoodSafetyDataset dataset, BitSet rows) {
+		if (rows == null) {
+			return null;
+		}
+		BitSet codes = new BitSet(dataset.getBusinessNameDictionary().size());
+		for (int row = rows.nextSetBit(0); row >= 0; row = rows.nextSetBit(row + 1)) {
+			codes.set(dataset.getBusinessNameCode(row));
+		}
+		return codes;
+	}
+
+	/**
+	 * Utility function to convert a RatingValue into a number. Special values are
+	 * converted into one of the (negative) constants of this class.
+	 *
+	 * @param ratingValue RatingValue as found in the CSV files
+	 * @return Rating as a number
+	 */
+	public static int ratingValueOf(String ratingValue) {
+		if (ratingValue == null) {
+			return NO_RATING;
+		} else if (ratingValue.equals("AwaitingInspection")) {
+			return AWAITING_INSPECTION;
+		} else if (ratingValue.equals("Exempt")) {
+			return EXEMPT;
+		} else {
+			try {
+				return Integer.parseInt(ratingValue);
+			} catch (NumberFormatException e) {
+				return NO_RATING;
+			}
+		}
+	}
+
+	public FoodSafetyDataset getDataset() {
+		return dataset;
+	}
+
+	/**
+	 * @param row Row id
+	 * @return Rating of the row as a number (see {@link #ratingValueOf(String)})
+	 */
+	public int getRating(int row) {
+		return ratingsByCode[dataset.getRatingValueCode(row)];
+	}
+
+	/**
+	 * @param fhrsid FHRSID of an establishment
+	 * @return Row of its current rating, or {@link FhrsidIndex#NOT_FOUND}
+	 */
+	public int findByFhrsid(int fhrsid) {
+		long start = FIND_BY_FHRSID.start();
+		int row = establishments.current(fhrsid);
+		FIND_BY_FHRSID.stop(start);
+		return row;
+	}
+
+	/**
+	 * @param fhrsid FHRSID of an establishment
+	 * @return Rows of every rating of the establishment, newest (current) first
+	 */
+	public IntList getRatingHistory(int fhrsid) {
+		return establishments.history(fhrsid);
+	}
+
+	/**
+	 * @return Index of the current row of each establishment
+	 */
+	public FhrsidIndex getEstablishments() {
+		return establishments;
+	}
+
+	/**
+	 * @param name Business name (ignoring case)
+	 * @return Every premises with that name (read only, as it may be shared)
+	 */
+	public IntList findPremises(String name) {
+		long start = FIND_PREMISES.start();
+		ResultCache.Key key = ResultCache.key("premises", name, 0, 0);
+		IntList result = cache.get(key);
+		if (result == null) {
+			int[] rows = names.rows(name);
+			result = new IntList(rows.length);
+			for (int row : rows) {
+				result.add(row);
+			}
+			cache.put(key, result);
+		}
+		FIND_PREMISES.stop(start);
+		return result;
+	}
+
+	/**
+	 * @param name Business name (ignoring case)
+	 * @return Whether any premises has that name
+	 */
+	public boolean hasPremises(String name) {
+		return names.rows(name).length > 0;
+	}
+
+	/**
+	 * @param prefix Start of a business name (ignoring case)
+	 * @param limit  Maximum number of names to return
+	 * @return Business names starting with the prefix, most premises first
+	 */
+	public List<NameMatch> completeBusinessNames(String prefix, int limit) {
+		return nameSearch.complete(prefix, limit);
+	}
+
+	/**
+	 * @param query       Business name, possibly misspelt
+	 * @param maxDistance Maximum edit distance from the query
+	 * @param limit       Maximum number of names to return
+	 * @return Business names close to the query, closest first
+	 */
+	public List<NameMatch> searchBusinessNames(String query, int maxDistance, int limit) {
+		return nameSearch.search(query, maxDistance, limit);
+	}
+
+	/**
+	 * Suggest business names for something a user typed: names starting with it
+	 * come first, followed by names within a few typos of it. Short queries allow
+	 * fewer typos, as almost every short name is within two edits of them.
+	 *
+	 * @param query Business name or the start of one, possibly misspelt
+	 * @param limit Maximum number of names to return
+	 * @return Suggested business names
+	 */
+	public List<NameMatch> suggestBusinessNames(String query, int limit) {
+		long start = SUGGEST_NAMES.start();
+		List<NameMatch> suggestions = new ArrayList<NameMatch>(completeBusinessNames(query, limit));
+		if (suggestions.size() < limit) {
+			int maxDistance = Math.min(MAX_SUGGESTION_DISTANCE, query.length() / 3);
+			Set<String> seen = new HashSet<String>();
+			for (NameMatch match : suggestions) {
+				seen.add(match.getName());
+			}
+			for (NameMatch match : searchBusinessNames(query, maxDistance, limit)) {
+				if (suggestions.size() < limit && seen.add(match.getName())) {
+					suggestions.add(match);
+				}
+			}
+		}
+		SUGGEST_NAMES.stop(start);
+		return suggestions;
+	}
+
+	/**
+	 * @return Distinct business names, in sorted order
+	 */
+	public SortedNames getBusinessNames() {
+		return sortedNames;
+	}
+
+	/**
+	 * @return Rating statistics by local authority and business type
+	 */
+	public SummaryCube getSummary() {
+		return summary;
+	}
+
+	/**
+	 * @return Cache of the results of business name and rating lookups
+	 */
+	public ResultCache getResultCache() {
+		return cache;
+	}
+
+	/**
+	 * @return Rows rated above the given value
+	 */
+	public BitSet ratingsAbove(int value) {
+		return ratings.above(value);
+	}
+
+	/**
+	 * @return Rows rated below the given value
+	 */
+	public BitSet ratingsBelow(int value) {
+		return ratings.below(value);
+	}
+
+	/**
+	 * @return Rows rated between the given values (both exclusive)
+	 */
+	public BitSet ratingsBetween(int minimum, int maximum) {
+		return ratings.between(minimum, maximum);
+	}
+
+	/**
+	 * @return Rows with exactly the given rating, such as EXEMPT or
+	 *         AWAITING_INSPECTION
+	 */
+	public BitSet ratingsEqualTo(int rating) {
+		return ratings.equalTo(rating);
+	}
+
+	/**
+	 * @param name Business name (ignoring case)
+	 * @param rows Rows to keep, such as those returned by {@link #ratingsAbove(int)}
+	 * @return Premises with that name which are in the given rows
+	 */
+	public IntList findPremises(String name, BitSet rows) {
+		long start = FIND_FILTERED.start();
+		IntList result = new IntList();
+		for (int row : names.rows(name)) {
+			if (rows.get(row)) {
+				result.add(row);
+			}
+		}
+		FIND_FILTERED.stop(start);
+		return result;
+	}
+
+	/**
+	 * @param authority LocalAuthorityName of the premises
+	 * @param rows      Rows to keep, such as those returned by
+	 *                  {@link #ratingsAbove(int)}
+	 * @return Premises in that authority which are in the given rows
+	 */
+	public IntList findAuthorityPremises(String authority, BitSet rows) {
+		long start = FIND_AUTHORITY.start();
+		IntList result = partitions.find(authority, rows);
+		FIND_AUTHORITY.stop(start);
+		return result;
+	}
+
+	/**
+	 * Scan the premises of some authorities, or of all of them, for those accepted
+	 * by a filter. Only the rows of the given authorities are read; a scan of
+	 * every authority is spread over the common fork-join pool.
+	 *
+	 * @param authorities LocalAuthorityNames to scan, or null for every authority
+	 * @param filter      Premises to keep, such as those with a rating above 3, or
+	 *                    null for every premises
+	 * @return Premises accepted by the filter
+	 */
+	public IntList filterPremises(Collection<String> authorities, AuthorityPartitions.RowFilter filter) {
+		long start = FILTER_PREMISES.start();
+		IntList result = partitions.find(authorities, filter);
+		FILTER_PREMISES.stop(start);
+		return result;
+	}
+
+	/**
+	 * @return Partitions of the dataset by local authority
+	 */
+	public AuthorityPartitions getPartitions() {
+		return partitions;
+	}
+
+	/**
+	 * @param name  Business name (ignoring case)
+	 * @param value Rating to compare against
+	 * @return Premises with that name, rated above the given value (read only, as
+	 *         it may be shared)
+	 */
+	public IntList findRatingsAbove(String name, int value) {
+		long start = FIND_RATINGS_ABOVE.start();
+		ResultCache.Key key = ResultCache.key("above", name, value, 0);
+		IntList result = cache.get(key);
+		if (result == null) {
+			result = findRated(name, value, Long.MAX_VALUE);
+			cache.put(key, result);
+		}
+		FIND_RATINGS_ABOVE.stop(start);
+		return result;
+	}
+
+	/**
+	 * @param name  Business name (ignoring case)
+	 * @param value Rating to compare against
+	 * @return Premises with that name, rated below the given value (read only, as
+	 *         it may be shared)
+	 */
+	public IntList findRatingsBelow(String name, int value) {
+		long start = FIND_RATINGS_BELOW.start();
+		ResultCache.Key key = ResultCache.key("below", name, value, 0);
+		IntList result = cache.get(key);
+		if (result == null) {
+			result = findRated(name, Long.MIN_VALUE, value);
+			cache.put(key, result);
+		}
+		FIND_RATINGS_BELOW.stop(start);
+		return result;
+	}
+
+	/**
+	 * @param name    Business name (ignoring case)
+	 * @param minimum Lower bound (exclusive)
+	 * @param maximum Upper bound (exclusive)
+	 * @return Premises with that name, rated between the given values (read only, as
+	 *         it may be shared)
+	 */
+	public IntList findRatingsBetween(String name, int minimum, int maximum) {
+		long start = FIND_RATINGS_BETWEEN.start();
+		ResultCache.Key key = ResultCache.key("between", name, minimum, maximum);
+		IntList result = cache.get(key);
+		if (result == null) {
+			result = findRated(name, minimum, maximum);
+			cache.put(key, result);
+		}
+		FIND_RATINGS_BETWEEN.stop(start);
+		return result;
+	}
+
+	/**
+	 * @param name   Business name (ignoring case)
+	 * @param rating Rating to match, such as EXEMPT or AWAITING_INSPECTION
+	 * @return Premises with that name and rating (read only, as it may be shared)
+	 */
+	public IntList findRatingsEqualTo(String name, int rating) {
+		long start = FIND_RATINGS_EQUAL.start();
+		ResultCache.Key key = ResultCache.key("equal", name, rating, 0);
+		IntList result = cache.get(key);
+		if (result == null) {
+			result = findRated(name, rating - 1L, rating + 1L);
+			cache.put(key, result);
+		}
+		FIND_RATINGS_EQUAL.stop(start);
+		return result;
+	}
+
+	/**
+	 * Find the premises with a name rated between two bounds, by testing the
+	 * rating of each of the name's own rows, so the lookup costs as much as the
+	 * name has premises rather than a bitmap of the whole dataset. As with the
+	 * rating index, a rating which can't be read never matches.
+	 *
+	 * @param lower Lower bound (exclusive)
+	 * @param upper Upper bound (exclusive)
+	 */
+	private IntList findRated(String name, long lower, long upper) {
+		IntList result = new IntList();
+		for (int row : names.rows(name)) {
+			int rating = getRating(row);
+			if (rating != NO_RATING && rating > lower && rating < upper) {
+				result.add(row);
+			}
+		}
+		return result;
+	}
+
+	/**
+	 * @param latitude  Latitude of the point
+	 * @param longitude Longitude of the point
+	 * @param count     Maximum number of premises to return
+	 * @return Premises nearest to the point, nearest first
+	 */
+	public IntList findNearest(double latitude, double longitude, int count) {
+		long start = FIND_NEAREST.start();
+		IntList result = locations.nearest(latitude, longitude, count, null);
+		FIND_NEAREST.stop(start);
+		return result;
+	}
+
+	/**
+	 * @param latitude  Latitude of the point
+	 * @param longitude Longitude of the point
+	 * @param count     Maximum number of premises to return
+	 * @param rows      Rows to keep, such as those returned by
+	 *                  {@link #ratingsAbove(int)}
+	 * @return Premises in the given rows nearest to the point, nearest first
+	 */
+	public IntList findNearest(double latitude, double longitude, int count, BitSet rows) {
+		long start = FIND_NEAREST.start();
+		IntList result = locations.nearest(latitude, longitude, count, rows);
+		FIND_NEAREST.stop(start);
+		return result;
+	}
+
+	/**
+	 * @param minLatitude  Southern edge of the box
+	 * @param minLongitude Western edge of the box
+	 * @param maxLatitude  Northern edge of the box
+	 * @param maxLongitude Eastern edge of the box
+	 * @param rows         Rows to keep, such as those returned by
+	 *                     {@link #ratingsAbove(int)}, or null for every row
+	 * @return Premises inside the box which are in the given rows
+	 */
+	public IntList findInBox(double minLatitude, double minLongitude, double maxLatitude, double maxLongitude,
+			BitSet rows) {
+		long start = FIND_IN_BOX.start();
+		IntList result = locations.inBox(minLatitude, minLongitude, maxLatitude, maxLongitude, rows);
+		FIND_IN_BOX.stop(start);
+		return result;
+	}
+
+	/**
+	 * @param latitude  Latitude of the centre
+	 * @param longitude Longitude of the centre
+	 * @param radiusKm  Distance from the centre, in kilometres
+	 * @param rows      Rows to keep, such as those returned by
+	 *                  {@link #ratingsAbove(int)}, or null for every row
+	 * @return Premises within the distance of the centre which are in the given
+	 *         rows
+	 */
+	public IntList findWithinRadius(double latitude, double longitude, double radiusKm, BitSet rows) {
+		long start = FIND_WITHIN_RADIUS.start();
+		IntList result = locations.withinRadius(latitude, longitude, radiusKm, rows);
+		FIND_WITHIN_RADIUS.stop(start);
+		return result;
+	}
+
+	/**
+	 * @param minLatitude  Southern edge of the box
+	 * @param minLongitude Western edge of the box
+	 * @param maxLatitude  Northern edge of the box
+	 * @param maxLongitude Eastern edge of the box
+	 * @param maximum      Highest rating to include
+	 * @return Premises inside the box rated from 0 up to the given value
+	 */
+	public IntList findRatingsInBox(double minLatitude, double minLongitude, double maxLatitude, double maxLongitude,
+			int maximum) {
+		return findInBox(minLatitude, minLongitude, maxLatitude, maxLongitude, ratingsBetween(-1, maximum + 1));
+	}
+
+	/**
+	 * @param latitude  Latitude of the centre
+	 * @param longitude Longitude of the centre
+	 * @param radiusKm  Distance from the centre, in kilometres
+	 * @param maximum   Highest rating to include
+	 * @return Premises within the distance of the centre rated from 0 up to the
+	 *         given value
+	 */
+	public IntList findRatingsWithinRadius(double latitude, double longitude, double radiusKm, int maximum) {
+		return findWithinRadius(latitude, longitude, radiusKm, ratingsBetween(-1, maximum + 1));
+	}
+
+	/**
+	 * @param postcode Outward code such as "L1" or "M14", sector such as "L1 9",
+	 *                 or full postcode (ignoring case and spaces)
+	 * @return Premises in the postcode district, sector or unit
+	 */
+	public IntList findByPostcode(String postcode) {
+		long start = FIND_BY_POSTCODE.start();
+		IntList result = addresses.postcode(postcode);
+		FIND_BY_POSTCODE.stop(start);
+		return result;
+	}
+
+	/**
+	 * @param terms    Words which must all be in the address lines, such as "high
+	 *                 street", or null for any address
+	 * @param postcode Postcode district, sector or unit, or null for any postcode
+	 * @return Premises matching both, or none if both are null
+	 */
+	public IntList findByAddress(String terms, String postcode) {
+		long start = FIND_BY_ADDRESS.start();
+		IntList result = addresses.find(terms, postcode);
+		FIND_BY_ADDRESS.stop(start);
+		return result;
+	}
+
+	/**
+	 * @param from Earliest rating date
+	 * @param to   Latest rating date (inclusive)
+	 * @return Premises rated from the first date to the last, in date order
+	 */
+	public IntList findRatedBetween(LocalDate from, LocalDate to) {
+		return findRatedBetween(null, null, from, to);
+	}
+
+	/**
+	 * @param authority    LocalAuthorityName, or null for every authority
+	 * @param businessType BusinessType, or null for every business type
+	 * @param from         Earliest rating date
+	 * @param to           Latest rating date (inclusive)
+	 * @return Premises of the authority and business type rated from the first
+	 *         date to the last, in date order
+	 */
+	public IntList findRatedBetween(String authority, String businessType, LocalDate from, LocalDate to) {
+		long start = FIND_RATED_BETWEEN.start();
+		IntList result = dates.between(authority, businessType, from, to);
+		FIND_RATED_BETWEEN.stop(start);
+		return result;
+	}
+
+	/**
+	 * @param authority       LocalAuthorityName, or null for every authority
+	 * @param businessType    BusinessType, or null for every business type
+	 * @param from            First month
+	 * @param to              Last month (inclusive)
+	 * @param monthsPerBucket Months in each bucket: 1 for monthly, 3 for
+	 *                        quarterly, 12 for yearly
+	 * @return Rating statistics of the premises rated in each bucket, named by
+	 *         its first month (yyyy-MM)
+	 */
+	public List<RatingStatistics> getTrend(String authority, String businessType, YearMonth from, YearMonth to,
+			int monthsPerBucket) {
+		long start = GET_TREND.start();
+		List<RatingStatistics> result = dates.trend(authority, businessType, from, to, monthsPerBucket);
+		GET_TREND.stop(start);
+		return result;
+	}
+
+	/**
+	 * @param rows Row ids, in any order
+	 * @return The same rows, most recently rated first, followed by any without a
+	 *         rating date
+	 */
+	public IntList sortNewestFirst(IntList rows) {
+		return dates.newestFirst(rows);
+	}
+
+}
@@ -0,0 +1,206 @@
+package com.breakingcode.unoptimised.data;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.function.BiFunction;
+import java.util.function.Function;
+import java.util.function.Predicate;
+
+/**
+ * Single pass pipeline over the rows of a directory of FHRS CSV files, for jobs
+ * such as counts, histograms and exports which don't need the whole dataset.
+ *
+ * Rows are pushed from the parser through each stage as they are read, and
+ * nothing is kept between rows, so memory use is the same however many files
+ * the directory holds. Every stage runs on the caller's thread: the parser
+ * only reads the next row once the previous one has passed through every
+ * stage, and any stage can stop the stream (as {@link #limit(long)} does), at
+ * which point no more of the directory is read.
+ *
+ * The parser refills a single FoodSafetyData object for each row, so stages
+ * must not hold on to a row; a stage which needs to keep something from a row
+ * should {@link #map(Function)} it to a value of its own.
+ *
+ * Streams are lazy: nothing is read until one of the terminal operations (such
+ * as {@link #count()}) is called, and each call reads the directory again.
+ *
+ * @param <T> Type of value passed along the stream
+ */
+public abstract class FoodSafetyStream<T> {
+
+	FoodSafetyStream() {
+	}
+
+	/**
+	 * @param directory Directory holding one FHRS CSV file per authority
+	 * @return Stream of the rows of every CSV file, in file name order
+	 */
+	public static FoodSafetyStream<FoodSafetyData> of(final File directory) {
+		return new FoodSafetyStream<FoodSafetyData>() {
+			@Override
+			boolean run(Sink<? super FoodSafetyData> sink) throws IOException {
+				File[] files = directory.listFiles();
+				if (files == null) {
+					throw new IOException("Unable to list directory: " + directory);
+				}
+				Arrays.sort(files);
+				for (File file : files) {
+					if (file.getName().contains(".csv") && !MappedFoodSafetyParser.stream(file, sink)) {
+						return false;
+					}
+				}
+				return true;
+			}
+		};
+	}
+
+	/**
+	 * Push every value of this stream into the sink, until the sink stops it.
+	 *
+	 * @return False if the stream was stopped early, otherwise true
+	 */
+	abstract boolean run(Sink<? super T> sink) throws IOException;
+
+	/**
+	 * @param predicate Test for the values to keep
+	 * @return Stream of the values passing the test
+	 */
+	public FoodSafetyStream<T> filter(final Predicate<? super T> predicate) {
+		return new FoodSafetyStream<T>() {
+			@Override
+			boolean run(final Sink<? super T> sink) throws IOException {
+				return FoodSafetyStream.this.run(new Sink<T>() {
+					@Override
+					public boolean accept(T value) throws IOException {
+						return !predicate.test(value) || sink.accept(value);
+					}
+				});
+			}
+		};
+	}
+
+	/**
+	 * @param mapper Function from each value to the value to pass on
+	 * @return Stream of the mapped values
+	 */
+	public <R> FoodSafetyStream<R> map(final Function<? super T, ? extends R> mapper) {
+		return new FoodSafetyStream<R>() {
+			@Override
+			boolean run(final Sink<? super R> sink) throws IOException {
+				return FoodSafetyStream.this.run(new Sink<T>() {
+					@Override
+					public boolean accept(T value) throws IOException {
+						return sink.accept(mapper.apply(value));
+					}
+				});
+			}
+		};
+	}
+
+	/**
+	 * @param count Number of values to pass on
+	 * @return Stream of the first values of this stream, which stops reading once
+	 *         it has them
+	 */
+	public FoodSafetyStream<T> limit(final long count) {
+		return new FoodSafetyStream<T>() {
+			@Override
+			boolean run(final Sink<? super T> sink) throws IOException {
+				if (count <= 0) {
+					return false;
+				}
+				return FoodSafetyStream.this.run(new Sink<T>() {
+					private long passed;
+
+					@Override
+					public boolean accept(T value) throws IOException {
+						return sink.accept(value) && ++passed < count;
+					}
+				});
+			}
+		};
+	}
+
+	/**
+	 * Pass every value to the sink, until it returns false.
+	 *
+	 * @param sink Sink for each value
+	 * @throws IOException if a file can't be read, or the sink fails
+	 */
+	public void forEach(Sink<? super T> sink) throws IOException {
+		run(sink);
+	}
+
+	/**
+	 * @return Number of values in the stream
+	 * @throws IOException if a file can't be read
+	 */
+	public long count() throws IOException {
+		final long[] count = new long[1];
+		run(new Sink<T>() {
+			@Override
+			public boolean accept(T value) {
+				count[0]++;
+				return true;
+			}
+		});
+		return count[0];
+	}
+
+	/**
+	 * Combine every value of the stream into a single result.
+	 *
+	 * @param identity    Result for an empty stream
+	 * @param accumulator Function combining the result so far with the next value
+	 * @return Result of combining every value
+	 * @throws IOException if a file can't be read
+	 */
+	public <A> A reduce(A identity, final BiFunction<A, ? super T, A> accumulator) throws IOException {
+		final Object[] result = { identity };
+		run(new Sink<T>() {
+			@SuppressWarnings("unchecked")
+			@Override
+			public boolean accept(T value) {
+				result[0] = accumulator.apply((A) result[0], value);
+				return true;
+			}
+		});
+		@SuppressWarnings("unchecked")
+		A reduced = (A) result[0];
+		return reduced;
+	}
+
+	/**
+	 * Count the values of the stream by a key, such as a histogram of ratings.
+	 *
+	 * @param key Function from each value to its key; the key is kept, so it must
+	 *            not be the row itself
+	 * @return Number of values with each key
+	 * @throws IOException if a file can't be read
+	 */
+	public <K> Map<K, Long> countBy(final Function<? super T, ? extends K> key) throws IOException {
+		final Map<K, long[]> counts = new HashMap<K, long[]>();
+		run(new Sink<T>() {
+			@Override
+			public boolean accept(T value) {
+				K k = key.apply(value);
+				long[] count = counts.get(k);
+				if (count == null) {
+					count = new long[1];
+					counts.put(k, count);
+				}
+				count[0]++;
+				return true;
+			}
+		});
+		Map<K, Long> result = new HashMap<K, Long>(counts.size() * 4 / 3 + 1);
+		for (Map.Entry<K, long[]> entry : counts.entrySet()) {
+			result.put(entry.getKey(), entry.getValue()[0]);
+		}
+		return result;
+	}
+
+}
@@ -0,0 +1,21 @@
+package com.breakingcode.unoptimised.metrics;
+
+import java.util.function.LongSupplier;
+
+/**
+ * Value which is read when it is asked for, such as the number of rows loaded.
+ */
+public class Gauge implements GaugeMBean {
+
+	private final LongSupplier value;
+
+	Gauge(LongSupplier value) {
+		this.value = value;
+	}
+
+	@Override
+	public long getValue() {
+		return value.getAsLong();
+	}
+
+}
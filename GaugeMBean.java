@@ -0,0 +1,10 @@
+package com.breakingcode.unoptimised.metrics;
+
+/**
+ * JMX view of a {@link Gauge}.
+ */
+public interface GaugeMBean {
+
+	long getValue();
+
+}
@@ -0,0 +1,88 @@
+package com.breakingcode.unoptimised.data;
+
+import java.util.Arrays;
+
+/**
+ * Growable list of primitive ints, used for row ids so that query results don't
+ * have to box every entry into an Integer.
+ *
+ * A list can be made read only once it is complete, such as when it is cached
+ * and shared between callers, after which adding to it throws.
+ */
+public class IntList {
+
+	private int[] values;
+	private int size;
+	private boolean readOnly;
+
+	public IntList() {
+		this(16);
+	}
+
+	public IntList(int capacity) {
+		this.values = new int[Math.max(capacity, 1)];
+	}
+
+	public void add(int value) {
+		checkWritable();
+		if (size == values.length) {
+			values = Arrays.copyOf(values, size * 2);
+		}
+		values[size++] = value;
+	}
+
+	/**
+	 * Append every value of another list, in order.
+	 */
+	public void addAll(IntList other) {
+		checkWritable();
+		if (size + other.size > values.length) {
+			values = Arrays.copyOf(values, Math.max(size + other.size, size * 2));
+		}
+		System.arraycopy(other.values, 0, values, size, other.size);
+		size += other.size;
+	}
+
+	/**
+	 * Stop this list from being changed again.
+	 *
+	 * @return This list
+	 */
+	public IntList makeReadOnly() {
+		readOnly = true;
+		return this;
+	}
+
+	public boolean isReadOnly() {
+		return readOnly;
+	}
+
+	private void checkWritable() {
+		if (readOnly) {
+			throw new UnsupportedOperationException("List is read only");
+		}
+	}
+
+	public int get(int index) {
+		if (index >= size) {
+			throw new IndexOutOfBoundsException("Index: " + index + ", Size: " + size);
+		}
+		return values[index];
+	}
+
+	public int size() {
+		return size;
+	}
+
+	public boolean isEmpty() {
+		return size == 0;
+	}
+
+	/**
+	 * @return Copy of the values in this list, trimmed to its size
+	 */
+	public int[] toArray() {
+		return Arrays.copyOf(values, size);
+	}
+
+}
@@ -0,0 +1,113 @@
+package com.breakingcode.unoptimised;
+
+import java.io.IOException;
+import java.time.LocalDate;
+
+import com.breakingcode.unoptimised.data.FoodSafetyDataset;
+import com.breakingcode.unoptimised.data.IntList;
+import com.breakingcode.unoptimised.query.RatingStatistics;
+
+/**
+ * Writes query results as JSON, for the batch and server modes.
+ */
+class Json {
+
+	private Json() {
+	}
+
+	/**
+	 * Write the given rows as a JSON array of premises objects.
+	 */
+	static void writeRows(Appendable out, FoodSafetyDataset dataset, IntList rows) throws IOException {
+		out.append('[');
+		for (int i = 0; i < rows.size(); i++) {
+			if (i > 0) {
+				out.append(',');
+			}
+			writeRow(out, dataset, rows.get(i));
+		}
+		out.append(']');
+	}
+
+	/**
+	 * Write a single row as a JSON object.
+	 */
+	static void writeRow(Appendable out, FoodSafetyDataset dataset, int row) throws IOException {
+		out.append("{\"fhrsid\":").append(Integer.toString(dataset.getFhrsid(row)));
+		writeField(out, "businessName", dataset.getBusinessName(row));
+		writeField(out, "businessType", dataset.getBusinessType(row));
+		writeField(out, "addressLine1", dataset.getAddressLine1(row));
+		writeField(out, "postCode", dataset.getPostCode(row));
+		writeField(out, "localAuthorityName", dataset.getLocalAuthorityName(row));
+		writeField(out, "ratingValue", dataset.getRatingValue(row));
+		writeField(out, "ratingDate", formatDate(dataset, row));
+		out.append(",\"hygieneScore\":").append(Integer.toString(dataset.getHygieneScore(row)));
+		out.append(",\"structuralScore\":").append(Integer.toString(dataset.getStructuralScore(row)));
+		out.append(",\"confidenceInManagementScore\":")
+				.append(Integer.toString(dataset.getConfidenceInManagementScore(row)));
+		out.append('}');
+	}
+
+	/**
+	 * Write the rating statistics of a group as a JSON object, with null for any
+	 * average of nothing.
+	 */
+	static void writeStatistics(Appendable out, RatingStatistics statistics) throws IOException {
+		out.append("{\"name\":");
+		writeString(out, statistics.getName());
+		out.append(",\"premises\":").append(Long.toString(statistics.getPremises()));
+		writeNumber(out, "averageRating", statistics.getAverageRating());
+		writeNumber(out, "averageHygieneScore", statistics.getAverageHygieneScore());
+		writeNumber(out, "averageStructuralScore", statistics.getAverageStructuralScore());
+		writeNumber(out, "averageConfidenceInManagementScore", statistics.getAverageConfidenceInManagementScore());
+		out.append('}');
+	}
+
+	/**
+	 * Write ,"name":value (or null if it isn't a number).
+	 */
+	static void writeNumber(Appendable out, String name, double value) throws IOException {
+		out.append(",\"").append(name).append("\":");
+		out.append(Double.isNaN(value) ? "null" : Double.toString(value));
+	}
+
+	/**
+	 * @return Rating date of the row in the format yyyy-MM-dd, or null if it has
+	 *         none
+	 */
+	static String formatDate(FoodSafetyDataset dataset, int row) {
+		int date = dataset.getRatingDate(row);
+		return date == FoodSafetyDataset.NO_DATE ? null : LocalDate.ofEpochDay(date).toString();
+	}
+
+	/**
+	 * Write ,"name":"value" (or null).
+	 */
+	static void writeField(Appendable out, String name, String value) throws IOException {
+		out.append(",\"").append(name).append("\":");
+		writeString(out, value);
+	}
+
+	/**
+	 * Write a JSON string, or null.
+	 */
+	static void writeString(Appendable out, String value) throws IOException {
+		if (value == null) {
+			out.append("null");
+			return;
+		}
+		out.append('"');
+		for (int i = 0; i < value.length(); i++) {
+			char c = value.charAt(i);
+			if (c == '"' || c == '\\') {
+				out.append('\\').append(c);
+			} else if (c < 0x20) {
+				out.append(String.format("\\u%04x", (int) c));
+			} else {
+				out.append(c);
+			}
+		}
+		out.append('"');
+	}
+
+}
@@ -1,32 +1,52 @@
 package com.breakingcode.unoptimised;
 
 import java.io.File;
-import java.io.FileReader;
 import java.io.IOException;
-import java.io.Reader;
-import java.text.SimpleDateFormat;
-import java.util.ArrayList;
-import java.util.Collections;
-import java.util.Comparator;
-import java.util.Date;
-import java.util.LinkedList;
+import java.time.LocalDate;
+import java.time.format.DateTimeFormatter;
 import java.util.List;
+import java.util.Map;
 import java.util.Scanner;
 
-import org.apache.commons.csv.CSVFormat;
-import org.apache.commons.csv.CSVRecord;
-
+import com.breakingcode.unoptimised.data.DatasetWatcher;
 import com.breakingcode.unoptimised.data.FoodSafetyData;
-import com.breakingcode.unoptimised.data.enums.Headers;
+import com.breakingcode.unoptimised.data.FoodSafetyDataset;
+import com.breakingcode.unoptimised.data.FoodSafetyLoader;
+import com.breakingcode.unoptimised.data.FoodSafetyLoader.LoadResult;
+import com.breakingcode.unoptimised.data.IntList;
+import com.breakingcode.unoptimised.query.BusinessNameSearch.NameMatch;
+import com.breakingcode.unoptimised.query.FoodSafetyQueries;
+import com.breakingcode.unoptimised.query.RatingStatistics;
+import com.breakingcode.unoptimised.query.SortedNames;
 
 public class Main {
 
-	private final List<FoodSafetyData> foodSafetyList = new LinkedList<FoodSafetyData>();
-	private final List<String> authorities = new ArrayList<String>();
+	static final String DIRECTORY = "./datasets-foodsafety/";
+	// binary copy of the parsed CSV files, so unchanged files aren't parsed again
+	static final String SNAPSHOT = "./datasets-foodsafety.snapshot";
+	private static final int PAGE_SIZE = 10;
+	private static final DateTimeFormatter DATE_FORMAT = DateTimeFormatter.ofPattern("EEE dd/MM/yyyy");
+
+	// replaced as a whole when the directory is reloaded, so each menu option
+	// reads one consistent load without having to lock anything
+	private volatile Catalogue catalogue = new Catalogue(new LoadResult());
+	private DatasetWatcher watcher;
 	private final Scanner scanner;
 
 	public static void main(String[] args) {
 
+		if (args.length > 0 && args[0].equals("--serve")) {
+			int status = QueryServer.run(args);
+			if (status != 0) {
+				System.exit(status);
+			}
+			return;
+		}
+		// any other arguments are queries to run without the menu
+		if (args.length > 0) {
+			System.exit(BatchMode.run(args));
+		}
+
 		System.out.println("Greetings! Welcome to our Food Hygiene Data; ");
 		System.out.println("");
 
@@ -49,30 +69,59 @@ public class Main {
 	 * (This is assuming that all files placed in this directory are indeed FHRS
 	 * files in the CSV format, whereby each files name is the authority where data
 	 * has been collected from).
+	 *
+	 * Files are parsed in parallel by the FoodSafetyLoader, and any file which
+	 * can't be parsed is reported and left out. Files which haven't changed since
+	 * the last run are read from the snapshot instead of being parsed.
+	 *
+	 * The directory is then watched, and reloaded in the background whenever a
+	 * file is added or changed.
 	 */
 	private void parseCSV() {
 
-		File dataset = new File("./datasets-foodsafety/");
-		File[] csvFiles = dataset.listFiles();
-
-		for (File file : csvFiles) {
-			if (file.getName().contains(".csv")) {
-				try (Reader in = new FileReader(file)) {
-
-					Iterable<CSVRecord> records = CSVFormat.DEFAULT.withHeader(Headers.class).withFirstRecordAsHeader()
-							.parse(in);
+		File directory = new File(DIRECTORY);
+		FoodSafetyLoader loader = new FoodSafetyLoader(Runtime.getRuntime().availableProcessors(), new File(SNAPSHOT));
+		LoadResult result;
+		try {
+			result = loader.load(directory);
+		} catch (IOException e) {
+			System.out.println("Unable to load directory \'datatsets-foodsafety\': " + e.getMessage());
+			return;
+		}
 
-					for (CSVRecord record : records) {
-						foodSafetyList.add(new FoodSafetyData(record));
-					}
+		for (String name : result.getSkipped()) {
+			System.out.println("Detected file which doesn't belong in directory \'datatsets-foodsafety\': " + name);
+		}
+		reportProblems(result);
+		catalogue = new Catalogue(result);
+
+		try {
+			watcher = new DatasetWatcher(loader, directory, result, new DatasetWatcher.Listener() {
+				@Override
+				public void reloaded(LoadResult result) {
+					reportProblems(result);
+					catalogue = new Catalogue(result);
+					System.out.println("\nReloaded directory \'datatsets-foodsafety\': " + result.getAuthorities().size()
+							+ " authorities");
+				}
 
-					authorities.add(file.getName());
-				} catch (IOException e) {
-					e.printStackTrace();
+				@Override
+				public void failed(IOException e) {
+					System.out.println("\nUnable to reload directory \'datatsets-foodsafety\': " + e.getMessage());
 				}
-			} else
-				System.out.println(
-						"Detected file which doesn't belong in directory \'datatsets-foodsafety\': " + file.getName());
+			});
+			watcher.start();
+		} catch (IOException e) {
+			System.out.println("Unable to watch directory \'datatsets-foodsafety\': " + e.getMessage());
+		}
+	}
+
+	private void reportProblems(LoadResult result) {
+		for (Map.Entry<String, Throwable> failure : result.getFailures().entrySet()) {
+			System.out.println("Failed to load " + failure.getKey() + ": " + failure.getValue());
+		}
+		if (result.getSnapshotFailure() != null) {
+			System.out.println("Unable to use snapshot \'" + SNAPSHOT + "\': " + result.getSnapshotFailure());
 		}
 	}
 
@@ -114,19 +163,46 @@ public class Main {
 		} while (running); // Added this loop to stop unnecessary calls to showMenu (adding calls to stack)
 
 		scanner.close();
+		if (watcher != null) {
+			try {
+				watcher.close();
+			} catch (IOException e) {
+				// exiting anyway
+			}
+		}
 	}
 
 	/**
-	 * A - Prints all Local Authorities using file names of the authorities we have
+	 * A - Prints all Local Authorities using file names of the authorities we have,
+	 * followed by the rating statistics of each LocalAuthorityName in the data
 	 */
 	private void listAllLocalAutorities() {
+		Catalogue current = catalogue;
 		System.out.println(" -- Local Authorities -- ");
 		System.out.println("We have data for these authorities: ");
 
-		for (String name : authorities) {
+		for (String name : current.authorities) {
 			name = name.split(".csv")[0];
 			System.out.println(name);
 		}
+
+		System.out.println("\n -- Rating Statistics -- ");
+		System.out.printf("%-30s %9s %6s %6s %6s %6s %6s %6s %7s %9s %7s %10s %10s %10s\n", "Authority", "Premises",
+				"0", "1", "2", "3", "4", "5", "Exempt", "Awaiting", "Pending", "Hygiene", "Structural", "Confidence");
+		for (RatingStatistics statistics : current.queries.getSummary().byAuthority()) {
+			printStatistics(statistics.getName(), statistics);
+		}
+		printStatistics("Total", current.queries.getSummary().getTotal());
+	}
+
+	private void printStatistics(String name, RatingStatistics statistics) {
+		System.out.printf("%-30.30s %9d %6d %6d %6d %6d %6d %6d %7d %9d %7d %10.2f %10.2f %10.2f\n", name,
+				statistics.getPremises(), statistics.getRatingCount(0), statistics.getRatingCount(1),
+				statistics.getRatingCount(2), statistics.getRatingCount(3), statistics.getRatingCount(4),
+				statistics.getRatingCount(5), statistics.getRatingCount(FoodSafetyQueries.EXEMPT),
+				statistics.getRatingCount(FoodSafetyQueries.AWAITING_INSPECTION), statistics.getPendingCount(),
+				statistics.getAverageHygieneScore(), statistics.getAverageStructuralScore(),
+				statistics.getAverageConfidenceInManagementScore());
 	}
 
 	/*
@@ -134,31 +210,14 @@ public class Main {
 	 */
 	private void listAllBusinesses() {
 		System.out.println("We have data for the following businesses");
-		List<String> uniqueNames = new ArrayList<>(this.foodSafetyList.size());
-
-		List<FoodSafetyData> sortedList = this.foodSafetyList;
-		
-		final Comparator<FoodSafetyData> nameSorter = new Comparator<FoodSafetyData>() {
-			@Override
-			public int compare(FoodSafetyData o1, FoodSafetyData o2) {
-				return o1.getBusinessName().compareTo(o2.getBusinessName());
-			}
-		};
+		// sorted once per load, and kept for the whole listing so pages don't move on a reload
+		SortedNames names = catalogue.queries.getBusinessNames();
 
-		Collections.sort(sortedList, nameSorter);
-
-		for (int i = 0; i < this.foodSafetyList.size();i++) {
-			if(i-1 == -1) {uniqueNames.add(this.foodSafetyList.get(i).getBusinessName()); continue;}
-			if (!sortedList.get(i).getBusinessName().equals(sortedList.get(i - 1).getBusinessName())) {
-				uniqueNames.add(this.foodSafetyList.get(i).getBusinessName());
-			}
-		}
+		System.out.printf("We have %s businesses\n", names.size());
 
-		System.out.printf("We have %s businesses\n", uniqueNames.size());
-		String[] namesStr = new String[uniqueNames.size()];
-		uniqueNames.toArray(namesStr);
-
-		int currentIndex = 0;
+		int pageCount = names.pageCount(PAGE_SIZE);
+		// page shown last, -1 before the first page
+		int currentPage = -1;
 		boolean navigate = true;
 
 		do {
@@ -166,30 +225,19 @@ public class Main {
 
 			switch (c) {
 			case '1':
-				int length = currentIndex - 10;
-				if (length < 0) {
-					currentIndex = namesStr.length - 1;
-					length = currentIndex - 10; // length = 10
-				}
-				for (; currentIndex >= length - 1; currentIndex--) {
-					System.out.printf("%s - %s \n", currentIndex, namesStr[currentIndex]);
+				if (pageCount > 0) {
+					currentPage = currentPage <= 0 ? pageCount - 1 : currentPage - 1;
+					printNames(currentPage * PAGE_SIZE, names.page(currentPage, PAGE_SIZE));
 				}
 				break;
 			case '2':
-				length = currentIndex + 10;
-				if (length >= namesStr.length) {
-					currentIndex = 0;
-					length = currentIndex + 10; // length = 10
-				}
-
-				for (; currentIndex < length; currentIndex++) {
-					System.out.printf("%s - %s \n", currentIndex, namesStr[currentIndex]);
+				if (pageCount > 0) {
+					currentPage = currentPage + 1 >= pageCount ? 0 : currentPage + 1;
+					printNames(currentPage * PAGE_SIZE, names.page(currentPage, PAGE_SIZE));
 				}
 				break;
 			case '3':
-				for (int i = 0; i < namesStr.length; i++) {
-					System.out.printf("%s - %s \n", i, namesStr[i]);
-				}
+				printNames(0, names.all());
 				break;
 			case '4':
 				navigate = false;
@@ -199,88 +247,58 @@ public class Main {
 
 	}
 
+	private void printNames(int first, List<String> page) {
+		StringBuilder out = new StringBuilder(page.size() * 32);
+		for (int i = 0; i < page.size(); i++) {
+			out.append(first + i).append(" - ").append(page.get(i)).append(" \n");
+		}
+		System.out.print(out);
+	}
+
 	/**
 	 * C - List all premise ratings
 	 */
 	public void listAllPremiseRatings() {
 		System.out.print("\nEnter the business name: ");
 		scanner.nextLine();
-		String inputName = scanner.nextLine();
-		final List<FoodSafetyData> tempList = new ArrayList<>(1);
+		FoodSafetyQueries queries = catalogue.queries;
+		String inputName = resolveBusinessName(queries, scanner.nextLine());
 
-		for (FoodSafetyData data : this.foodSafetyList) {
-			if (data.getBusinessName().equalsIgnoreCase(inputName)) {
-				tempList.add(data);
-			}
-		}
+		printRatings(queries, inputName, queries.findPremises(inputName));
+	}
 
-		if (tempList.size() < 0) {
-			System.out.println("No business with that name found");
-			return;
+	/**
+	 * Checks a business name entered by the user. If no premises has that name,
+	 * the closest matching names are offered instead.
+	 *
+	 * @param queries   Queries over the current load
+	 * @param inputName Name entered by the user
+	 * @return Name to search for
+	 */
+	private String resolveBusinessName(FoodSafetyQueries queries, String inputName) {
+		if (queries.hasPremises(inputName)) {
+			return inputName;
 		}
 
-		// Date sorter
-		final Comparator<FoodSafetyData> dateSorter = new Comparator<FoodSafetyData>() {
-			@Override
-			public int compare(FoodSafetyData o1, FoodSafetyData o2) {
-				if (o1.ratingDate == null || o2.ratingDate == null) {
-					return -1;
-				} else if (o1.ratingDate.before(o2.ratingDate)) {
-					return 0;
-				} else if (o1.ratingDate.after(o2.ratingDate)) {
-					return -1;
-				}
-
-				return 0;
-
-			}
-		};
-
-		// Sort out list chronologically
-		Collections.sort(tempList, dateSorter);
-
-		SimpleDateFormat DATE_FORMAT = new SimpleDateFormat("E dd/MM/yyyy");
-
-		System.out.println("Display Business name for: " + inputName);
-
-		String heading = "| Rating Date         | Hygiene Score | Structural Score | Confidence in Management Score | Food Hygiene Rating |";
-        String top = printSeperator(heading, '┌', '┐');
-        String seperator = printSeperator(heading, '|', '|');
-        String bot = printSeperator(heading, '└', '┘');
-		System.out.println(top);
-		System.out.println(heading);
-		System.out.println(seperator);
+		List<NameMatch> suggestions = queries.suggestBusinessNames(inputName, 5);
+		if (suggestions.isEmpty()) {
+			return inputName;
+		}
 
-		for (FoodSafetyData data : tempList) {
-			Date date = data.ratingDate;
-			String dateFormat = "Date Not Avaliable";
-			if (date != null) {
-				dateFormat = DATE_FORMAT.format(date);
-			}
-			System.out.printf("| %-19s | %-13s | %-16s | %-30s | %-19s |\n", dateFormat, data.hygieneScore,
-					data.structuralScore, data.confidenceInManagementScore, data.ratingValue);
+		System.out.println("No business with that name found, did you mean:");
+		String[] options = new String[suggestions.size() + 1];
+		for (int i = 0; i < suggestions.size(); i++) {
+			options[i] = suggestions.get(i).getName();
 		}
-		System.out.println(bot);
+		options[suggestions.size()] = "None of these";
 
+		int choice = Character.getNumericValue(shortMenu(options)) - 1;
+		return choice < suggestions.size() ? suggestions.get(choice).getName() : inputName;
 	}
-	
+
 	public int getRatingValue(FoodSafetyData data) {
-        if (data.ratingValue == null)
-            return -999;
-        else if (data.ratingValue.equals("AwaitingInspection")) {
-            return -666;
-        }
-        else if (data.ratingValue.equals("Exempt")) {
-            return -111;
-        }
-        else {
-            try {
-                return Integer.parseInt(data.ratingValue);
-            } catch (NumberFormatException e) {
-                return -999;
-            }
-        }
-    }
+		return FoodSafetyQueries.ratingValueOf(data.ratingValue);
+	}
 	
 	
 	public void listSpecifiedRatings() {
@@ -291,11 +309,10 @@ public class Main {
 		
 		System.out.print("\nEnter the business name: ");
 		scanner.nextLine();
-		String inputName = scanner.nextLine();
-		
+		FoodSafetyQueries queries = catalogue.queries;
+		String inputName = resolveBusinessName(queries, scanner.nextLine());
 		
-		
-		final List<FoodSafetyData> tempList = new ArrayList<>(1);
+		IntList tempList = new IntList();
       int value;
 			String[] mainMenu = { "Above a specified value", "Below a specified value", "Within a specified range", " A special value (pending)" };
 			boolean running = true;
@@ -311,24 +328,14 @@ public class Main {
 				  System.out.println("Please enter a value");
 				  value = scanner.nextInt();
 				  running = false;
-					for (FoodSafetyData data : this.foodSafetyList) {
-						int hygieneValue = getRatingValue(data);
-						if (data.getBusinessName().equalsIgnoreCase(inputName)&& hygieneValue > value && hygieneValue != -999) {
-							tempList.add(data);
-						}
-					}
+					tempList = queries.findRatingsAbove(inputName, value);
 				  
 					break;
 				case '2':
 					System.out.println("Please enter a value");
 					value = scanner.nextInt();
 					running = false;
-					for (FoodSafetyData data : this.foodSafetyList) {
-						int hygieneValue = getRatingValue(data);
-						if (data.getBusinessName().equalsIgnoreCase(inputName)&& hygieneValue < value && hygieneValue != -999) {
-							tempList.add(data);
-						}
-					}
+					tempList = queries.findRatingsBelow(inputName, value);
 
 					break;
 					
@@ -338,83 +345,62 @@ public class Main {
 					System.out.println("Please enter the maximum rating");
 					maximum = scanner.nextInt();
 					running = false;
-					for (FoodSafetyData data : this.foodSafetyList) {
-						int hygieneValue = getRatingValue(data);
-						if (data.getBusinessName().equalsIgnoreCase(inputName)&& hygieneValue < maximum && hygieneValue > minimum && hygieneValue != -999) {
-							tempList.add(data);
-						}
-					}
+					tempList = queries.findRatingsBetween(inputName, minimum, maximum);
 					break;
 				case '4':
 					System.out.println("Please enter Exempt or Awaiting Inspection");
 					scanner.nextLine();
 					specialValue = scanner.nextLine();
 					int temp = 0;
-				    if(specialValue.equalsIgnoreCase("Exempt")) temp = -111;
-				    else if(specialValue.equalsIgnoreCase("Awaitng Inspection")) temp = -666;
+				    if(specialValue.equalsIgnoreCase("Exempt")) temp = FoodSafetyQueries.EXEMPT;
+				    else if(specialValue.equalsIgnoreCase("Awaitng Inspection")) temp = FoodSafetyQueries.AWAITING_INSPECTION;
 					running = false;
-					for (FoodSafetyData data : this.foodSafetyList) {
-						int hygieneValue = getRatingValue(data);
-						if (data.getBusinessName().equalsIgnoreCase(inputName)&& hygieneValue != -999 && hygieneValue == temp) {
-							tempList.add(data);
-						}
-					}
+					tempList = queries.findRatingsEqualTo(inputName, temp);
 					break;
 				}
 				
 			} while (running); // Added this loop to stop unnecessary calls to showMenu (adding calls to stack)
 
-		
-		
-		
-		
-		
-			if (tempList.size() < 0) {
+		printRatings(queries, inputName, tempList);
+	}
+
+	/**
+	 * Prints the ratings of the given rows as a table, newest rating date first.
+	 *
+	 * @param queries   Queries the rows were found with
+	 * @param inputName Business name the rows were found with
+	 * @param rows      Row ids to be printed
+	 */
+	private void printRatings(FoodSafetyQueries queries, String inputName, IntList rows) {
+		if (rows.isEmpty()) {
 			System.out.println("No business with that name found");
 			return;
 		}
 
-		// Date sorter
-		final Comparator<FoodSafetyData> dateSorter = new Comparator<FoodSafetyData>() {
-			@Override
-			public int compare(FoodSafetyData o1, FoodSafetyData o2) {
-				if (o1.ratingDate == null || o2.ratingDate == null) {
-					return -1;
-				} else if (o1.ratingDate.before(o2.ratingDate)) {
-					return 0;
-				} else if (o1.ratingDate.after(o2.ratingDate)) {
-					return -1;
-				}
-
-				return 0;
-
-			}
-		};
-
-		// Sort out list chronologically
-		Collections.sort(tempList, dateSorter);
-
-		SimpleDateFormat DATE_FORMAT = new SimpleDateFormat("E dd/MM/yyyy");
+		// rows without a rating date come last
+		FoodSafetyDataset dataset = queries.getDataset();
+		IntList sortedRows = queries.sortNewestFirst(rows);
 
 		System.out.println("Display Business name for: " + inputName);
 
 		String heading = "| Rating Date         | Hygiene Score | Structural Score | Confidence in Management Score | Food Hygiene Rating |";
-		String top = printSeperator(heading, '┌', '┐');;
-		String seperator = printSeperator(heading, '|', '|');
-		String bot = printSeperator(heading, '└', '┘');;
-
+        String top = printSeperator(heading, '┌', '┐');
+        String seperator = printSeperator(heading, '|', '|');
+        String bot = printSeperator(heading, '└', '┘');
 		System.out.println(top);
 		System.out.println(heading);
 		System.out.println(seperator);
 
-		for (FoodSafetyData data : tempList) {
-			Date date = data.ratingDate;
+		for (int i = 0; i < sortedRows.size(); i++) {
+			int row = sortedRows.get(i);
+			int date = dataset.getRatingDate(row);
 			String dateFormat = "Date Not Avaliable";
-			if (date != null) {
-				dateFormat = DATE_FORMAT.format(date);
+			if (date != FoodSafetyDataset.NO_DATE) {
+				dateFormat = DATE_FORMAT.format(LocalDate.ofEpochDay(date));
 			}
-			System.out.printf("| %-19s | %-13s | %-16s | %-30s | %-19s |\n", dateFormat, data.hygieneScore,
-					data.structuralScore, data.confidenceInManagementScore, data.ratingValue);
+			System.out.printf("| %-19s | %-13s | %-16s | %-30s | %-19s |\n", dateFormat, dataset.getHygieneScore(row),
+					dataset.getStructuralScore(row), dataset.getConfidenceInManagementScore(row),
+					dataset.getRatingValue(row));
 		}
 		System.out.println(bot);
 
@@ -473,4 +459,18 @@ public class Main {
 		return menuChoice;
 	}
 
+	/**
+	 * Authorities and queries from one load of the directory.
+	 */
+	private static class Catalogue {
+
+		private final List<String> authorities;
+		private final FoodSafetyQueries queries;
+
+		private Catalogue(LoadResult result) {
+			this.authorities = result.getAuthorities();
+			this.queries = new FoodSafetyQueries(result.getDataset());
+		}
+	}
+
 }
@@ -0,0 +1,568 @@
+package com.breakingcode.unoptimised.data;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.StringReader;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.file.StandardOpenOption;
+import java.util.EnumSet;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.apache.commons.csv.CSVFormat;
+import org.apache.commons.csv.CSVRecord;
+
+import com.breakingcode.unoptimised.data.enums.Headers;
+import com.breakingcode.unoptimised.metrics.Counter;
+import com.breakingcode.unoptimised.metrics.Metrics;
+
+/**
+ * Parser for FHRS CSV files which works directly on the bytes of a memory
+ * mapped file.
+ *
+ * Each row is split into fields by byte offsets, and the numeric headers are
+ * parsed straight from those bytes. LocalAuthorityBusinessID and AddressLine1
+ * are left as byte ranges, which are only decoded if they are read. Headers
+ * with only a few distinct values are interned through a {@link SymbolTable},
+ * so a String is only made the first time each value is met; for the rest a
+ * String is reused when a header has the same bytes as it had on the previous
+ * row.
+ *
+ * Rows with a quoted field (which may contain commas or line breaks) are handed
+ * to commons-csv, as is any file whose header isn't one this parser can map, so
+ * the results are always the same as {@link FoodSafetyLoader#parseFileWithCommonsCsv(File)}.
+ *
+ * Rows parsed, and numeric fields which couldn't be parsed and were set to -1,
+ * are counted in the Parser group of {@link Metrics}.
+ */
+public class MappedFoodSafetyParser {
+
+	private static final byte COMMA = ',';
+	private static final byte QUOTE = '"';
+	private static final byte CR = '\r';
+	private static final byte LF = '\n';
+
+	/** Powers of ten which can be represented exactly by a double */
+	private static final double[] POWERS_OF_TEN = { 1e0, 1e1, 1e2, 1e3, 1e4, 1e5, 1e6, 1e7, 1e8, 1e9, 1e10, 1e11,
+			1e12, 1e13, 1e14, 1e15, 1e16, 1e17, 1e18, 1e19, 1e20, 1e21, 1e22 };
+
+	private static final Counter ROWS_PARSED = Metrics.counter("Parser", "rowsParsed");
+	private static final Counter ROWS_DEFAULTED = Metrics.counter("Parser", "rowsDefaulted");
+	private static final Counter FIELDS_DEFAULTED = Metrics.counter("Parser", "fieldsDefaulted");
+	private static final Counter ROWS_FALLBACK = Metrics.counter("Parser", "rowsFallback");
+
+	/** Headers with so few distinct values that every value is worth interning */
+	private static final EnumSet<Headers> LOW_CARDINALITY = EnumSet.of(Headers.BusinessType, Headers.RatingValue,
+			Headers.RatingKey, Headers.LocalAuthorityName, Headers.LocalAuthorityWebSite,
+			Headers.LocalAuthorityEmailAddress, Headers.SchemeType);
+
+	private final File file;
+	// FileReader decodes with the default charset, so this parser does too
+	private final Charset charset = Charset.defaultCharset();
+
+	private MappedByteBuffer buffer;
+	private int limit;
+
+	// header of each column in the file, null for columns which aren't needed
+	private Headers[] columns;
+	private int requiredColumns;
+	private CSVFormat fallbackFormat;
+
+	// last value seen for each column, so repeated values can share one String
+	private byte[][] lastBytes;
+	private String[] lastStrings;
+	// symbol table for each low cardinality column, null for the others
+	private SymbolTable[] symbols;
+
+	// counted for the whole file, and only then added to the shared counters
+	private int rowsParsed;
+	private int rowsDefaulted;
+	private int fieldsDefaulted;
+	private int rowsFallback;
+
+	private MappedFoodSafetyParser(File file) {
+		this.file = file;
+	}
+
+	/**
+	 * Parse a single CSV file into its own dataset.
+	 *
+	 * @param file FHRS CSV file
+	 * @return Dataset holding every row of the file
+	 * @throws IOException if the file can't be read
+	 */
+	public static FoodSafetyDataset parse(File file) throws IOException {
+		final FoodSafetyDataset dataset = new FoodSafetyDataset();
+		stream(file, new Sink<FoodSafetyData>() {
+			@Override
+			public boolean accept(FoodSafetyData row) {
+				// dataset.add copies every value out, so the reused row object is fine
+				dataset.add(row);
+				return true;
+			}
+		});
+		return dataset;
+	}
+
+	/**
+	 * Parse a single CSV file, passing each row to the sink as it is read rather
+	 * than keeping it.
+	 *
+	 * The same FoodSafetyData object is refilled for every row which doesn't need
+	 * commons-csv, so a row must not be kept after the sink returns.
+	 *
+	 * @param file FHRS CSV file
+	 * @param sink Sink for each row
+	 * @return False if the sink stopped the parse early, otherwise true
+	 * @throws IOException if the file can't be read
+	 */
+	public static boolean stream(File file, Sink<? super FoodSafetyData> sink) throws IOException {
+		return new MappedFoodSafetyParser(file).stream(sink);
+	}
+
+	private boolean stream(Sink<? super FoodSafetyData> sink) throws IOException {
+		try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+			long size = channel.size();
+			if (size > Integer.MAX_VALUE) {
+				return FoodSafetyLoader.streamWithCommonsCsv(file, sink);
+			}
+			buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+			limit = (int) size;
+		}
+
+		int position = skipEmptyLines(0);
+		position = readHeader(position);
+		if (position < 0) {
+			return FoodSafetyLoader.streamWithCommonsCsv(file, sink);
+		}
+
+		FoodSafetyData row = new FoodSafetyData();
+		row.setRawBuffer(buffer, charset);
+		position = skipEmptyLines(position);
+		try {
+			while (position < limit) {
+				int defaulted = fieldsDefaulted;
+				int end = readRow(position, row);
+				boolean more;
+				if (end < 0) {
+					// counted by FoodSafetyData, as it parses the row's numbers again
+					fieldsDefaulted = defaulted;
+					rowsFallback++;
+					end = findRowEnd(position);
+					more = sink.accept(parseWithCommonsCsv(position, end));
+				} else {
+					rowsParsed++;
+					if (fieldsDefaulted != defaulted) {
+						rowsDefaulted++;
+					}
+					more = sink.accept(row);
+				}
+				if (!more) {
+					return false;
+				}
+				position = skipEmptyLines(skipLineBreak(end));
+			}
+			return true;
+		} finally {
+			ROWS_PARSED.add(rowsParsed);
+			ROWS_DEFAULTED.add(rowsDefaulted);
+			FIELDS_DEFAULTED.add(fieldsDefaulted);
+			ROWS_FALLBACK.add(rowsFallback);
+		}
+	}
+
+	/**
+	 * Read the header row, and work out which column holds each header.
+	 *
+	 * @param position Offset of the header row
+	 * @return Offset of the end of the header row, or -1 if the header can't be
+	 *         handled by this parser
+	 */
+	private int readHeader(int position) {
+		if (position >= limit) {
+			return -1;
+		}
+
+		Map<String, Integer> indexes = new HashMap<String, Integer>();
+		int column = 0;
+		while (true) {
+			int start = position;
+			if (start < limit && buffer.get(start) == QUOTE) {
+				return -1;
+			}
+			position = findFieldEnd(start);
+			String name = decode(start, position);
+			if (name.isEmpty()) {
+				return -1;
+			}
+			if (indexes.put(name, column++) != null) {
+				return -1;
+			}
+			if (position >= limit || buffer.get(position) != COMMA) {
+				break;
+			}
+			position++;
+		}
+
+		String[] names = new String[column];
+		columns = new Headers[column];
+		for (Headers header : Headers.values()) {
+			if (header == Headers.RightToReply) {
+				continue;
+			}
+			Integer index = indexes.get(header.header);
+			if (index == null) {
+				return -1;
+			}
+			columns[index] = header;
+			requiredColumns = Math.max(requiredColumns, index + 1);
+		}
+		for (Map.Entry<String, Integer> entry : indexes.entrySet()) {
+			names[entry.getValue()] = entry.getKey();
+		}
+
+		fallbackFormat = CSVFormat.DEFAULT.withHeader(names);
+		lastBytes = new byte[column][];
+		lastStrings = new String[column];
+		symbols = new SymbolTable[column];
+		for (int i = 0; i < column; i++) {
+			if (columns[i] != null && LOW_CARDINALITY.contains(columns[i])) {
+				symbols[i] = new SymbolTable(charset);
+			}
+		}
+		return position;
+	}
+
+	/**
+	 * Read a single row into the given FoodSafetyData.
+	 *
+	 * @param position Offset of the start of the row
+	 * @param row      Row to be filled in
+	 * @return Offset of the end of the row, or -1 if the row has to be parsed by
+	 *         commons-csv instead
+	 */
+	private int readRow(int position, FoodSafetyData row) {
+		int column = 0;
+		while (true) {
+			int start = position;
+			if (start < limit && buffer.get(start) == QUOTE) {
+				return -1;
+			}
+			position = findFieldEnd(start);
+			if (column < columns.length && columns[column] != null) {
+				readField(row, column, start, position);
+			}
+			column++;
+			if (position >= limit || buffer.get(position) != COMMA) {
+				break;
+			}
+			position++;
+		}
+		// let commons-csv report rows which are missing values
+		return column < requiredColumns ? -1 : position;
+	}
+
+	private void readField(FoodSafetyData row, int column, int start, int end) {
+		switch (columns[column]) {
+		case FHRSID:
+			row.fhrsid = parseInt(start, end);
+			break;
+		case LocalAuthorityBusinessID:
+			row.setRawField(FoodSafetyData.LOCAL_AUTHORITY_BUSINESS_ID, start, end);
+			break;
+		case BusinessName:
+			row.businessName = string(column, start, end);
+			break;
+		case BusinessType:
+			row.businessType = string(column, start, end);
+			break;
+		case BusinessTypeID:
+			row.businessTypeID = parseInt(start, end);
+			break;
+		case AddressLine1:
+			row.setRawField(FoodSafetyData.ADDRESS_LINE_1, start, end);
+			break;
+		case AddressLine2:
+			row.addressLine2 = string(column, start, end);
+			break;
+		case AddressLine3:
+			row.addressLine3 = string(column, start, end);
+			break;
+		case AddressLine4:
+			row.addressLine4 = string(column, start, end);
+			break;
+		case PostCode:
+			row.postCode = string(column, start, end);
+			break;
+		case RatingValue:
+			row.ratingValue = string(column, start, end);
+			break;
+		case RatingKey:
+			row.ratingKey = string(column, start, end);
+			break;
+		case RatingDate:
+			row.ratingDate = RatingDates.parse(buffer, start, end);
+			break;
+		case LocalAuthorityCode:
+			row.localAuthorityCode = parseInt(start, end);
+			break;
+		case LocalAuthorityName:
+			row.localAuthorityName = string(column, start, end);
+			break;
+		case LocalAuthorityWebSite:
+			row.localAuthorityWebSite = string(column, start, end);
+			break;
+		case LocalAuthorityEmailAddress:
+			row.localAuthorityEmailAddress = string(column, start, end);
+			break;
+		case Hygiene:
+			row.hygieneScore = parseInt(start, end);
+			break;
+		case Structural:
+			row.structuralScore = parseInt(start, end);
+			break;
+		case ConfidenceInManagement:
+			row.confidenceInManagementScore = parseInt(start, end);
+			break;
+		case SchemeType:
+			row.schemeType = string(column, start, end);
+			break;
+		case NewRatingPending:
+			row.newRatingPending = parseBoolean(start, end);
+			break;
+		case Longitude:
+			row.longitude = parseDouble(start, end);
+			break;
+		case Latitude:
+			row.latitude = parseDouble(start, end);
+			break;
+		case RatingDateNil:
+			row.ratingDateNil = parseBoolean(start, end);
+			break;
+		case RightToReply:
+			break;
+		}
+	}
+
+	/**
+	 * Parse the row starting at the given offset with commons-csv.
+	 */
+	private FoodSafetyData parseWithCommonsCsv(int start, int end) {
+		try {
+			CSVRecord record = fallbackFormat.parse(new StringReader(decode(start, end))).iterator().next();
+			return new FoodSafetyData(record);
+		} catch (IOException e) {
+			// can't happen when reading from a String
+			throw new IllegalStateException(e);
+		}
+	}
+
+	/**
+	 * @return Offset of the comma or line break ending the field at start
+	 */
+	private int findFieldEnd(int start) {
+		int position = start;
+		while (position < limit) {
+			byte b = buffer.get(position);
+			if (b == COMMA || b == LF || b == CR) {
+				break;
+			}
+			position++;
+		}
+		return position;
+	}
+
+	/**
+	 * Finds the end of a row which may contain quoted fields, where commas and
+	 * line breaks within quotes don't count.
+	 *
+	 * @return Offset of the line break ending the row at start
+	 */
+	private int findRowEnd(int start) {
+		int position = start;
+		while (true) {
+			if (position < limit && buffer.get(position) == QUOTE) {
+				position++;
+				while (position < limit) {
+					if (buffer.get(position++) == QUOTE) {
+						// a doubled quote is an escaped quote rather than the end of the field
+						if (position < limit && buffer.get(position) == QUOTE) {
+							position++;
+						} else {
+							break;
+						}
+					}
+				}
+			}
+			position = findFieldEnd(position);
+			if (position >= limit || buffer.get(position) != COMMA) {
+				return position;
+			}
+			position++;
+		}
+	}
+
+	private int skipLineBreak(int position) {
+		if (position < limit && buffer.get(position) == CR) {
+			position++;
+		}
+		if (position < limit && buffer.get(position) == LF) {
+			position++;
+		}
+		return position;
+	}
+
+	private int skipEmptyLines(int position) {
+		while (position < limit) {
+			byte b = buffer.get(position);
+			if (b != LF && b != CR) {
+				break;
+			}
+			position++;
+		}
+		return position;
+	}
+
+	private String decode(int start, int end) {
+		byte[] bytes = new byte[end - start];
+		buffer.get(start, bytes);
+		return new String(bytes, charset);
+	}
+
+	/**
+	 * Returns the String held in a field, taken from the column's symbol table if
+	 * it has one, or else reusing the String of the previous row if the bytes in
+	 * this column haven't changed.
+	 */
+	private String string(int column, int start, int end) {
+		int length = end - start;
+		if (length == 0) {
+			return "";
+		}
+		if (symbols[column] != null) {
+			return symbols[column].intern(buffer, start, end);
+		}
+
+		byte[] last = lastBytes[column];
+		if (last != null && last.length == length) {
+			int i = 0;
+			while (i < length && buffer.get(start + i) == last[i]) {
+				i++;
+			}
+			if (i == length) {
+				return lastStrings[column];
+			}
+		}
+
+		byte[] bytes = new byte[length];
+		buffer.get(start, bytes);
+		String value = new String(bytes, charset);
+		lastBytes[column] = bytes;
+		lastStrings[column] = value;
+		return value;
+	}
+
+	/**
+	 * Parse an int in the same way as Integer.parseInt, returning -1 where
+	 * parseInt would fail.
+	 */
+	private int parseInt(int start, int end) {
+		if (start == end) {
+			return defaulted();
+		}
+
+		boolean negative = false;
+		byte first = buffer.get(start);
+		if (first == '-' || first == '+') {
+			negative = first == '-';
+			if (++start == end) {
+				return defaulted();
+			}
+		}
+
+		long value = 0;
+		for (int i = start; i < end; i++) {
+			int digit = buffer.get(i) - '0';
+			if (digit < 0 || digit > 9) {
+				return defaulted();
+			}
+			value = value * 10 + digit;
+			if (value > (long) Integer.MAX_VALUE + 1) {
+				return defaulted();
+			}
+		}
+
+		value = negative ? -value : value;
+		return value > Integer.MAX_VALUE ? defaulted() : (int) value;
+	}
+
+	/**
+	 * Parse a double in the same way as Double.parseDouble, returning -1 where
+	 * parseDouble would fail.
+	 *
+	 * Plain decimals with up to 15 significant digits are parsed directly, as both
+	 * the digits and the power of ten are exact doubles and a single division is
+	 * correctly rounded. Anything else is left to Double.parseDouble.
+	 */
+	private double parseDouble(int start, int end) {
+		int position = start;
+		boolean negative = false;
+		if (position < end && (buffer.get(position) == '-' || buffer.get(position) == '+')) {
+			negative = buffer.get(position) == '-';
+			position++;
+		}
+
+		long digits = 0;
+		int count = 0;
+		int decimals = -1;
+		for (; position < end; position++) {
+			byte b = buffer.get(position);
+			if (b == '.' && decimals < 0) {
+				decimals = 0;
+			} else if (b >= '0' && b <= '9' && count < 15) {
+				digits = digits * 10 + (b - '0');
+				count++;
+				if (decimals >= 0) {
+					decimals++;
+				}
+			} else {
+				break;
+			}
+		}
+
+		if (position == end && count > 0) {
+			double value = decimals > 0 ? digits / POWERS_OF_TEN[decimals] : digits;
+			return negative ? -value : value;
+		}
+
+		try {
+			return Double.parseDouble(decode(start, end));
+		} catch (NumberFormatException e) {
+			return defaulted();
+		}
+	}
+
+	/**
+	 * Count a numeric field which couldn't be parsed.
+	 *
+	 * @return -1, the value such a field is given
+	 */
+	private int defaulted() {
+		fieldsDefaulted++;
+		return -1;
+	}
+
+	/**
+	 * Parse a boolean in the same way as Boolean.parseBoolean.
+	 */
+	private boolean parseBoolean(int start, int end) {
+		if (end - start != 4) {
+			return false;
+		}
+		return (buffer.get(start) | 0x20) == 't' && (buffer.get(start + 1) | 0x20) == 'r'
+				&& (buffer.get(start + 2) | 0x20) == 'u' && (buffer.get(start + 3) | 0x20) == 'e';
+	}
+
+}
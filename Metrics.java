@@ -0,0 +1,156 @@
+package com.breakingcode.unoptimised.metrics;
+
+import java.lang.management.ManagementFactory;
+import java.util.Map;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.function.LongSupplier;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+/**
+ * Counters, timers and gauges for the load phases and query paths, exposed as
+ * JMX MBeans under {@code com.breakingcode.unoptimised:type=GROUP,name=NAME}.
+ *
+ * Metrics are off unless the JVM is started with {@code -Dfoodsafety.metrics=true}.
+ * The flag is a static final, so when it is off every call to a metric is a
+ * test of a constant which the JIT removes, and no clock is read. With
+ * {@code -Dfoodsafety.metrics.log=SECONDS} as well, every metric which has
+ * been used is also written to standard error as a single line at that
+ * interval.
+ *
+ * Metrics are created once, into static fields of the class they measure, and
+ * the same group and name always gives back the same metric.
+ */
+public final class Metrics {
+
+	/** Whether metrics are recorded at all */
+	public static final boolean ENABLED = Boolean.getBoolean("foodsafety.metrics");
+
+	private static final String DOMAIN = "com.breakingcode.unoptimised";
+
+	// sorted by group and name, so the log line is in a stable order
+	private static final Map<String, Object> METRICS = new ConcurrentSkipListMap<String, Object>();
+
+	static {
+		long period = Long.getLong("foodsafety.metrics.log", 0);
+		if (ENABLED && period > 0) {
+			ScheduledExecutorService logger = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+				@Override
+				public Thread newThread(Runnable runnable) {
+					Thread thread = new Thread(runnable, "metrics-log");
+					thread.setDaemon(true);
+					return thread;
+				}
+			});
+			logger.scheduleAtFixedRate(new Runnable() {
+				@Override
+				public void run() {
+					String line = logLine();
+					if (!line.isEmpty()) {
+						System.err.println("[metrics] " + line);
+					}
+				}
+			}, period, period, TimeUnit.SECONDS);
+		}
+	}
+
+	private Metrics() {
+	}
+
+	/**
+	 * @param group Group of the counter, such as Parser
+	 * @param name  Name of the counter within the group
+	 * @return Counter with that group and name
+	 */
+	public static Counter counter(String group, String name) {
+		return register(group, name, new Counter(), CounterMBean.class);
+	}
+
+	/**
+	 * @param group Group of the timer, such as Load or Query
+	 * @param name  Name of the timer within the group
+	 * @return Timer with that group and name
+	 */
+	public static Timer timer(String group, String name) {
+		return register(group, name, new Timer(), TimerMBean.class);
+	}
+
+	/**
+	 * @param group Group of the gauge
+	 * @param name  Name of the gauge within the group
+	 * @param value Reads the current value of the gauge
+	 * @return Gauge with that group and name
+	 */
+	public static Gauge gauge(String group, String name, LongSupplier value) {
+		return register(group, name, new Gauge(value), GaugeMBean.class);
+	}
+
+	/**
+	 * Only called while the classes holding metrics are initialised, so it can
+	 * simply be synchronized.
+	 */
+	@SuppressWarnings("unchecked")
+	private static synchronized <T> T register(String group, String name, T metric, Class<? super T> type) {
+		String key = group + "." + name;
+		Object existing = METRICS.get(key);
+		if (existing == null) {
+			if (ENABLED) {
+				registerMBean(group, name, metric);
+			}
+			METRICS.put(key, metric);
+			return metric;
+		}
+		if (!type.isInstance(existing)) {
+			throw new IllegalArgumentException(key + " is already a " + existing.getClass().getSimpleName());
+		}
+		return (T) existing;
+	}
+
+	private static void registerMBean(String group, String name, Object metric) {
+		try {
+			MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+			ObjectName objectName = new ObjectName(DOMAIN + ":type=" + group + ",name=" + name);
+			if (!server.isRegistered(objectName)) {
+				server.registerMBean(metric, objectName);
+			}
+		} catch (JMException e) {
+			// still recorded, and logged if asked for; just not visible over JMX
+			System.err.println("Unable to register metric " + group + "." + name + ": " + e);
+		}
+	}
+
+	/**
+	 * @return Every metric which has been used, as a single line
+	 */
+	public static String logLine() {
+		StringBuilder line = new StringBuilder();
+		for (Map.Entry<String, Object> entry : METRICS.entrySet()) {
+			Object metric = entry.getValue();
+			int length = line.length();
+			line.append(length == 0 ? "" : " | ").append(entry.getKey()).append(' ');
+			boolean used;
+			if (metric instanceof Timer) {
+				used = ((Timer) metric).describe(line);
+			} else if (metric instanceof Counter) {
+				long count = ((Counter) metric).getCount();
+				line.append(count);
+				used = count != 0;
+			} else {
+				long value = ((Gauge) metric).getValue();
+				line.append(value);
+				used = value != 0;
+			}
+			if (!used) {
+				line.setLength(length);
+			}
+		}
+		return line.toString();
+	}
+
+}
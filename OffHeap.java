@@ -0,0 +1,41 @@
+package com.breakingcode.unoptimised.data;
+
+import java.lang.management.BufferPoolMXBean;
+import java.lang.management.ManagementFactory;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+/**
+ * Memory outside the Java heap, for datasets which are kept for a long time.
+ *
+ * Direct buffers are only freed once the buffer object itself is collected, so
+ * they suit data which lives as long as a load of the directory, and are never
+ * allocated per query.
+ */
+final class OffHeap {
+
+	private OffHeap() {
+	}
+
+	/**
+	 * @param bytes Size of the buffer
+	 * @return Zeroed direct buffer in the platform's byte order, so ints and
+	 *         doubles read from it need no byte swapping
+	 */
+	static ByteBuffer allocate(int bytes) {
+		return ByteBuffer.allocateDirect(bytes).order(ByteOrder.nativeOrder());
+	}
+
+	/**
+	 * @return Bytes held in direct buffers by the whole JVM
+	 */
+	static long used() {
+		for (BufferPoolMXBean pool : ManagementFactory.getPlatformMXBeans(BufferPoolMXBean.class)) {
+			if (pool.getName().equals("direct")) {
+				return pool.getMemoryUsed();
+			}
+		}
+		return 0;
+	}
+
+}
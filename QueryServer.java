@@ -0,0 +1,488 @@
+package com.breakingcode.unoptimised;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.UnsupportedEncodingException;
+import java.lang.reflect.Method;
+import java.net.InetSocketAddress;
+import java.net.URLDecoder;
+import java.nio.charset.StandardCharsets;
+import java.time.LocalDate;
+import java.time.YearMonth;
+import java.time.format.DateTimeParseException;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import com.breakingcode.unoptimised.data.DatasetWatcher;
+import com.breakingcode.unoptimised.data.FoodSafetyLoader;
+import com.breakingcode.unoptimised.data.FoodSafetyLoader.LoadResult;
+import com.breakingcode.unoptimised.data.IntList;
+import com.breakingcode.unoptimised.metrics.Metrics;
+import com.breakingcode.unoptimised.metrics.Timer;
+import com.breakingcode.unoptimised.query.BusinessNameSearch.NameMatch;
+import com.breakingcode.unoptimised.query.DateIndex;
+import com.breakingcode.unoptimised.query.FoodSafetyQueries;
+import com.breakingcode.unoptimised.query.RatingStatistics;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * HTTP server answering the same lookups as the menu, with JSON responses.
+ *
+ * <pre>
+ * GET /premises?name=NAME                          every premises with the name
+ * GET /premises?name=NAME&amp;limit=N                  only the first N of them (1000 unless given)
+ * GET /establishment?fhrsid=N                      current rating of one establishment, and its older ones
+ * GET /ratings?name=NAME&amp;above=N                  rated above N
+ * GET /ratings?name=NAME&amp;below=N                  rated below N
+ * GET /ratings?name=NAME&amp;min=N&amp;max=N              rated between N and N (exclusive)
+ * GET /ratings?name=NAME&amp;equal=Exempt             with the rating Exempt (or AwaitingInspection, or N)
+ * GET /ratings?name=NAME&amp;above=N&amp;limit=N          only the first N of them (1000 unless given)
+ * GET /suggest?name=NAME&amp;limit=N                  closest business names (at most 50)
+ * GET /address?postcode=L1                         in postcode district L1 (or sector "L1 9", or a full postcode)
+ * GET /address?q=WORDS&amp;postcode=L1                with every word in their address lines, in district L1
+ * GET /address?q=WORDS&amp;limit=N                     only the first N of them (1000 unless given)
+ * GET /rated?from=DATE&amp;to=DATE                    rated from DATE to DATE (yyyy-MM-dd), in date order
+ * GET /rated?from=DATE&amp;to=DATE&amp;limit=N            only the first N of them
+ * GET /rated?from=DATE&amp;to=DATE&amp;authority=A&amp;type=T   only those of authority A and business type T
+ * GET /trend?from=MONTH&amp;to=MONTH&amp;months=N         statistics every N months from MONTH to MONTH (yyyy-MM)
+ * GET /trend?from=MONTH&amp;to=MONTH&amp;authority=A&amp;type=T  only those of authority A and business type T
+ * </pre>
+ *
+ * Endpoints returning premises give the count of every match, but only the
+ * first limit of them in the results, so no request can ask for an unbounded
+ * response.
+ *
+ * Requests read a FoodSafetyQueries which is never changed once built; a
+ * reload builds a new one and swaps it in with a single volatile write, so
+ * requests never take a lock and each sees one consistent load. Each request
+ * runs on a virtual thread where the JDK has them, and on a bounded pool of
+ * platform threads otherwise.
+ *
+ * Each endpoint is timed in the Server group of {@link Metrics}, from the
+ * request being handed to it until the response is written.
+ */
+class QueryServer {
+
+	private static final int DEFAULT_PORT = 8080;
+	private static final int BACKLOG = 1024;
+	/** Most names a suggest request may ask for */
+	private static final int MAX_SUGGESTIONS = 50;
+	/** Rows a request returns unless it gives a limit */
+	private static final int DEFAULT_RESULTS = 1000;
+	/** Most rows a request may ask for */
+	private static final int MAX_RESULTS = 100000;
+
+	private final HttpServer server;
+	private final ExecutorService executor;
+	private volatile FoodSafetyQueries queries;
+
+	/**
+	 * @param queries Queries over the dataset to be served
+	 * @param port    Port to listen on, or 0 for any free port
+	 * @throws IOException if the port can't be bound
+	 */
+	QueryServer(FoodSafetyQueries queries, int port) throws IOException {
+		this.queries = queries;
+		this.executor = newRequestExecutor();
+		this.server = HttpServer.create(new InetSocketAddress(port), BACKLOG);
+		server.setExecutor(executor);
+
+		server.createContext("/premises", new Endpoint("premises") {
+			@Override
+			void respond(FoodSafetyQueries queries, Map<String, String> params, StringBuilder body) throws IOException {
+				String name = required(params, "name");
+				writeResults(queries, name, queries.findPremises(name), limit(params), body);
+			}
+		});
+		server.createContext("/establishment", new Endpoint("establishment") {
+			@Override
+			void respond(FoodSafetyQueries queries, Map<String, String> params, StringBuilder body) throws IOException {
+				int fhrsid = number(params, "fhrsid");
+				IntList history = queries.getRatingHistory(fhrsid);
+				body.append("{\"fhrsid\":").append(fhrsid).append(",\"current\":");
+				if (history.isEmpty()) {
+					body.append("null");
+				} else {
+					Json.writeRow(body, queries.getDataset(), history.get(0));
+				}
+				// older ratings only, newest first
+				IntList older = new IntList(Math.max(history.size() - 1, 1));
+				for (int i = 1; i < history.size(); i++) {
+					older.add(history.get(i));
+				}
+				body.append(",\"history\":");
+				Json.writeRows(body, queries.getDataset(), older);
+				body.append('}');
+			}
+		});
+		server.createContext("/ratings", new Endpoint("ratings") {
+			@Override
+			void respond(FoodSafetyQueries queries, Map<String, String> params, StringBuilder body) throws IOException {
+				String name = required(params, "name");
+				int limit = limit(params);
+				IntList rows;
+				if (params.containsKey("above")) {
+					rows = queries.findRatingsAbove(name, number(params, "above"));
+				} else if (params.containsKey("below")) {
+					rows = queries.findRatingsBelow(name, number(params, "below"));
+				} else if (params.containsKey("min") || params.containsKey("max")) {
+					rows = queries.findRatingsBetween(name, number(params, "min"), number(params, "max"));
+				} else if (params.containsKey("equal")) {
+					int rating = FoodSafetyQueries.ratingValueOf(params.get("equal"));
+					if (rating == FoodSafetyQueries.NO_RATING) {
+						throw new IllegalArgumentException("Unknown rating: " + params.get("equal"));
+					}
+					rows = queries.findRatingsEqualTo(name, rating);
+				} else {
+					throw new IllegalArgumentException("One of above, below, min and max, or equal is required");
+				}
+				writeResults(queries, name, rows, limit, body);
+			}
+		});
+		server.createContext("/suggest", new Endpoint("suggest") {
+			@Override
+			void respond(FoodSafetyQueries queries, Map<String, String> params, StringBuilder body) throws IOException {
+				String name = required(params, "name");
+				int limit = params.containsKey("limit") ? number(params, "limit", 1, MAX_SUGGESTIONS) : 5;
+				List<NameMatch> suggestions = queries.suggestBusinessNames(name, limit);
+				body.append("{\"name\":");
+				Json.writeString(body, name);
+				body.append(",\"suggestions\":[");
+				for (int i = 0; i < suggestions.size(); i++) {
+					NameMatch match = suggestions.get(i);
+					body.append(i == 0 ? "{\"name\":" : ",{\"name\":");
+					Json.writeString(body, match.getName());
+					body.append(",\"distance\":").append(match.getDistance());
+					body.append(",\"premises\":").append(match.getPremises()).append('}');
+				}
+				body.append("]}");
+			}
+		});
+		server.createContext("/address", new Endpoint("address") {
+			@Override
+			void respond(FoodSafetyQueries queries, Map<String, String> params, StringBuilder body) throws IOException {
+				String terms = params.get("q");
+				String postcode = params.get("postcode");
+				if (terms == null && postcode == null) {
+					throw new IllegalArgumentException("One of q and postcode is required");
+				}
+				int limit = limit(params);
+				IntList rows = queries.findByAddress(terms, postcode);
+				body.append("{\"q\":");
+				Json.writeString(body, terms);
+				body.append(",\"postcode\":");
+				Json.writeString(body, postcode);
+				writeCount(queries, rows, limit, body);
+				body.append('}');
+			}
+		});
+		server.createContext("/rated", new Endpoint("rated") {
+			@Override
+			void respond(FoodSafetyQueries queries, Map<String, String> params, StringBuilder body) throws IOException {
+				LocalDate from = date(params, "from");
+				LocalDate to = date(params, "to");
+				int limit = limit(params);
+				IntList rows = queries.findRatedBetween(params.get("authority"), params.get("type"), from, to);
+				body.append("{\"from\":\"").append(from.toString()).append("\",\"to\":\"").append(to.toString());
+				body.append('"');
+				writeCount(queries, rows, limit, body);
+				body.append('}');
+			}
+		});
+		server.createContext("/trend", new Endpoint("trend") {
+			@Override
+			void respond(FoodSafetyQueries queries, Map<String, String> params, StringBuilder body) throws IOException {
+				YearMonth from = month(params, "from");
+				YearMonth to = month(params, "to");
+				int months = params.containsKey("months") ? number(params, "months", 1, DateIndex.MAX_BUCKETS) : 1;
+				List<RatingStatistics> trend = queries.getTrend(params.get("authority"), params.get("type"), from, to,
+						months);
+				body.append("{\"months\":").append(months).append(",\"buckets\":[");
+				for (int i = 0; i < trend.size(); i++) {
+					body.append(i == 0 ? "" : ",");
+					Json.writeStatistics(body, trend.get(i));
+				}
+				body.append("]}");
+			}
+		});
+	}
+
+	/**
+	 * @return Executor running each request on its own virtual thread, if the JDK
+	 *         has them, or else on a pool of two threads per processor
+	 */
+	static ExecutorService newRequestExecutor() {
+		try {
+			// looked up reflectively so the server still builds and runs on JDKs without them
+			Method method = Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+			return (ExecutorService) method.invoke(null);
+		} catch (ReflectiveOperationException e) {
+			return Executors.newFixedThreadPool(Math.max(4, 2 * Runtime.getRuntime().availableProcessors()));
+		}
+	}
+
+	void start() {
+		server.start();
+	}
+
+	/**
+	 * Stop accepting requests, and wait up to the given time for those in progress.
+	 */
+	void stop(int seconds) {
+		server.stop(seconds);
+		executor.shutdown();
+	}
+
+	/**
+	 * @return Port the server is listening on
+	 */
+	int getPort() {
+		return server.getAddress().getPort();
+	}
+
+	/**
+	 * Serve the given queries from now on. Requests already in progress finish
+	 * with the queries they started with.
+	 */
+	void update(FoodSafetyQueries queries) {
+		this.queries = queries;
+	}
+
+	/**
+	 * Load the dataset and serve it until the process is stopped, reloading it
+	 * whenever the directory changes.
+	 *
+	 * Turns on TCP_NODELAY for the JDK's HTTP server unless
+	 * -Dsun.net.httpserver.nodelay is given; it is read once for every server in
+	 * the process, so it is set here, before anything uses one, rather than by
+	 * each QueryServer.
+	 *
+	 * @param args --serve [--port N] [--directory DIR]
+	 * @return Exit status if the server couldn't be started
+	 */
+	static int run(String[] args) {
+		// without TCP_NODELAY small responses wait on delayed ACKs, adding ~40ms to each
+		if (System.getProperty("sun.net.httpserver.nodelay") == null) {
+			System.setProperty("sun.net.httpserver.nodelay", "true");
+		}
+		int port = DEFAULT_PORT;
+		String directory = Main.DIRECTORY;
+		for (int i = 1; i < args.length; i++) {
+			if (args[i].equals("--port") && i + 1 < args.length) {
+				try {
+					port = Integer.parseInt(args[++i]);
+				} catch (NumberFormatException e) {
+					System.err.println("--port needs a number, not " + args[i]);
+					return 2;
+				}
+			} else if (args[i].equals("--directory") && i + 1 < args.length) {
+				directory = args[++i];
+			} else {
+				System.err.println("Usage: Main --serve [--port N] [--directory DIR]");
+				return 2;
+			}
+		}
+
+		FoodSafetyLoader loader = new FoodSafetyLoader(Runtime.getRuntime().availableProcessors(),
+				new File(Main.SNAPSHOT));
+		LoadResult result;
+		try {
+			result = loader.load(new File(directory));
+		} catch (IOException e) {
+			System.err.println("Unable to load directory \'" + directory + "\': " + e.getMessage());
+			return 1;
+		}
+		for (Map.Entry<String, Throwable> failure : result.getFailures().entrySet()) {
+			System.err.println("Failed to load " + failure.getKey() + ": " + failure.getValue());
+		}
+
+		final QueryServer server;
+		try {
+			server = new QueryServer(new FoodSafetyQueries(result.getDataset()), port);
+			new DatasetWatcher(loader, new File(directory), result, new DatasetWatcher.Listener() {
+				@Override
+				public void reloaded(LoadResult result) {
+					server.update(new FoodSafetyQueries(result.getDataset()));
+					System.out.println("Reloaded " + result.getAuthorities().size() + " authorities");
+				}
+
+				@Override
+				public void failed(IOException e) {
+					System.err.println("Unable to reload directory: " + e.getMessage());
+				}
+			}).start();
+		} catch (IOException e) {
+			System.err.println("Unable to start server: " + e.getMessage());
+			return 1;
+		}
+		server.start();
+		System.out.println("Serving " + result.getDataset().size() + " premises on port " + server.getPort());
+		return 0;
+	}
+
+	private static void writeResults(FoodSafetyQueries queries, String name, IntList rows, int limit,
+			StringBuilder body) throws IOException {
+		body.append("{\"name\":");
+		Json.writeString(body, name);
+		writeCount(queries, rows, limit, body);
+		body.append('}');
+	}
+
+	/**
+	 * Write the count of every matching row, and the first limit of them as the
+	 * results.
+	 */
+	private static void writeCount(FoodSafetyQueries queries, IntList rows, int limit, StringBuilder body)
+			throws IOException {
+		IntList first = rows;
+		if (rows.size() > limit) {
+			first = new IntList(limit);
+			for (int i = 0; i < limit; i++) {
+				first.add(rows.get(i));
+			}
+		}
+		body.append(",\"count\":").append(rows.size()).append(",\"results\":");
+		Json.writeRows(body, queries.getDataset(), first);
+	}
+
+	/**
+	 * @return Most rows the request asks for, DEFAULT_RESULTS unless it gives a
+	 *         limit
+	 */
+	private static int limit(Map<String, String> params) {
+		return params.containsKey("limit") ? number(params, "limit", 1, MAX_RESULTS) : DEFAULT_RESULTS;
+	}
+
+	private static String required(Map<String, String> params, String name) {
+		String value = params.get(name);
+		if (value == null || value.isEmpty()) {
+			throw new IllegalArgumentException("Parameter " + name + " is required");
+		}
+		return value;
+	}
+
+	private static int number(Map<String, String> params, String name) {
+		String value = required(params, name);
+		try {
+			return Integer.parseInt(value);
+		} catch (NumberFormatException e) {
+			throw new IllegalArgumentException("Parameter " + name + " must be a number, not " + value);
+		}
+	}
+
+	private static int number(Map<String, String> params, String name, int minimum, int maximum) {
+		int value = number(params, name);
+		if (value < minimum || value > maximum) {
+			throw new IllegalArgumentException(
+					"Parameter " + name + " must be from " + minimum + " to " + maximum + ", not " + value);
+		}
+		return value;
+	}
+
+	private static LocalDate date(Map<String, String> params, String name) {
+		String value = required(params, name);
+		try {
+			return LocalDate.parse(value);
+		} catch (DateTimeParseException e) {
+			throw new IllegalArgumentException("Parameter " + name + " must be a date (yyyy-MM-dd), not " + value);
+		}
+	}
+
+	private static YearMonth month(Map<String, String> params, String name) {
+		String value = required(params, name);
+		try {
+			return YearMonth.parse(value);
+		} catch (DateTimeParseException e) {
+			throw new IllegalArgumentException("Parameter " + name + " must be a month (yyyy-MM), not " + value);
+		}
+	}
+
+	/**
+	 * Handles the requests to one path, taking care of the method, parameters,
+	 * errors and response.
+	 */
+	private abstract class Endpoint implements HttpHandler {
+
+		private final Timer timer;
+
+		/**
+		 * @param name Name the endpoint is timed under
+		 */
+		Endpoint(String name) {
+			this.timer = Metrics.timer("Server", name);
+		}
+
+		/**
+		 * Write the JSON response body for a request.
+		 *
+		 * @throws IllegalArgumentException if the parameters are invalid
+		 */
+		abstract void respond(FoodSafetyQueries queries, Map<String, String> params, StringBuilder body)
+				throws IOException;
+
+		@Override
+		public void handle(HttpExchange exchange) throws IOException {
+			long start = timer.start();
+			try {
+				int status = 200;
+				StringBuilder body = new StringBuilder(256);
+				if (!exchange.getRequestMethod().equals("GET")) {
+					status = 405;
+					error(body, "Only GET is supported");
+				} else {
+					try {
+						// read once, so the whole request uses the same load
+						respond(queries, parameters(exchange.getRequestURI().getRawQuery()), body);
+					} catch (IllegalArgumentException e) {
+						status = 400;
+						body.setLength(0);
+						error(body, e.getMessage());
+					} catch (RuntimeException e) {
+						// anything else is a fault here, but the client still gets a response
+						System.err.println("Request to " + exchange.getRequestURI() + " failed: " + e);
+						status = 500;
+						body = new StringBuilder(64);
+						error(body, "Internal error");
+					}
+				}
+
+				byte[] bytes = body.toString().getBytes(StandardCharsets.UTF_8);
+				exchange.getResponseHeaders().set("Content-Type", "application/json; charset=utf-8");
+				exchange.sendResponseHeaders(status, bytes.length);
+				try (OutputStream out = exchange.getResponseBody()) {
+					out.write(bytes);
+				}
+			} finally {
+				exchange.close();
+				timer.stop(start);
+			}
+		}
+
+		private void error(StringBuilder body, String message) throws IOException {
+			body.append("{\"error\":");
+			Json.writeString(body, message);
+			body.append('}');
+		}
+
+		private Map<String, String> parameters(String query) throws UnsupportedEncodingException {
+			Map<String, String> params = new HashMap<String, String>();
+			if (query == null) {
+				return params;
+			}
+			for (String pair : query.split("&")) {
+				int equals = pair.indexOf('=');
+				String key = equals < 0 ? pair : pair.substring(0, equals);
+				String value = equals < 0 ? "" : pair.substring(equals + 1);
+				params.put(URLDecoder.decode(key, "UTF-8"), URLDecoder.decode(value, "UTF-8"));
+			}
+			return params;
+		}
+	}
+
+}
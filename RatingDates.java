@@ -0,0 +1,97 @@
+package com.breakingcode.unoptimised.data;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Decoding of FHRS rating dates straight into a number of days since the epoch.
+ *
+ * FHRS files give dates as yyyy-MM-dd, sometimes followed by a time of day
+ * (which is ignored). The day number is worked out with integer arithmetic, so
+ * decoding a date doesn't allocate anything.
+ */
+public final class RatingDates {
+
+	/** Value returned for dates which are missing or can't be read */
+	public static final int NO_DATE = Integer.MIN_VALUE;
+
+	private static final int[] DAYS_IN_MONTH = { 31, 28, 31, 30, 31, 30, 31, 31, 30, 31, 30, 31 };
+
+	private RatingDates() {
+	}
+
+	/**
+	 * @param value Date in the format yyyy-MM-dd
+	 * @return Days since the epoch, or NO_DATE if the value isn't a valid date
+	 */
+	public static int parse(CharSequence value) {
+		if (value == null || value.length() < 10 || value.charAt(4) != '-' || value.charAt(7) != '-'
+				|| (value.length() > 10 && !isTimeSeparator(value.charAt(10)))) {
+			return NO_DATE;
+		}
+		int year = 0;
+		for (int i = 0; i < 4; i++) {
+			year = year * 10 + digit(value.charAt(i));
+		}
+		int month = digit(value.charAt(5)) * 10 + digit(value.charAt(6));
+		int day = digit(value.charAt(8)) * 10 + digit(value.charAt(9));
+		return toEpochDay(year, month, day);
+	}
+
+	/**
+	 * @param buffer Buffer holding the date in the format yyyy-MM-dd
+	 * @param start  Offset of the first byte of the date
+	 * @param end    Offset after the last byte of the date
+	 * @return Days since the epoch, or NO_DATE if the bytes aren't a valid date
+	 */
+	public static int parse(ByteBuffer buffer, int start, int end) {
+		if (end - start < 10 || buffer.get(start + 4) != '-' || buffer.get(start + 7) != '-'
+				|| (end - start > 10 && !isTimeSeparator((char) buffer.get(start + 10)))) {
+			return NO_DATE;
+		}
+		int year = 0;
+		for (int i = 0; i < 4; i++) {
+			year = year * 10 + digit((char) buffer.get(start + i));
+		}
+		int month = digit((char) buffer.get(start + 5)) * 10 + digit((char) buffer.get(start + 6));
+		int day = digit((char) buffer.get(start + 8)) * 10 + digit((char) buffer.get(start + 9));
+		return toEpochDay(year, month, day);
+	}
+
+	private static boolean isTimeSeparator(char c) {
+		return c == 'T' || c == ' ';
+	}
+
+	/**
+	 * @return Value of the given decimal digit, or a large negative number if it
+	 *         isn't a digit (so the date it is part of is rejected)
+	 */
+	private static int digit(char c) {
+		return c >= '0' && c <= '9' ? c - '0' : -100000;
+	}
+
+	/**
+	 * Utility function to convert a date into a number of days since the epoch,
+	 * giving the same result as LocalDate.of(year, month, day).toEpochDay().
+	 *
+	 * @return Days since the epoch, or NO_DATE if the date doesn't exist
+	 */
+	static int toEpochDay(int year, int month, int day) {
+		if (year < 0 || month < 1 || month > 12 || day < 1) {
+			return NO_DATE;
+		}
+		boolean leap = (year % 4 == 0 && year % 100 != 0) || year % 400 == 0;
+		int daysInMonth = month == 2 && leap ? 29 : DAYS_IN_MONTH[month - 1];
+		if (day > daysInMonth) {
+			return NO_DATE;
+		}
+
+		// count years from March, so the leap day is the last day of the year
+		int y = month <= 2 ? year - 1 : year;
+		int era = (y >= 0 ? y : y - 399) / 400;
+		int yearOfEra = y - era * 400;
+		int dayOfYear = (153 * (month > 2 ? month - 3 : month + 9) + 2) / 5 + day - 1;
+		int dayOfEra = yearOfEra * 365 + yearOfEra / 4 - yearOfEra / 100 + dayOfYear;
+		return era * 146097 + dayOfEra - 719468;
+	}
+
+}
@@ -0,0 +1,102 @@
+package com.breakingcode.unoptimised.query;
+
+import java.util.BitSet;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.TreeMap;
+
+import com.breakingcode.unoptimised.data.FoodSafetyDataset;
+
+/**
+ * Bitmap index over the rating of every row.
+ *
+ * Each rating value (0 to 5, as well as the special values such as EXEMPT and
+ * AWAITING_INSPECTION) has a bitmap with a bit set for each row with that
+ * rating, so a range of ratings is just an OR of a few bitmaps. Rows whose
+ * rating can't be read (NO_RATING) aren't held in any bitmap, as no rating
+ * query ever matches them.
+ */
+public class RatingIndex {
+
+	private final NavigableMap<Integer, BitSet> rowsByRating = new TreeMap<Integer, BitSet>();
+
+	/**
+	 * @param dataset       Dataset to be indexed
+	 * @param ratingsByCode Rating of each code in the dataset's rating value
+	 *                      dictionary
+	 */
+	public RatingIndex(FoodSafetyDataset dataset, int[] ratingsByCode) {
+		this(dataset, ratingsByCode, null);
+	}
+
+	/**
+	 * @param dataset       Dataset to be indexed
+	 * @param ratingsByCode Rating of each code in the dataset's rating value
+	 *                      dictionary
+	 * @param included      Rows to be indexed, or null for every row
+	 */
+	public RatingIndex(FoodSafetyDataset dataset, int[] ratingsByCode, BitSet included) {
+		// values which decode to the same rating (such as "5" and "05") share a bitmap
+		BitSet[] bitmapByCode = new BitSet[ratingsByCode.length];
+		for (int code = 0; code < ratingsByCode.length; code++) {
+			int rating = ratingsByCode[code];
+			if (rating == FoodSafetyQueries.NO_RATING) {
+				continue;
+			}
+			BitSet rows = rowsByRating.get(rating);
+			if (rows == null) {
+				rows = new BitSet(dataset.size());
+				rowsByRating.put(rating, rows);
+			}
+			bitmapByCode[code] = rows;
+		}
+
+		for (int row = 0; row < dataset.size(); row++) {
+			BitSet rows = bitmapByCode[dataset.getRatingValueCode(row)];
+			if (rows != null && (included == null || included.get(row))) {
+				rows.set(row);
+			}
+		}
+	}
+
+	/**
+	 * @return Rows rated above the given value
+	 */
+	public BitSet above(int value) {
+		return union(rowsByRating.tailMap(value, false));
+	}
+
+	/**
+	 * @return Rows rated below the given value
+	 */
+	public BitSet below(int value) {
+		return union(rowsByRating.headMap(value, false));
+	}
+
+	/**
+	 * @return Rows rated between the given values (both exclusive)
+	 */
+	public BitSet between(int minimum, int maximum) {
+		if (minimum >= maximum) {
+			return new BitSet();
+		}
+		return union(rowsByRating.subMap(minimum, false, maximum, false));
+	}
+
+	/**
+	 * @return Rows with exactly the given rating
+	 */
+	public BitSet equalTo(int rating) {
+		BitSet rows = rowsByRating.get(rating);
+		return rows == null ? new BitSet() : (BitSet) rows.clone();
+	}
+
+	private BitSet union(Map<Integer, BitSet> bitmaps) {
+		BitSet result = new BitSet();
+		for (BitSet rows : bitmaps.values()) {
+			result.or(rows);
+		}
+		return result;
+	}
+
+}
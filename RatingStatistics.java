@@ -0,0 +1,158 @@
+package com.breakingcode.unoptimised.query;
+
+import com.breakingcode.unoptimised.data.FoodSafetyDataset;
+
+/**
+ * Rating statistics of a group of premises, such as those of one local
+ * authority or one business type.
+ *
+ * Scores which couldn't be read (held as -1) are left out of the averages, so
+ * each average is over the premises which have that score.
+ */
+public class RatingStatistics {
+
+	// layout of the counters of one group, as held in the summary cube
+	static final int PREMISES = 0;
+	static final int RATING_0 = 1; // ratings 0 to 5 follow on
+	static final int EXEMPT = 7;
+	static final int AWAITING_INSPECTION = 8;
+	static final int OTHER_RATING = 9;
+	static final int PENDING = 10;
+	static final int HYGIENE_SUM = 11;
+	static final int HYGIENE_COUNT = 12;
+	static final int STRUCTURAL_SUM = 13;
+	static final int STRUCTURAL_COUNT = 14;
+	static final int CONFIDENCE_SUM = 15;
+	static final int CONFIDENCE_COUNT = 16;
+	static final int COUNTERS = 17;
+
+	private final String name;
+	private final long[] counters;
+
+	/**
+	 * @param name     Name of the group
+	 * @param counters Counters of the group, laid out as above
+	 */
+	RatingStatistics(String name, long[] counters) {
+		this.name = name;
+		this.counters = counters;
+	}
+
+	/**
+	 * @return Name of the group, such as the local authority or business type
+	 */
+	public String getName() {
+		return name;
+	}
+
+	/**
+	 * @return Number of premises in the group
+	 */
+	public long getPremises() {
+		return counters[PREMISES];
+	}
+
+	/**
+	 * @param rating Rating from 0 to 5, or EXEMPT or AWAITING_INSPECTION
+	 * @return Number of premises in the group with that rating
+	 */
+	public long getRatingCount(int rating) {
+		if (rating >= 0 && rating <= 5) {
+			return counters[RATING_0 + rating];
+		} else if (rating == FoodSafetyQueries.EXEMPT) {
+			return counters[EXEMPT];
+		} else if (rating == FoodSafetyQueries.AWAITING_INSPECTION) {
+			return counters[AWAITING_INSPECTION];
+		}
+		return 0;
+	}
+
+	/**
+	 * @return Number of premises whose rating is none of 0 to 5, EXEMPT or
+	 *         AWAITING_INSPECTION
+	 */
+	public long getOtherRatingCount() {
+		return counters[OTHER_RATING];
+	}
+
+	/**
+	 * @return Number of premises with a new rating pending
+	 */
+	public long getPendingCount() {
+		return counters[PENDING];
+	}
+
+	/**
+	 * @return Mean of the ratings from 0 to 5, or NaN if there are none
+	 */
+	public double getAverageRating() {
+		long sum = 0;
+		long count = 0;
+		for (int rating = 0; rating <= 5; rating++) {
+			sum += rating * counters[RATING_0 + rating];
+			count += counters[RATING_0 + rating];
+		}
+		return average(sum, count);
+	}
+
+	public double getAverageHygieneScore() {
+		return average(counters[HYGIENE_SUM], counters[HYGIENE_COUNT]);
+	}
+
+	public double getAverageStructuralScore() {
+		return average(counters[STRUCTURAL_SUM], counters[STRUCTURAL_COUNT]);
+	}
+
+	public double getAverageConfidenceInManagementScore() {
+		return average(counters[CONFIDENCE_SUM], counters[CONFIDENCE_COUNT]);
+	}
+
+	/**
+	 * Count a row into a group's counters.
+	 *
+	 * @param dataset       Dataset holding the row
+	 * @param ratingsByCode Rating of each code in the dataset's rating value
+	 *                      dictionary
+	 * @param row           Row id
+	 * @param counters      Array holding the group's counters
+	 * @param offset        Offset of the group's counters in the array
+	 */
+	static void count(FoodSafetyDataset dataset, int[] ratingsByCode, int row, long[] counters, int offset) {
+		counters[offset + PREMISES]++;
+
+		int rating = ratingsByCode[dataset.getRatingValueCode(row)];
+		if (rating >= 0 && rating <= 5) {
+			counters[offset + RATING_0 + rating]++;
+		} else if (rating == FoodSafetyQueries.EXEMPT) {
+			counters[offset + EXEMPT]++;
+		} else if (rating == FoodSafetyQueries.AWAITING_INSPECTION) {
+			counters[offset + AWAITING_INSPECTION]++;
+		} else {
+			counters[offset + OTHER_RATING]++;
+		}
+
+		if (dataset.isNewRatingPending(row)) {
+			counters[offset + PENDING]++;
+		}
+		int hygiene = dataset.getHygieneScore(row);
+		if (hygiene >= 0) {
+			counters[offset + HYGIENE_SUM] += hygiene;
+			counters[offset + HYGIENE_COUNT]++;
+		}
+		int structural = dataset.getStructuralScore(row);
+		if (structural >= 0) {
+			counters[offset + STRUCTURAL_SUM] += structural;
+			counters[offset + STRUCTURAL_COUNT]++;
+		}
+		int confidence = dataset.getConfidenceInManagementScore(row);
+		if (confidence >= 0) {
+			counters[offset + CONFIDENCE_SUM] += confidence;
+			counters[offset + CONFIDENCE_COUNT]++;
+		}
+	}
+
+	private static double average(long sum, long count) {
+		return count == 0 ? Double.NaN : sum / (double) count;
+	}
+
+}
@@ -0,0 +1,273 @@
+package com.breakingcode.unoptimised.query;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+import com.breakingcode.unoptimised.data.IntList;
+import com.breakingcode.unoptimised.metrics.Counter;
+import com.breakingcode.unoptimised.metrics.Metrics;
+
+/**
+ * Least recently used cache of query results, so a lookup which is run again
+ * and again, such as the same business name and rating filter from the menu,
+ * is only worked out once.
+ *
+ * The cache is bounded by the number of row ids it holds rather than by the
+ * number of results, so a few results for a very common name can't hold on to
+ * as much memory as thousands of small ones; each result also counts a fixed
+ * amount for its key and entry. When adding a result takes the cache over its
+ * bound, the least recently used results are dropped until it is back under
+ * seven eighths of it, so the sort this takes is paid for once every several
+ * results added rather than for each one.
+ *
+ * Results are held in a ConcurrentHashMap, and a hit only reads the map and
+ * stamps the entry with the time it was used, so lookups from many threads
+ * never wait on each other. Recency is approximate: entries used at nearly the
+ * same time on different threads may be dropped in either order. Only adding a
+ * result which takes the cache over its bound takes a lock, to drop results.
+ *
+ * Each FoodSafetyQueries has its own cache, so results never outlive the load
+ * they were found in: a reload builds new queries, and with them an empty
+ * cache. Hits, misses and evictions are counted here for every cache, and also
+ * in the Cache group of {@link Metrics}.
+ */
+public class ResultCache {
+
+	/** Row ids held by each cache, unless set with -Dfoodsafety.cache.rows */
+	public static final int DEFAULT_MAX_ROWS = 1 << 20;
+
+	// what an entry, its key and an empty result cost, counted in row ids
+	private static final int ENTRY_WEIGHT = 32;
+
+	private static final Counter HITS = Metrics.counter("Cache", "hits");
+	private static final Counter MISSES = Metrics.counter("Cache", "misses");
+	private static final Counter EVICTIONS = Metrics.counter("Cache", "evictions");
+
+	private final long maxWeight;
+	private final ConcurrentHashMap<Key, Entry> results = new ConcurrentHashMap<Key, Entry>(64);
+	// weight of the entries in results, changed only by whoever adds or removes an entry
+	private final AtomicLong weight = new AtomicLong();
+	// held while dropping results, so only one thread sorts and drops at a time
+	private final Object evicting = new Object();
+	private final LongAdder hits = new LongAdder();
+	private final LongAdder misses = new LongAdder();
+	private final LongAdder evictions = new LongAdder();
+
+	/**
+	 * @param maxRows Row ids to hold at most, or 0 to hold nothing
+	 */
+	public ResultCache(long maxRows) {
+		this.maxWeight = maxRows;
+	}
+
+	/**
+	 * @return Cache sized by the foodsafety.cache.rows system property
+	 */
+	public static ResultCache fromSystemProperties() {
+		return new ResultCache(Long.getLong("foodsafety.cache.rows", DEFAULT_MAX_ROWS));
+	}
+
+	/**
+	 * @param key Normalised query, from {@link #key(String, String, int, int)}
+	 * @return Cached result of the query, or null if it isn't cached
+	 */
+	public IntList get(Key key) {
+		Entry entry = results.get(key);
+		if (entry == null) {
+			misses.increment();
+			MISSES.increment();
+			return null;
+		}
+		entry.lastUsed = System.nanoTime();
+		hits.increment();
+		HITS.increment();
+		return entry.rows;
+	}
+
+	/**
+	 * Cache the result of a query, dropping the least recently used results if
+	 * it doesn't fit. A result bigger than the whole cache isn't kept. The result
+	 * is made read only either way, as it is shared with every caller of the
+	 * query.
+	 *
+	 * @param key  Normalised query
+	 * @param rows Result of the query
+	 */
+	public void put(Key key, IntList rows) {
+		rows.makeReadOnly();
+		Entry entry = new Entry(rows);
+		if (entry.weight > maxWeight) {
+			return;
+		}
+		Entry previous = results.put(key, entry);
+		// a replaced entry can no longer be removed by evict, so its weight is taken off here
+		if (weight.addAndGet(entry.weight - (previous == null ? 0 : previous.weight)) > maxWeight) {
+			evict();
+		}
+	}
+
+	/**
+	 * Drop the least recently used results until the cache is back under seven
+	 * eighths of its bound.
+	 */
+	private void evict() {
+		synchronized (evicting) {
+			if (weight.get() <= maxWeight) {
+				return;
+			}
+			// hits go on stamping entries while this sorts, so it sorts on a copy of the stamps
+			List<Candidate> eldest = new ArrayList<Candidate>(results.size());
+			for (Map.Entry<Key, Entry> cached : results.entrySet()) {
+				eldest.add(new Candidate(cached.getKey(), cached.getValue()));
+			}
+			Collections.sort(eldest, new Comparator<Candidate>() {
+				@Override
+				public int compare(Candidate o1, Candidate o2) {
+					return Long.compare(o1.lastUsed, o2.lastUsed);
+				}
+			});
+
+			long target = maxWeight - maxWeight / 8;
+			for (int i = 0; i < eldest.size() && weight.get() > target; i++) {
+				Candidate candidate = eldest.get(i);
+				// only if it hasn't been replaced since, so no weight is taken off twice
+				if (results.remove(candidate.key, candidate.entry)) {
+					weight.addAndGet(-candidate.entry.weight);
+					evictions.increment();
+					EVICTIONS.increment();
+				}
+			}
+		}
+	}
+
+	/**
+	 * Drop every cached result.
+	 */
+	public void clear() {
+		for (Map.Entry<Key, Entry> cached : results.entrySet()) {
+			if (results.remove(cached.getKey(), cached.getValue())) {
+				weight.addAndGet(-cached.getValue().weight);
+			}
+		}
+	}
+
+	/**
+	 * @return Number of results cached
+	 */
+	public int size() {
+		return results.size();
+	}
+
+	/**
+	 * @return Row ids cached, plus the fixed cost of each result
+	 */
+	public long getWeight() {
+		return weight.get();
+	}
+
+	public long getHits() {
+		return hits.sum();
+	}
+
+	public long getMisses() {
+		return misses.sum();
+	}
+
+	public long getEvictions() {
+		return evictions.sum();
+	}
+
+	/**
+	 * @param kind  Kind of query, such as "above"
+	 * @param name  Business name the query is for (ignoring case)
+	 * @param lower First bound of the query, or 0 if it has none
+	 * @param upper Second bound of the query, or 0 if it has none
+	 * @return Key which is equal for queries which have the same results
+	 */
+	public static Key key(String kind, String name, int lower, int upper) {
+		return new Key(kind, BusinessNameIndex.normalise(name), lower, upper);
+	}
+
+	/**
+	 * Cached result, with the time it was last used.
+	 */
+	private static final class Entry {
+
+		private final IntList rows;
+		// what the entry costs, counted in row ids
+		private final long weight;
+		// System.nanoTime() of the last hit, or of the put; set without a lock
+		private volatile long lastUsed;
+
+		private Entry(IntList rows) {
+			this.rows = rows;
+			this.weight = ENTRY_WEIGHT + rows.size();
+			this.lastUsed = System.nanoTime();
+		}
+	}
+
+	/**
+	 * Entry which may be dropped, with the time it was last used when the drop
+	 * started.
+	 */
+	private static final class Candidate {
+
+		private final Key key;
+		private final Entry entry;
+		private final long lastUsed;
+
+		private Candidate(Key key, Entry entry) {
+			this.key = key;
+			this.entry = entry;
+			this.lastUsed = entry.lastUsed;
+		}
+	}
+
+	/**
+	 * Normalised query, used as the key of its cached result.
+	 */
+	public static final class Key {
+
+		private final String kind;
+		private final String name;
+		private final int lower;
+		private final int upper;
+
+		private Key(String kind, String name, int lower, int upper) {
+			this.kind = kind;
+			this.name = name;
+			this.lower = lower;
+			this.upper = upper;
+		}
+
+		@Override
+		public boolean equals(Object obj) {
+			if (!(obj instanceof Key)) {
+				return false;
+			}
+			Key other = (Key) obj;
+			return kind.equals(other.kind) && (name == null ? other.name == null : name.equals(other.name))
+					&& lower == other.lower && upper == other.upper;
+		}
+
+		@Override
+		public int hashCode() {
+			int hash = kind.hashCode();
+			hash = 31 * hash + (name == null ? 0 : name.hashCode());
+			hash = 31 * hash + lower;
+			return 31 * hash + upper;
+		}
+
+		@Override
+		public String toString() {
+			return kind + "(" + name + ", " + lower + ", " + upper + ")";
+		}
+	}
+
+}
@@ -0,0 +1,18 @@
+package com.breakingcode.unoptimised.data;
+
+import java.io.IOException;
+
+/**
+ * Receives the values pushed through a stream, one at a time.
+ *
+ * @param <T> Type of value received
+ */
+public interface Sink<T> {
+
+	/**
+	 * @param value Next value of the stream
+	 * @return True to carry on, or false to stop the stream
+	 * @throws IOException if the value can't be handled, which stops the stream
+	 */
+	boolean accept(T value) throws IOException;
+}
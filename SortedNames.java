@@ -0,0 +1,111 @@
+package com.breakingcode.unoptimised.query;
+
+import java.util.AbstractList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.List;
+
+import com.breakingcode.unoptimised.data.StringDictionary;
+
+/**
+ * The distinct values of a dictionary encoded column, sorted once so they can
+ * be paged through without sorting again.
+ *
+ * Every distinct value is already held once in the column's dictionary, so
+ * building this is a single sort of the dictionary's values, each of which is
+ * then looked up for its code, so no code is boxed to be sorted. Only the codes
+ * are kept, in sorted order; a dictionary held off the heap then doesn't keep
+ * every name copied back onto the heap. Pages are views of the sorted codes, so
+ * fetching any page takes constant time.
+ */
+public class SortedNames {
+
+	private final StringDictionary dictionary;
+	// codes of the dictionary's values, in order of their value
+	private final int[] codes;
+	private final List<String> view;
+
+	/**
+	 * @param dictionary Dictionary whose values are to be sorted
+	 */
+	public SortedNames(StringDictionary dictionary) {
+		this(dictionary, null);
+	}
+
+	/**
+	 * @param dictionary Dictionary whose values are to be sorted
+	 * @param included   Codes of the values to keep, such as those of the rows
+	 *                   which are current, or null for every value
+	 */
+	public SortedNames(StringDictionary dictionary, BitSet included) {
+		this.dictionary = dictionary;
+		String[] values = new String[dictionary.size()];
+		int count = 0;
+		for (int code = 0; code < values.length; code++) {
+			if (included == null || included.get(code)) {
+				String value = dictionary.decode(code);
+				if (value != null) {
+					values[count++] = value;
+				}
+			}
+		}
+		// the values of a dictionary are distinct, so each sorted value maps back to its own code
+		Arrays.sort(values, 0, count);
+		codes = new int[count];
+		for (int i = 0; i < count; i++) {
+			codes[i] = dictionary.lookup(values[i]);
+		}
+		view = new AbstractList<String>() {
+			@Override
+			public String get(int index) {
+				return SortedNames.this.get(index);
+			}
+
+			@Override
+			public int size() {
+				return codes.length;
+			}
+		};
+	}
+
+	/**
+	 * @return Number of distinct names
+	 */
+	public int size() {
+		return codes.length;
+	}
+
+	/**
+	 * @param index Position in sorted order
+	 * @return Name at that position
+	 */
+	public String get(int index) {
+		return dictionary.decode(codes[index]);
+	}
+
+	/**
+	 * @return Every name, in sorted order
+	 */
+	public List<String> all() {
+		return view;
+	}
+
+	/**
+	 * @param pageSize Number of names on each page
+	 * @return Number of pages needed to hold every name
+	 */
+	public int pageCount(int pageSize) {
+		return (codes.length + pageSize - 1) / pageSize;
+	}
+
+	/**
+	 * @param page     Page number, from 0
+	 * @param pageSize Number of names on each page
+	 * @return Names on that page (fewer than pageSize on the last page)
+	 */
+	public List<String> page(int page, int pageSize) {
+		int from = Math.min(page * pageSize, codes.length);
+		return view.subList(from, Math.min(from + pageSize, codes.length));
+	}
+
+}
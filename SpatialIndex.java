@@ -0,0 +1,405 @@
+package com.breakingcode.unoptimised.query;
+
+import java.util.Arrays;
+import java.util.BitSet;
+
+import com.breakingcode.unoptimised.data.FoodSafetyDataset;
+import com.breakingcode.unoptimised.data.IntList;
+
+/**
+ * Spatial index over the geocode of every row, for nearest neighbour, bounding
+ * box and radius queries.
+ *
+ * The index is an implicit k-d tree over primitive arrays: the located rows are
+ * reordered so the median of every range, alternately by longitude and by
+ * latitude, sits in the middle of it, and each half is ordered the same way.
+ * No node objects are needed, and a search narrows the bounding box of each
+ * range as it descends so whole ranges can be skipped.
+ *
+ * Rows without a geocode hold -1 in both columns, which is what a blank or
+ * unreadable value is parsed as. Those rows, and any with a coordinate outside
+ * the range of a real one, are left out of the index. A single coordinate of -1
+ * is kept, as longitude -1 runs through England.
+ */
+public class SpatialIndex {
+
+	/** Mean radius of the earth, in kilometres */
+	public static final double EARTH_RADIUS_KM = 6371.0088;
+
+	/** Value of a coordinate which couldn't be read */
+	private static final double MISSING = -1;
+
+	private final double[] longitudes;
+	private final double[] latitudes;
+	private final int[] rows;
+
+	/**
+	 * @param dataset Dataset to be indexed
+	 */
+	public SpatialIndex(FoodSafetyDataset dataset) {
+		this(dataset, null);
+	}
+
+	/**
+	 * @param dataset  Dataset to be indexed
+	 * @param included Rows to be indexed, or null for every row
+	 */
+	public SpatialIndex(FoodSafetyDataset dataset, BitSet included) {
+		int located = 0;
+		for (int row = 0; row < dataset.size(); row++) {
+			if ((included == null || included.get(row))
+					&& isLocated(dataset.getLatitude(row), dataset.getLongitude(row))) {
+				located++;
+			}
+		}
+
+		longitudes = new double[located];
+		latitudes = new double[located];
+		rows = new int[located];
+		int i = 0;
+		for (int row = 0; row < dataset.size(); row++) {
+			double latitude = dataset.getLatitude(row);
+			double longitude = dataset.getLongitude(row);
+			if ((included == null || included.get(row)) && isLocated(latitude, longitude)) {
+				longitudes[i] = longitude;
+				latitudes[i] = latitude;
+				rows[i] = row;
+				i++;
+			}
+		}
+
+		build(0, located, 0);
+	}
+
+	/**
+	 * @return Whether the coordinates are a real geocode rather than the missing
+	 *         value sentinel in both
+	 */
+	public static boolean isLocated(double latitude, double longitude) {
+		return !(latitude == MISSING && longitude == MISSING) && latitude >= -90 && latitude <= 90 && longitude >= -180
+				&& longitude <= 180;
+	}
+
+	/**
+	 * @return Number of rows with a geocode
+	 */
+	public int size() {
+		return rows.length;
+	}
+
+	/**
+	 * Find the rows nearest to a point, by great circle distance.
+	 *
+	 * @param latitude  Latitude of the point
+	 * @param longitude Longitude of the point
+	 * @param count     Maximum number of rows to return
+	 * @param filter    Rows to consider, or null for every row
+	 * @return Nearest rows, nearest first
+	 */
+	public IntList nearest(double latitude, double longitude, int count, BitSet filter) {
+		Nearest nearest = new Nearest(latitude, longitude, Math.max(count, 0), filter);
+		if (count > 0) {
+			nearest.search(0, rows.length, 0, -180, 180, -90, 90);
+		}
+		return nearest.result();
+	}
+
+	/**
+	 * Find the rows inside a bounding box, including its edges.
+	 *
+	 * @param minLatitude  Southern edge
+	 * @param minLongitude Western edge
+	 * @param maxLatitude  Northern edge
+	 * @param maxLongitude Eastern edge
+	 * @param filter       Rows to consider, or null for every row
+	 * @return Rows inside the box, in row order
+	 */
+	public IntList inBox(double minLatitude, double minLongitude, double maxLatitude, double maxLongitude,
+			BitSet filter) {
+		IntList result = new IntList();
+		inBox(0, rows.length, 0, minLatitude, minLongitude, maxLatitude, maxLongitude, Double.NaN, Double.NaN, 0,
+				filter, result);
+		return sorted(result);
+	}
+
+	/**
+	 * Find the rows within a great circle distance of a point.
+	 *
+	 * @param latitude  Latitude of the point
+	 * @param longitude Longitude of the point
+	 * @param radiusKm  Distance from the point, in kilometres
+	 * @param filter    Rows to consider, or null for every row
+	 * @return Rows within the distance, in row order
+	 */
+	public IntList withinRadius(double latitude, double longitude, double radiusKm, BitSet filter) {
+		IntList result = new IntList();
+		if (radiusKm < 0) {
+			return result;
+		}
+
+		// search the bounding box of the circle, checking the distance of each row in it
+		double angle = radiusKm / EARTH_RADIUS_KM;
+		double minLatitude = latitude - Math.toDegrees(angle);
+		double maxLatitude = latitude + Math.toDegrees(angle);
+		double minLongitude = -180;
+		double maxLongitude = 180;
+		if (minLatitude > -90 && maxLatitude < 90) {
+			double spread = Math.toDegrees(Math.asin(Math.min(1, Math.sin(angle) / Math.cos(Math.toRadians(latitude)))));
+			minLongitude = longitude - spread;
+			maxLongitude = longitude + spread;
+		}
+		inBox(0, rows.length, 0, minLatitude, minLongitude, maxLatitude, maxLongitude, latitude, longitude, radiusKm,
+				filter, result);
+		return sorted(result);
+	}
+
+	/**
+	 * @return Great circle distance between two points, in kilometres
+	 */
+	public static double distanceKm(double latitude1, double longitude1, double latitude2, double longitude2) {
+		double sinLatitude = Math.sin(Math.toRadians(latitude2 - latitude1) / 2);
+		double sinLongitude = Math.sin(Math.toRadians(longitude2 - longitude1) / 2);
+		double a = sinLatitude * sinLatitude
+				+ Math.cos(Math.toRadians(latitude1)) * Math.cos(Math.toRadians(latitude2)) * sinLongitude * sinLongitude;
+		return 2 * EARTH_RADIUS_KM * Math.asin(Math.min(1, Math.sqrt(a)));
+	}
+
+	/**
+	 * Arrange [lo, hi) so its median on the given axis is in the middle, with
+	 * smaller values before it, and then do the same with each half on the other
+	 * axis.
+	 */
+	private void build(int lo, int hi, int depth) {
+		while (hi - lo > 1) {
+			int mid = (lo + hi) >>> 1;
+			select(lo, hi, mid, depth & 1);
+			build(mid + 1, hi, depth + 1);
+			hi = mid;
+			depth++;
+		}
+	}
+
+	/**
+	 * Quickselect: move the k-th smallest value of [lo, hi) on the axis to k.
+	 */
+	private void select(int lo, int hi, int k, int axis) {
+		double[] values = axis == 0 ? longitudes : latitudes;
+		hi--;
+		while (lo < hi) {
+			double pivot = values[(lo + hi) >>> 1];
+			int i = lo;
+			int j = hi;
+			while (i <= j) {
+				while (values[i] < pivot) {
+					i++;
+				}
+				while (values[j] > pivot) {
+					j--;
+				}
+				if (i <= j) {
+					swap(i++, j--);
+				}
+			}
+			if (k <= j) {
+				hi = j;
+			} else if (k >= i) {
+				lo = i;
+			} else {
+				return;
+			}
+		}
+	}
+
+	private void swap(int i, int j) {
+		double longitude = longitudes[i];
+		longitudes[i] = longitudes[j];
+		longitudes[j] = longitude;
+		double latitude = latitudes[i];
+		latitudes[i] = latitudes[j];
+		latitudes[j] = latitude;
+		int row = rows[i];
+		rows[i] = rows[j];
+		rows[j] = row;
+	}
+
+	/**
+	 * Add the rows of [lo, hi) inside the box, and within the radius of the centre
+	 * if one is given.
+	 */
+	private void inBox(int lo, int hi, int depth, double minLatitude, double minLongitude, double maxLatitude,
+			double maxLongitude, double latitude, double longitude, double radiusKm, BitSet filter, IntList result) {
+		while (lo < hi) {
+			int mid = (lo + hi) >>> 1;
+			double lat = latitudes[mid];
+			double lon = longitudes[mid];
+			if (lat >= minLatitude && lat <= maxLatitude && lon >= minLongitude && lon <= maxLongitude
+					&& (filter == null || filter.get(rows[mid]))
+					&& (Double.isNaN(latitude) || distanceKm(latitude, longitude, lat, lon) <= radiusKm)) {
+				result.add(rows[mid]);
+			}
+
+			double split = (depth & 1) == 0 ? lon : lat;
+			double min = (depth & 1) == 0 ? minLongitude : minLatitude;
+			double max = (depth & 1) == 0 ? maxLongitude : maxLatitude;
+			boolean left = min <= split;
+			boolean right = max >= split;
+			if (left && right) {
+				inBox(mid + 1, hi, depth + 1, minLatitude, minLongitude, maxLatitude, maxLongitude, latitude, longitude,
+						radiusKm, filter, result);
+				hi = mid;
+			} else if (left) {
+				hi = mid;
+			} else {
+				lo = mid + 1;
+			}
+			depth++;
+		}
+	}
+
+	private static IntList sorted(IntList rows) {
+		int[] sorted = rows.toArray();
+		Arrays.sort(sorted);
+		IntList result = new IntList(sorted.length);
+		for (int row : sorted) {
+			result.add(row);
+		}
+		return result;
+	}
+
+	/**
+	 * A k nearest neighbour search, keeping the best rows found so far in a max
+	 * heap on distance.
+	 */
+	private class Nearest {
+
+		private final double latitude;
+		private final double longitude;
+		private final double cosLatitude;
+		private final BitSet filter;
+		private final double[] distances;
+		private final int[] heap;
+		private int size;
+
+		private Nearest(double latitude, double longitude, int count, BitSet filter) {
+			this.latitude = latitude;
+			this.longitude = longitude;
+			this.cosLatitude = Math.cos(Math.toRadians(latitude));
+			this.filter = filter;
+			this.distances = new double[count];
+			this.heap = new int[count];
+		}
+
+		/**
+		 * Search [lo, hi), whose points all lie in the given bounds.
+		 */
+		private void search(int lo, int hi, int depth, double minLongitude, double maxLongitude, double minLatitude,
+				double maxLatitude) {
+			if (lo >= hi) {
+				return;
+			}
+			if (size == heap.length
+					&& lowerBound(minLongitude, maxLongitude, minLatitude, maxLatitude) >= distances[0]) {
+				return;
+			}
+
+			int mid = (lo + hi) >>> 1;
+			if (filter == null || filter.get(rows[mid])) {
+				offer(rows[mid], distanceKm(latitude, longitude, latitudes[mid], longitudes[mid]));
+			}
+
+			// descend into the half holding the point first, as it's likely to hold the nearest rows
+			if ((depth & 1) == 0) {
+				double split = longitudes[mid];
+				if (longitude < split) {
+					search(lo, mid, depth + 1, minLongitude, split, minLatitude, maxLatitude);
+					search(mid + 1, hi, depth + 1, split, maxLongitude, minLatitude, maxLatitude);
+				} else {
+					search(mid + 1, hi, depth + 1, split, maxLongitude, minLatitude, maxLatitude);
+					search(lo, mid, depth + 1, minLongitude, split, minLatitude, maxLatitude);
+				}
+			} else {
+				double split = latitudes[mid];
+				if (latitude < split) {
+					search(lo, mid, depth + 1, minLongitude, maxLongitude, minLatitude, split);
+					search(mid + 1, hi, depth + 1, minLongitude, maxLongitude, split, maxLatitude);
+				} else {
+					search(mid + 1, hi, depth + 1, minLongitude, maxLongitude, split, maxLatitude);
+					search(lo, mid, depth + 1, minLongitude, maxLongitude, minLatitude, split);
+				}
+			}
+		}
+
+		/**
+		 * @return Distance in kilometres which no point in the bounds can be closer
+		 *         than
+		 */
+		private double lowerBound(double minLongitude, double maxLongitude, double minLatitude, double maxLatitude) {
+			double latitudeGap = latitude < minLatitude ? minLatitude - latitude
+					: latitude > maxLatitude ? latitude - maxLatitude : 0;
+			double longitudeGap = longitude < minLongitude ? minLongitude - longitude
+					: longitude > maxLongitude ? longitude - maxLongitude : 0;
+			double bound = Math.toRadians(latitudeGap);
+			if (longitudeGap > 0) {
+				// distance to the nearest meridian of the bounds
+				double sinGap = Math.sin(Math.toRadians(Math.min(longitudeGap, 90)));
+				bound = Math.max(bound, Math.asin(Math.min(1, cosLatitude * sinGap)));
+			}
+			return bound * EARTH_RADIUS_KM;
+		}
+
+		private void offer(int row, double distance) {
+			if (size < heap.length) {
+				// sift up
+				int i = size++;
+				while (i > 0 && distances[(i - 1) / 2] < distance) {
+					distances[i] = distances[(i - 1) / 2];
+					heap[i] = heap[(i - 1) / 2];
+					i = (i - 1) / 2;
+				}
+				distances[i] = distance;
+				heap[i] = row;
+			} else if (distance < distances[0]) {
+				siftDown(row, distance, size);
+			}
+		}
+
+		/**
+		 * Replace the head of the first n entries of the heap.
+		 */
+		private void siftDown(int row, double distance, int n) {
+			int i = 0;
+			while (2 * i + 1 < n) {
+				int child = 2 * i + 1;
+				if (child + 1 < n && distances[child + 1] > distances[child]) {
+					child++;
+				}
+				if (distances[child] <= distance) {
+					break;
+				}
+				distances[i] = distances[child];
+				heap[i] = heap[child];
+				i = child;
+			}
+			distances[i] = distance;
+			heap[i] = row;
+		}
+
+		/**
+		 * @return Rows found, nearest first
+		 */
+		private IntList result() {
+			int[] nearestFirst = new int[size];
+			// repeatedly take the farthest row off the heap
+			for (int n = size; n > 0; n--) {
+				nearestFirst[n - 1] = heap[0];
+				siftDown(heap[n - 1], distances[n - 1], n - 1);
+			}
+			IntList result = new IntList(nearestFirst.length);
+			for (int row : nearestFirst) {
+				result.add(row);
+			}
+			return result;
+		}
+	}
+
+}
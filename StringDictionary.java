@@ -0,0 +1,214 @@
+package com.breakingcode.unoptimised.data;
+
+import java.nio.ByteBuffer;
+import java.nio.IntBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Dictionary used to encode the String columns of a {@link FoodSafetyDataset}.
+ *
+ * Each distinct value is stored once and given a dense integer code (in order of
+ * first appearance), so rows only need to keep the code.
+ *
+ * The map from value to code is only needed while encoding, so a dictionary
+ * read back from a snapshot doesn't build it until it is first used.
+ *
+ * A dictionary with many values can be moved off the Java heap once it is
+ * complete, with {@link #moveOffHeap()}. Its values are then held as UTF-8 one
+ * after another in a direct buffer, with the end of each in another, and a hash
+ * table of codes in a third; nothing is left on the heap for the garbage
+ * collector to trace, and each value is only decoded into a String when it is
+ * read. Nothing can be added to it after that.
+ */
+public class StringDictionary {
+
+	public static final int NOT_FOUND = -1;
+
+	private volatile Map<String, Integer> codes;
+	private List<String> values = new ArrayList<String>();
+
+	// only once off the heap: the UTF-8 bytes of every value, and the end of each
+	private ByteBuffer arena;
+	private IntBuffer ends;
+	// open addressed on the hash of each value, holding code + 1 (0 is an empty slot)
+	private IntBuffer table;
+	private int size;
+	private int nullCode = NOT_FOUND;
+
+	/**
+	 * Returns the code for the given value, adding it to the dictionary if it has
+	 * not been seen before.
+	 *
+	 * @param value String to be encoded (may be null)
+	 * @return Code for the value
+	 */
+	public int encode(String value) {
+		if (arena != null) {
+			int code = lookup(value);
+			if (code == NOT_FOUND) {
+				throw new IllegalStateException("Values can't be added once a dictionary is off the heap");
+			}
+			return code;
+		}
+		Map<String, Integer> codes = codes();
+		Integer code = codes.get(value);
+		if (code == null) {
+			code = values.size();
+			codes.put(value, code);
+			values.add(value);
+		}
+		return code;
+	}
+
+	/**
+	 * Add a value which is known not to be in the dictionary yet, such as one read
+	 * back from a snapshot.
+	 *
+	 * @param value String to be added (may be null)
+	 */
+	void append(String value) {
+		if (arena != null) {
+			throw new IllegalStateException("Values can't be added once a dictionary is off the heap");
+		}
+		if (codes != null) {
+			codes.put(value, values.size());
+		}
+		values.add(value);
+	}
+
+	private Map<String, Integer> codes() {
+		Map<String, Integer> codes = this.codes;
+		if (codes == null) {
+			codes = new HashMap<String, Integer>(values.size() * 4 / 3 + 16);
+			for (int code = 0; code < values.size(); code++) {
+				codes.put(values.get(code), code);
+			}
+			this.codes = codes;
+		}
+		return codes;
+	}
+
+	/**
+	 * Returns the code for the given value without modifying the dictionary.
+	 *
+	 * @param value String to look up
+	 * @return Code for the value, or NOT_FOUND if it isn't in the dictionary
+	 */
+	public int lookup(String value) {
+		if (arena != null) {
+			return value == null ? nullCode : find(value.getBytes(StandardCharsets.UTF_8));
+		}
+		Integer code = codes().get(value);
+		return code == null ? NOT_FOUND : code;
+	}
+
+	public String decode(int code) {
+		if (arena == null) {
+			return values.get(code);
+		}
+		if (code < 0 || code >= size) {
+			throw new IndexOutOfBoundsException("Code: " + code + ", Size: " + size);
+		}
+		if (code == nullCode) {
+			return null;
+		}
+		int start = start(code);
+		byte[] bytes = new byte[ends.get(code) - start];
+		arena.get(start, bytes);
+		return new String(bytes, StandardCharsets.UTF_8);
+	}
+
+	public int size() {
+		return arena == null ? values.size() : size;
+	}
+
+	/**
+	 * Move the values of this dictionary off the Java heap, after which nothing
+	 * more can be added to it.
+	 */
+	void moveOffHeap() {
+		if (arena != null) {
+			return;
+		}
+		size = values.size();
+		byte[][] encoded = new byte[size][];
+		int length = 0;
+		for (int code = 0; code < size; code++) {
+			String value = values.get(code);
+			encoded[code] = value == null ? new byte[0] : value.getBytes(StandardCharsets.UTF_8);
+			length += encoded[code].length;
+			if (value == null) {
+				nullCode = code;
+			}
+		}
+
+		ByteBuffer bytes = OffHeap.allocate(length);
+		IntBuffer ends = OffHeap.allocate(size * 4).asIntBuffer();
+		int capacity = Integer.highestOneBit(Math.max(size, 1) * 2) * 2;
+		IntBuffer table = OffHeap.allocate(capacity * 4).asIntBuffer();
+		for (int code = 0; code < size; code++) {
+			bytes.put(encoded[code]);
+			ends.put(code, bytes.position());
+			if (code != nullCode) {
+				int slot = hash(encoded[code]) & (capacity - 1);
+				while (table.get(slot) != 0) {
+					slot = (slot + 1) & (capacity - 1);
+				}
+				table.put(slot, code + 1);
+			}
+		}
+
+		this.arena = bytes;
+		this.ends = ends;
+		this.table = table;
+		this.values = null;
+		this.codes = null;
+	}
+
+	/**
+	 * @return Whether the values of this dictionary are held off the heap
+	 */
+	public boolean isOffHeap() {
+		return arena != null;
+	}
+
+	private int start(int code) {
+		return code == 0 ? 0 : ends.get(code - 1);
+	}
+
+	private int find(byte[] value) {
+		int mask = table.capacity() - 1;
+		for (int slot = hash(value) & mask;; slot = (slot + 1) & mask) {
+			int code = table.get(slot) - 1;
+			if (code < 0) {
+				return NOT_FOUND;
+			}
+			int start = start(code);
+			if (ends.get(code) - start == value.length && matches(start, value)) {
+				return code;
+			}
+		}
+	}
+
+	private boolean matches(int start, byte[] value) {
+		for (int i = 0; i < value.length; i++) {
+			if (arena.get(start + i) != value[i]) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	private static int hash(byte[] bytes) {
+		int hash = bytes.length;
+		for (byte b : bytes) {
+			hash = 31 * hash + b;
+		}
+		return hash ^ (hash >>> 16);
+	}
+
+}
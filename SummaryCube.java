@@ -0,0 +1,221 @@
+package com.breakingcode.unoptimised.query;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+
+import com.breakingcode.unoptimised.data.FoodSafetyDataset;
+import com.breakingcode.unoptimised.data.StringDictionary;
+
+/**
+ * Precomputed rating statistics of a dataset, grouped by local authority and by
+ * business type.
+ *
+ * The cube holds one set of counters per (LocalAuthorityName, BusinessType)
+ * pair, from which the totals of each authority, each business type and the
+ * whole dataset are rolled up. It is built once with a single fork-join pass
+ * over the rows, in which each task counts its own range of rows into its own
+ * cube and the cubes are added together as the tasks join, so statistics
+ * queries never rescan the rows.
+ */
+public class SummaryCube {
+
+	/** Fewest rows a task counts without splitting */
+	private static final int MIN_SPLIT = 1 << 14;
+
+	private final FoodSafetyDataset dataset;
+	private final int[] ratingsByCode;
+	// rows to count, or null for every row
+	private final BitSet included;
+	private final StringDictionary authorities;
+	private final StringDictionary businessTypes;
+	private final int typeCount;
+
+	// counters of each cell, at (authority code * typeCount + type code) * COUNTERS
+	private final long[] cells;
+	private final long[] byAuthority;
+	private final long[] byBusinessType;
+	private final long[] total = new long[RatingStatistics.COUNTERS];
+
+	/**
+	 * Build the cube on the common fork-join pool.
+	 *
+	 * @param dataset       Dataset to be summarised
+	 * @param ratingsByCode Rating of each code in the dataset's rating value
+	 *                      dictionary
+	 */
+	public SummaryCube(FoodSafetyDataset dataset, int[] ratingsByCode) {
+		this(dataset, ratingsByCode, null, ForkJoinPool.commonPool());
+	}
+
+	/**
+	 * @param dataset       Dataset to be summarised
+	 * @param ratingsByCode Rating of each code in the dataset's rating value
+	 *                      dictionary
+	 * @param pool          Pool to count the rows on
+	 */
+	public SummaryCube(FoodSafetyDataset dataset, int[] ratingsByCode, ForkJoinPool pool) {
+		this(dataset, ratingsByCode, null, pool);
+	}
+
+	/**
+	 * @param dataset       Dataset to be summarised
+	 * @param ratingsByCode Rating of each code in the dataset's rating value
+	 *                      dictionary
+	 * @param included      Rows to be counted, or null for every row
+	 * @param pool          Pool to count the rows on
+	 */
+	public SummaryCube(FoodSafetyDataset dataset, int[] ratingsByCode, BitSet included, ForkJoinPool pool) {
+		this.dataset = dataset;
+		this.included = included;
+		this.ratingsByCode = ratingsByCode;
+		this.authorities = dataset.getLocalAuthorityNameDictionary();
+		this.businessTypes = dataset.getBusinessTypeDictionary();
+		this.typeCount = businessTypes.size();
+
+		int threshold = Math.max(MIN_SPLIT, dataset.size() / (4 * pool.getParallelism()) + 1);
+		this.cells = pool.invoke(new CountRows(0, dataset.size(), threshold));
+
+		this.byAuthority = new long[authorities.size() * RatingStatistics.COUNTERS];
+		this.byBusinessType = new long[typeCount * RatingStatistics.COUNTERS];
+		for (int authority = 0; authority < authorities.size(); authority++) {
+			for (int type = 0; type < typeCount; type++) {
+				int cell = (authority * typeCount + type) * RatingStatistics.COUNTERS;
+				add(cells, cell, byAuthority, authority * RatingStatistics.COUNTERS);
+				add(cells, cell, byBusinessType, type * RatingStatistics.COUNTERS);
+				add(cells, cell, total, 0);
+			}
+		}
+	}
+
+	/**
+	 * @return Statistics of every premises in the dataset
+	 */
+	public RatingStatistics getTotal() {
+		return new RatingStatistics(null, total.clone());
+	}
+
+	/**
+	 * @param authority LocalAuthorityName of the premises
+	 * @return Statistics of the premises in that authority, or null if there are
+	 *         none
+	 */
+	public RatingStatistics getAuthority(String authority) {
+		int code = authorities.lookup(authority);
+		return code == StringDictionary.NOT_FOUND ? null : statistics(authority, byAuthority, code);
+	}
+
+	/**
+	 * @param businessType BusinessType of the premises
+	 * @return Statistics of the premises of that type, or null if there are none
+	 */
+	public RatingStatistics getBusinessType(String businessType) {
+		int code = businessTypes.lookup(businessType);
+		return code == StringDictionary.NOT_FOUND ? null : statistics(businessType, byBusinessType, code);
+	}
+
+	/**
+	 * @param authority    LocalAuthorityName of the premises
+	 * @param businessType BusinessType of the premises
+	 * @return Statistics of the premises of that type in that authority, or null
+	 *         if either is unknown
+	 */
+	public RatingStatistics get(String authority, String businessType) {
+		int authorityCode = authorities.lookup(authority);
+		int typeCode = businessTypes.lookup(businessType);
+		if (authorityCode == StringDictionary.NOT_FOUND || typeCode == StringDictionary.NOT_FOUND) {
+			return null;
+		}
+		return statistics(authority + " / " + businessType, cells, authorityCode * typeCount + typeCode);
+	}
+
+	/**
+	 * @return Statistics of each local authority, by name
+	 */
+	public List<RatingStatistics> byAuthority() {
+		return all(authorities, byAuthority);
+	}
+
+	/**
+	 * @return Statistics of each business type, by name
+	 */
+	public List<RatingStatistics> byBusinessType() {
+		return all(businessTypes, byBusinessType);
+	}
+
+	private List<RatingStatistics> all(StringDictionary names, long[] counters) {
+		List<RatingStatistics> result = new ArrayList<RatingStatistics>(names.size());
+		for (int code = 0; code < names.size(); code++) {
+			result.add(statistics(names.decode(code), counters, code));
+		}
+		Collections.sort(result, new Comparator<RatingStatistics>() {
+			@Override
+			public int compare(RatingStatistics o1, RatingStatistics o2) {
+				return String.valueOf(o1.getName()).compareTo(String.valueOf(o2.getName()));
+			}
+		});
+		return result;
+	}
+
+	private static RatingStatistics statistics(String name, long[] counters, int group) {
+		int from = group * RatingStatistics.COUNTERS;
+		return new RatingStatistics(name, Arrays.copyOfRange(counters, from, from + RatingStatistics.COUNTERS));
+	}
+
+	static void add(long[] from, int fromOffset, long[] to, int toOffset) {
+		for (int i = 0; i < RatingStatistics.COUNTERS; i++) {
+			to[toOffset + i] += from[fromOffset + i];
+		}
+	}
+
+	/**
+	 * Counts a range of rows into a cube of its own, splitting the range in two
+	 * while it is larger than the threshold.
+	 */
+	private class CountRows extends RecursiveTask<long[]> {
+
+		private static final long serialVersionUID = 1L;
+
+		private final int lo;
+		private final int hi;
+		private final int threshold;
+
+		private CountRows(int lo, int hi, int threshold) {
+			this.lo = lo;
+			this.hi = hi;
+			this.threshold = threshold;
+		}
+
+		@Override
+		protected long[] compute() {
+			if (hi - lo > threshold) {
+				int mid = (lo + hi) >>> 1;
+				CountRows left = new CountRows(lo, mid, threshold);
+				left.fork();
+				long[] result = new CountRows(mid, hi, threshold).compute();
+				long[] other = left.join();
+				for (int i = 0; i < result.length; i++) {
+					result[i] += other[i];
+				}
+				return result;
+			}
+
+			long[] result = new long[authorities.size() * typeCount * RatingStatistics.COUNTERS];
+			for (int row = lo; row < hi; row++) {
+				if (included != null && !included.get(row)) {
+					continue;
+				}
+				int cell = (dataset.getLocalAuthorityNameCode(row) * typeCount + dataset.getBusinessTypeCode(row))
+						* RatingStatistics.COUNTERS;
+				RatingStatistics.count(dataset, ratingsByCode, row, result, cell);
+			}
+			return result;
+		}
+	}
+
+}
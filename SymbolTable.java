@@ -0,0 +1,116 @@
+package com.breakingcode.unoptimised.data;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+
+/**
+ * Interns the values of a low cardinality column straight from the bytes of the
+ * file being parsed, so each distinct value is only turned into a String once.
+ *
+ * Headers such as RatingValue, BusinessType and the local authority headers
+ * only have a handful of distinct values, but they change from row to row, so
+ * comparing against the previous row alone still creates a String (and its
+ * bytes) for most rows. Here the bytes of the field are hashed and looked up in
+ * an open addressed table, and the String already made for those bytes is
+ * returned without allocating anything.
+ */
+class SymbolTable {
+
+	private static final int INITIAL_CAPACITY = 64;
+
+	private final Charset charset;
+
+	// open addressed, with linear probing; a null key is an empty slot
+	private byte[][] keys = new byte[INITIAL_CAPACITY][];
+	private String[] values = new String[INITIAL_CAPACITY];
+	private int[] hashes = new int[INITIAL_CAPACITY];
+	private int size;
+
+	/**
+	 * @param charset Charset the bytes are decoded with
+	 */
+	SymbolTable(Charset charset) {
+		this.charset = charset;
+	}
+
+	/**
+	 * Returns the String held in the given bytes, creating it only if these bytes
+	 * haven't been seen before.
+	 *
+	 * @param buffer Buffer holding the value
+	 * @param start  Offset of the first byte of the value
+	 * @param end    Offset after the last byte of the value
+	 * @return Shared String for the value
+	 */
+	String intern(ByteBuffer buffer, int start, int end) {
+		int length = end - start;
+		int hash = length;
+		for (int i = start; i < end; i++) {
+			hash = 31 * hash + buffer.get(i);
+		}
+		hash ^= hash >>> 16;
+
+		int mask = keys.length - 1;
+		int slot = hash & mask;
+		byte[] key;
+		while ((key = keys[slot]) != null) {
+			if (hashes[slot] == hash && matches(key, buffer, start, length)) {
+				return values[slot];
+			}
+			slot = (slot + 1) & mask;
+		}
+
+		key = new byte[length];
+		buffer.get(start, key);
+		String value = new String(key, charset);
+		keys[slot] = key;
+		values[slot] = value;
+		hashes[slot] = hash;
+		if (++size * 2 > keys.length) {
+			resize();
+		}
+		return value;
+	}
+
+	/**
+	 * @return Number of distinct values seen
+	 */
+	int size() {
+		return size;
+	}
+
+	private static boolean matches(byte[] key, ByteBuffer buffer, int start, int length) {
+		if (key.length != length) {
+			return false;
+		}
+		for (int i = 0; i < length; i++) {
+			if (buffer.get(start + i) != key[i]) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	private void resize() {
+		byte[][] oldKeys = keys;
+		String[] oldValues = values;
+		int[] oldHashes = hashes;
+		int capacity = oldKeys.length * 2;
+		keys = new byte[capacity][];
+		values = new String[capacity];
+		hashes = new int[capacity];
+		int mask = capacity - 1;
+		for (int i = 0; i < oldKeys.length; i++) {
+			if (oldKeys[i] != null) {
+				int slot = oldHashes[i] & mask;
+				while (keys[slot] != null) {
+					slot = (slot + 1) & mask;
+				}
+				keys[slot] = oldKeys[i];
+				values[slot] = oldValues[i];
+				hashes[slot] = oldHashes[i];
+			}
+		}
+	}
+
+}
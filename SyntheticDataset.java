@@ -0,0 +1,141 @@
+package com.breakingcode.unoptimised.bench;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.util.Locale;
+import java.util.Random;
+
+import com.breakingcode.unoptimised.data.enums.Headers;
+
+/**
+ * Writes synthetic FHRS CSV files, so the load and query paths can be measured
+ * without downloading the real extracts.
+ *
+ * Rows are random but repeatable for a given seed, and follow the shape of the
+ * real data: a few chains with many premises among a long tail of one-off
+ * names, quoted addresses containing commas, the special rating values, and
+ * blank rating dates and geocodes.
+ */
+public class SyntheticDataset {
+
+	private static final String[] CHAINS = { "McDonalds", "Greggs", "Starbucks", "Subway", "KFC", "Costa Coffee",
+			"Tesco Express", "Sainsbury's Local", "Co-op Food", "Pizza Hut", "Domino's Pizza", "Nando's" };
+	private static final String[] WORDS = { "Golden", "Dragon", "Royal", "Kitchen", "Cafe", "Bistro", "Express",
+			"House", "Garden", "Palace", "Corner", "Bakery", "Grill", "Tandoori", "Fish", "Chips", "Deli", "Tavern",
+			"Arms", "Inn", "Star", "Rose", "Crown", "Lion", "Oak", "Mill", "Bridge", "Market" };
+	private static final String[] TYPES = { "Restaurant/Cafe/Canteen", "Takeaway/sandwich shop", "Retailers - other",
+			"Pub/bar/nightclub", "Retailers - supermarkets/hypermarkets", "Mobile caterer", "Hotel/bed & breakfast/guest house",
+			"School/college/university", "Caring Premises" };
+	private static final String[] STREETS = { "High St", "Market St", "Church Rd", "Station Rd", "London Rd",
+			"Victoria St", "Park Lane", "Mill Lane" };
+	private static final String[] RATINGS = { "0", "1", "2", "3", "4", "5", "5", "5", "4", "Exempt",
+			"AwaitingInspection" };
+
+	private final Random random;
+
+	/**
+	 * @param seed Seed for the random rows, so the same files are written each time
+	 */
+	public SyntheticDataset(long seed) {
+		this.random = new Random(seed);
+	}
+
+	/**
+	 * Write one CSV file per authority into the given directory.
+	 *
+	 * @param directory   Directory to write the files into, created if needed
+	 * @param authorities Number of authorities (files) to write
+	 * @param rows        Number of rows in each file
+	 * @throws IOException if a file can't be written
+	 */
+	public void write(File directory, int authorities, int rows) throws IOException {
+		if (!directory.isDirectory() && !directory.mkdirs()) {
+			throw new IOException("Unable to create directory: " + directory);
+		}
+		int fhrsid = 1;
+		for (int authority = 0; authority < authorities; authority++) {
+			String name = String.format("Authority%03d", authority);
+			try (Writer out = new BufferedWriter(
+					new OutputStreamWriter(new FileOutputStream(new File(directory, name + ".csv")), StandardCharsets.UTF_8),
+					1 << 16)) {
+				writeFile(out, name, 100 + authority, fhrsid, rows);
+			}
+			fhrsid += rows;
+		}
+	}
+
+	private void writeFile(Writer out, String authority, int authorityCode, int firstId, int rows) throws IOException {
+		Headers[] headers = Headers.values();
+		for (int i = 0; i < headers.length; i++) {
+			out.write(i == 0 ? "" : ",");
+			out.write(headers[i].header);
+		}
+		out.write("\n");
+
+		StringBuilder row = new StringBuilder(512);
+		for (int i = 0; i < rows; i++) {
+			row.setLength(0);
+			String rating = RATINGS[random.nextInt(RATINGS.length)];
+			boolean dated = random.nextInt(20) != 0;
+			boolean located = random.nextInt(10) != 0;
+
+			row.append(firstId + i).append(',');
+			row.append("PI/").append(i).append(',');
+			appendQuoted(row, businessName()).append(',');
+			row.append(TYPES[random.nextInt(TYPES.length)]).append(',');
+			row.append(1 + random.nextInt(9)).append(',');
+			row.append(random.nextInt(300)).append(' ').append(STREETS[random.nextInt(STREETS.length)]).append(',');
+			if (random.nextInt(4) == 0) {
+				appendQuoted(row, "Unit " + (1 + random.nextInt(20)) + ", " + STREETS[random.nextInt(STREETS.length)]);
+			}
+			row.append(',').append(authority).append(",,");
+			row.append((char) ('A' + random.nextInt(26))).append(1 + random.nextInt(40)).append(' ')
+					.append(random.nextInt(10)).append("AB,");
+			row.append(rating).append(",fhrs_").append(rating).append("_en-gb,");
+			if (dated) {
+				row.append(String.format(Locale.ROOT, "%04d-%02d-%02d", 2005 + random.nextInt(16), 1 + random.nextInt(12),
+						1 + random.nextInt(28)));
+			}
+			row.append(',').append(authorityCode).append(',').append(authority).append(',');
+			row.append("http://www.").append(authority).append(".gov.uk,food@").append(authority).append(".gov.uk,");
+			if (Character.isDigit(rating.charAt(0))) {
+				row.append(5 * random.nextInt(5)).append(',').append(5 * random.nextInt(5)).append(',')
+						.append(5 * random.nextInt(5)).append(',');
+			} else {
+				row.append(",,,");
+			}
+			row.append("FHRS,").append(random.nextInt(50) == 0).append(',');
+			if (located) {
+				row.append(String.format(Locale.ROOT, "%.6f,%.6f", -3 + random.nextDouble(), 53 + random.nextDouble()));
+			} else {
+				row.append(',');
+			}
+			row.append(",,").append(dated ? "" : "true").append('\n');
+			out.write(row.toString());
+		}
+	}
+
+	/**
+	 * @return Business name, a quarter of the time one of a few chains
+	 */
+	private String businessName() {
+		if (random.nextInt(4) == 0) {
+			return CHAINS[random.nextInt(CHAINS.length)];
+		}
+		return WORDS[random.nextInt(WORDS.length)] + " " + WORDS[random.nextInt(WORDS.length)] + " "
+				+ WORDS[random.nextInt(WORDS.length)];
+	}
+
+	private static StringBuilder appendQuoted(StringBuilder row, String value) {
+		if (value.indexOf(',') < 0 && value.indexOf('"') < 0) {
+			return row.append(value);
+		}
+		return row.append('"').append(value.replace("\"", "\"\"")).append('"');
+	}
+
+}
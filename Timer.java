@@ -0,0 +1,173 @@
+package com.breakingcode.unoptimised.metrics;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Latency of an operation, such as parsing a file or running a query, kept as
+ * a histogram so percentiles can be read as well as the mean.
+ *
+ * Durations are counted into log-linear buckets: each power of two of
+ * nanoseconds is split into eight buckets, so any duration is counted within
+ * an eighth of its value, and a few hundred fixed buckets cover every duration
+ * a long can hold. Recording is lock free, so a timer can be shared by every
+ * thread running the operation.
+ *
+ * <pre>
+ * long start = TIMER.start();
+ * ...
+ * TIMER.stop(start);
+ * </pre>
+ */
+public class Timer implements TimerMBean {
+
+	// durations below 2^(SUB_BITS + 1) nanoseconds get a bucket each
+	private static final int SUB_BITS = 3;
+	private static final int SUB_BUCKETS = 1 << SUB_BITS;
+	private static final int LINEAR = SUB_BUCKETS * 2;
+	private static final int BUCKETS = LINEAR + (63 - SUB_BITS - 1) * SUB_BUCKETS;
+
+	private static final double NANOS_PER_MILLI = 1e6;
+
+	private final AtomicLongArray buckets = new AtomicLongArray(BUCKETS);
+	private final LongAdder count = new LongAdder();
+	private final LongAdder total = new LongAdder();
+	private final AtomicLong max = new AtomicLong();
+
+	Timer() {
+	}
+
+	/**
+	 * @return Start time to pass to {@link #stop(long)}, or 0 if metrics are off
+	 */
+	public long start() {
+		return Metrics.ENABLED ? System.nanoTime() : 0;
+	}
+
+	/**
+	 * Record the time since the given start.
+	 *
+	 * @param start Value returned by {@link #start()}
+	 */
+	public void stop(long start) {
+		if (Metrics.ENABLED) {
+			record(System.nanoTime() - start);
+		}
+	}
+
+	/**
+	 * @param nanos Duration to record
+	 */
+	public void record(long nanos) {
+		if (!Metrics.ENABLED) {
+			return;
+		}
+		nanos = Math.max(nanos, 0);
+		buckets.incrementAndGet(bucket(nanos));
+		count.increment();
+		total.add(nanos);
+		long current;
+		while (nanos > (current = max.get()) && !max.compareAndSet(current, nanos)) {
+			// another thread recorded a new max, so compare against that instead
+		}
+	}
+
+	private static int bucket(long nanos) {
+		if (nanos < LINEAR) {
+			return (int) nanos;
+		}
+		int exponent = 63 - Long.numberOfLeadingZeros(nanos);
+		int sub = (int) (nanos >>> (exponent - SUB_BITS)) & (SUB_BUCKETS - 1);
+		return LINEAR + (exponent - SUB_BITS - 1) * SUB_BUCKETS + sub;
+	}
+
+	/**
+	 * @return Largest duration counted into the given bucket
+	 */
+	private static long highestValue(int bucket) {
+		if (bucket < LINEAR) {
+			return bucket;
+		}
+		int exponent = (bucket - LINEAR) / SUB_BUCKETS + SUB_BITS + 1;
+		long sub = (bucket - LINEAR) % SUB_BUCKETS;
+		long width = 1L << (exponent - SUB_BITS);
+		return ((SUB_BUCKETS + sub) << (exponent - SUB_BITS)) + width - 1;
+	}
+
+	/**
+	 * @param percentile Percentile from 0 to 100
+	 * @return Duration in nanoseconds which that percentage of the recorded
+	 *         durations are no longer than, or 0 if nothing has been recorded
+	 */
+	public long getPercentileNanos(double percentile) {
+		long[] counts = new long[BUCKETS];
+		long recorded = 0;
+		for (int i = 0; i < BUCKETS; i++) {
+			counts[i] = buckets.get(i);
+			recorded += counts[i];
+		}
+		if (recorded == 0) {
+			return 0;
+		}
+		long rank = Math.max(1, (long) Math.ceil(recorded * percentile / 100));
+		long seen = 0;
+		for (int i = 0; i < BUCKETS; i++) {
+			seen += counts[i];
+			if (seen >= rank) {
+				return Math.min(highestValue(i), max.get());
+			}
+		}
+		return max.get();
+	}
+
+	@Override
+	public long getCount() {
+		return count.sum();
+	}
+
+	@Override
+	public double getTotalMillis() {
+		return total.sum() / NANOS_PER_MILLI;
+	}
+
+	@Override
+	public double getMeanMillis() {
+		long count = this.count.sum();
+		return count == 0 ? 0 : total.sum() / NANOS_PER_MILLI / count;
+	}
+
+	@Override
+	public double getMaxMillis() {
+		return max.get() / NANOS_PER_MILLI;
+	}
+
+	@Override
+	public double get50thPercentileMillis() {
+		return getPercentileNanos(50) / NANOS_PER_MILLI;
+	}
+
+	@Override
+	public double get95thPercentileMillis() {
+		return getPercentileNanos(95) / NANOS_PER_MILLI;
+	}
+
+	@Override
+	public double get99thPercentileMillis() {
+		return getPercentileNanos(99) / NANOS_PER_MILLI;
+	}
+
+	/**
+	 * Append a short description of this timer for the metrics log line.
+	 *
+	 * @return False if nothing has been recorded yet
+	 */
+	boolean describe(StringBuilder out) {
+		long count = getCount();
+		out.append("n=").append(count);
+		out.append(String.format(" mean=%.3fms p50=%.3fms p99=%.3fms max=%.3fms", getMeanMillis(),
+				get50thPercentileMillis(), get99thPercentileMillis(), getMaxMillis()));
+		return count != 0;
+	}
+
+}
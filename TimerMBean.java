@@ -0,0 +1,23 @@
+package com.breakingcode.unoptimised.metrics;
+
+/**
+ * JMX view of a {@link Timer}. Percentiles are read from the timer's
+ * histogram, so are within an eighth of the true value.
+ */
+public interface TimerMBean {
+
+	long getCount();
+
+	double getTotalMillis();
+
+	double getMeanMillis();
+
+	double getMaxMillis();
+
+	double get50thPercentileMillis();
+
+	double get95thPercentileMillis();
+
+	double get99thPercentileMillis();
+
+}